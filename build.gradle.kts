@@ -20,7 +20,6 @@ dependencies {
 
     compileOnly("org.jetbrains:annotations:24.0.1")
 
-    api("com.nothome:javaxdelta:2.0.1")
     api("io.github.java-diff-utils:java-diff-utils:4.12")
 
 //    implementation("net.lenni0451:Reflect:1.2.4")
@@ -28,6 +27,7 @@ dependencies {
     testImplementation(platform("org.junit:junit-bom:5.9.1"))
     testImplementation("org.junit.jupiter:junit-jupiter")
     testImplementation("org.ow2.asm:asm-util:9.5")
+    testImplementation("com.nothome:javaxdelta:2.0.1")
 }
 
 java {
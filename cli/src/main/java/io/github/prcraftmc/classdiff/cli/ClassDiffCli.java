@@ -5,8 +5,11 @@ import com.github.difflib.UnifiedDiffUtils;
 import com.github.difflib.patch.Patch;
 import io.github.prcraftmc.classdiff.ClassDiffer;
 import io.github.prcraftmc.classdiff.ClassPatcher;
+import io.github.prcraftmc.classdiff.PatchValidator;
+import io.github.prcraftmc.classdiff.format.DictionaryTrainer;
 import io.github.prcraftmc.classdiff.format.DiffReader;
 import io.github.prcraftmc.classdiff.format.DiffWriter;
+import io.github.prcraftmc.classdiff.format.PatchDictionary;
 import io.github.prcraftmc.classdiff.util.Util;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.helper.HelpScreenException;
@@ -29,10 +32,13 @@ import org.objectweb.asm.util.TraceClassVisitor;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 
@@ -57,6 +63,24 @@ public class ClassDiffCli {
             .addParser("diff")
             .help("Generate a patch between two class files")
             .setDefault("action", Options.Action.DIFF);
+        diff.addArgument("-H", "--class-hashes")
+            .help("Embed hashes of the source and target classes, so the patch is rejected up front if applied to the wrong class")
+            .action(Arguments.storeTrue());
+        diff.addArgument("-R", "--reversible")
+            .help("Embed a reverse patch, so the patch can be inverted later without the source class")
+            .action(Arguments.storeTrue());
+        diff.addArgument("-T", "--table-of-contents")
+            .help("Embed the offset of every member, so members can be read without reading the whole patch")
+            .action(Arguments.storeTrue());
+        diff.addArgument("-C", "--checksums")
+            .help("Embed checksums, so a corrupt patch is rejected before it's applied")
+            .action(Arguments.storeTrue());
+        diff.addArgument("-z", "--compress")
+            .help("Compress the patch")
+            .action(Arguments.storeTrue());
+        diff.addArgument("--dictionary")
+            .type(new PathArgumentType(true))
+            .help("Compress the patch with a dictionary made by train-dictionary");
         diff.addArgument("source")
             .type(new PathArgumentType(true))
             .help("Source file to diff from");
@@ -72,6 +96,12 @@ public class ClassDiffCli {
             .addParser("apply")
             .help("Apply a patch to a class file")
             .setDefault("action", Options.Action.APPLY);
+        apply.addArgument("--check")
+            .help("Only check whether the patch applies, without writing anything")
+            .action(Arguments.storeTrue());
+        apply.addArgument("--dictionary")
+            .type(new PathArgumentType(true))
+            .help("Dictionary the patch was compressed with");
         apply.addArgument("source")
             .type(new PathArgumentType(true))
             .help("Source file to patch");
@@ -83,6 +113,37 @@ public class ClassDiffCli {
             .help("Target file to output to")
             .nargs("?");
 
+        final Subparser invert = parser.addSubparsers()
+            .addParser("invert")
+            .help("Invert a patch generated with --reversible")
+            .setDefault("action", Options.Action.INVERT);
+        invert.addArgument("--dictionary")
+            .type(new PathArgumentType(true))
+            .help("Dictionary the patch was compressed with");
+        invert.addArgument("patch")
+            .type(new PathArgumentType(true))
+            .help("Patch file to invert");
+        invert.addArgument("output")
+            .type(new PathArgumentType(false))
+            .help("Target file to output to")
+            .nargs("?");
+
+        final Subparser trainDictionary = parser.addSubparsers()
+            .addParser("train-dictionary")
+            .help("Train a compression dictionary from existing patches")
+            .setDefault("action", Options.Action.TRAIN_DICTIONARY);
+        trainDictionary.addArgument("-s", "--size")
+            .type(Integer.class)
+            .setDefault(PatchDictionary.MAX_SIZE)
+            .help("Maximum size of the dictionary in bytes");
+        trainDictionary.addArgument("output")
+            .type(new PathArgumentType(false))
+            .help("Target file to output to");
+        trainDictionary.addArgument("patches")
+            .type(new PathArgumentType(true))
+            .help("Patch files to train from")
+            .nargs("+");
+
         final Subparser print = parser.addSubparsers()
             .addParser("print")
             .help("Print information about things");
@@ -139,6 +200,12 @@ public class ClassDiffCli {
             case APPLY:
                 apply(options);
                 break;
+            case INVERT:
+                invert(options);
+                break;
+            case TRAIN_DICTIONARY:
+                trainDictionary(options);
+                break;
             case PRINT_CLASS:
                 printClass(options);
                 break;
@@ -165,9 +232,24 @@ public class ClassDiffCli {
         final ClassNode target = readClass(options, options.target);
 
         final DiffWriter writer = new DiffWriter();
-        ClassDiffer.diff(source, target, writer);
+        writer.setTableOfContents(options.tableOfContents);
+        writer.setChecksums(options.checksums);
+        int flags = 0;
+        if (options.classHashes) {
+            flags |= ClassDiffer.CLASS_HASHES;
+        }
+        if (options.reversible) {
+            flags |= ClassDiffer.REVERSIBLE;
+        }
+        ClassDiffer.diff(source, target, writer, flags);
         try {
-            Files.write(output, writer.toByteArray());
+            if (options.compress || options.dictionary != null) {
+                Files.write(output, writer.toCompressedByteArray(readDictionary(options)));
+            } else {
+                try (OutputStream os = Files.newOutputStream(output)) {
+                    writer.writeTo(os);
+                }
+            }
         } catch (IOException e) {
             System.err.println(Ansi.ansi()
                 .fgBrightRed()
@@ -184,13 +266,26 @@ public class ClassDiffCli {
 
     public static void apply(Options options) throws Exception {
         final ClassNode clazz = readClass(options, options.source);
-        final byte[] patch = Files.readAllBytes(options.patch);
+        final DiffReader patch = readPatch(options.patch, readDictionary(options));
+
+        if (options.check) {
+            final List<String> problems = PatchValidator.validate(clazz, patch);
+            tryClose(options.source, options.patch);
+            if (!problems.isEmpty()) {
+                for (final String problem : problems) {
+                    System.err.println(Ansi.ansi().fgBrightRed().a(problem).reset());
+                }
+                System.exit(1);
+            }
+            System.out.println("Patch applies cleanly");
+            return;
+        }
 
         final String originalClassName = clazz.name;
         final int slashIndex = originalClassName.lastIndexOf('/');
         final String originalPackage = slashIndex > 0 ? originalClassName.substring(0, slashIndex) : "";
 
-        ClassPatcher.patch(clazz, new DiffReader(patch));
+        ClassPatcher.patch(clazz, patch);
 
         final Path output = options.getOutput(o -> {
             Path result = o.source.getParent();
@@ -231,6 +326,76 @@ public class ClassDiffCli {
         tryClose(options.source, options.patch, output);
     }
 
+    public static void invert(Options options) throws Exception {
+        final DiffReader reader = readPatch(options.patch, readDictionary(options));
+        if (!reader.isReversible()) {
+            System.err.println(Ansi.ansi()
+                .fgBrightRed()
+                .a("Patch ").a(options.patch).a(" was not generated with --reversible")
+                .reset()
+            );
+            System.exit(1);
+        }
+
+        final Path output = options.getOutput(o -> {
+            final String patchFilename = o.patch.getFileName().toString();
+            final int dotIndex = patchFilename.lastIndexOf('.');
+            final String strippedFilename = dotIndex >= 0 ? patchFilename.substring(0, dotIndex) : patchFilename;
+            final Path parent = o.patch.getParent();
+            return parent != null
+                ? parent.resolve(strippedFilename + ".inverse.cdiff")
+                : o.patch.getFileSystem().getPath(strippedFilename + ".inverse.cdiff");
+        });
+        try {
+            Files.write(output, reader.invert());
+        } catch (IOException e) {
+            System.err.println(Ansi.ansi()
+                .fgBrightRed()
+                .a("Failed to write to file ").a(output)
+                .a('\n').a(e)
+                .reset()
+            );
+            System.exit(1);
+        }
+
+        System.out.println("Inverted patch written to " + output);
+        tryClose(options.patch, output);
+    }
+
+    public static void trainDictionary(Options options) throws Exception {
+        final DictionaryTrainer trainer = new DictionaryTrainer();
+        for (final Path patch : options.patches) {
+            trainer.addDiff(readPatch(patch, null));
+        }
+
+        final PatchDictionary dictionary;
+        try {
+            dictionary = trainer.train(options.size);
+        } catch (IllegalStateException e) {
+            System.err.println(Ansi.ansi().fgBrightRed().a(e.getMessage()).reset());
+            System.exit(1);
+            return;
+        }
+
+        final Path output = options.getOutput(o -> o.output);
+        try {
+            Files.write(output, dictionary.getData());
+        } catch (IOException e) {
+            System.err.println(Ansi.ansi()
+                .fgBrightRed()
+                .a("Failed to write to file ").a(output)
+                .a('\n').a(e)
+                .reset()
+            );
+            System.exit(1);
+        }
+
+        System.out.println(
+            "Dictionary of " + dictionary.getData().length + " bytes trained from " +
+                trainer.getDiffCount() + " patches written to " + output
+        );
+    }
+
     public static void printClass(Options options) throws Exception {
         System.out.println(classNodeToString(readClass(options, options.clazz), options));
     }
@@ -331,6 +496,19 @@ public class ClassDiffCli {
         return result.toString();
     }
 
+    private static DiffReader readPatch(Path path, PatchDictionary dictionary) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new DiffReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), dictionary);
+        } catch (UnsupportedOperationException e) {
+            return new DiffReader(Files.readAllBytes(path), dictionary);
+        }
+    }
+
+    private static PatchDictionary readDictionary(Options options) throws IOException {
+        return options.dictionary != null ? new PatchDictionary(Files.readAllBytes(options.dictionary)) : null;
+    }
+
     private static ClassNode readClass(Options options, Path path) throws IOException {
         final ClassReader reader;
         try (InputStream is = Files.newInputStream(path)) {
@@ -5,6 +5,7 @@ import org.fusesource.jansi.Ansi;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.function.Function;
 
 public class Options {
@@ -29,6 +30,33 @@ public class Options {
     @Arg
     public Path patch;
 
+    @Arg(dest = "class_hashes")
+    public boolean classHashes;
+
+    @Arg
+    public boolean reversible;
+
+    @Arg(dest = "table_of_contents")
+    public boolean tableOfContents;
+
+    @Arg
+    public boolean checksums;
+
+    @Arg
+    public boolean compress;
+
+    @Arg
+    public Path dictionary;
+
+    @Arg
+    public List<Path> patches;
+
+    @Arg
+    public int size;
+
+    @Arg
+    public boolean check;
+
     @Arg(dest = "code_form")
     public boolean codeForm;
 
@@ -58,6 +86,8 @@ public class Options {
     public enum Action {
         DIFF,
         APPLY,
+        INVERT,
+        TRAIN_DICTIONARY,
         PRINT_CLASS,
         PRINT_CHANGES,
         TEST,
@@ -2,7 +2,6 @@ package io.github.prcraftmc.classdiff;
 
 import com.github.difflib.DiffUtils;
 import com.github.difflib.patch.Patch;
-import com.nothome.delta.Delta;
 import io.github.prcraftmc.classdiff.format.*;
 import io.github.prcraftmc.classdiff.util.Util;
 import io.github.prcraftmc.classdiff.util.*;
@@ -11,31 +10,82 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.*;
 
 public class ClassDiffer {
-    private final Delta delta = new Delta();
+    /**
+     * Flag to emit the {@link Hashing#hashClass} of the original and modified classes, so that patchers can reject a
+     * mismatched base class before changing anything. Hashing visits both classes with {@code accept}, which resets
+     * their labels, so a plain {@link ClassNode} must not be diffed from several threads at once with this flag. Classes
+     * from a {@link io.github.prcraftmc.classdiff.util.ClassNodeCache} can be.
+     */
+    public static final int CLASS_HASHES = 1;
+
+    /**
+     * Flag to embed a diff from the modified class back to the original class, so that the diff can be inverted with
+     * {@link DiffReader#invert()} without the original class.
+     */
+    public static final int REVERSIBLE = 2;
+
+    private final ByteDelta delta = new ByteDelta();
     private final DiffVisitor output;
+    private final int flags;
+
+    private DiffWriter reverseWriter;
+    private ClassDiffer reverseDiffer;
 
     public ClassDiffer(DiffVisitor output) {
+        this(output, 0);
+    }
+
+    public ClassDiffer(DiffVisitor output, int flags) {
         this.output = output;
+        this.flags = flags;
     }
 
     public static void diff(ClassNode original, ClassNode modified, DiffVisitor result) {
-        new ClassDiffer(result).accept(original, modified);
+        diff(original, modified, result, 0);
+    }
+
+    public static void diff(ClassNode original, ClassNode modified, DiffVisitor result, int flags) {
+        new ClassDiffer(result, flags).accept(original, modified);
     }
 
     public static void diff(ClassReader original, ClassReader modified, DiffVisitor result) {
+        diff(original, modified, result, 0);
+    }
+
+    public static void diff(ClassReader original, ClassReader modified, DiffVisitor result, int flags) {
         final ClassNode aNode = new ClassNode();
         original.accept(aNode, 0);
         final ClassNode bNode = new ClassNode();
         modified.accept(bNode, 0);
-        diff(aNode, bNode, result);
+        diff(aNode, bNode, result, flags);
     }
 
+    /**
+     * Diffs {@code original} against {@code modified} into the output. A differ can be reused for any number of classes,
+     * keeping its buffers between calls, as long as the output is ready for another diff each time, such as after
+     * {@link DiffWriter#reset()}.
+     * <p>
+     * Both classes are only read, but some flags visit them with {@code accept}, which isn't safe to do from several
+     * threads at once for a plain {@link ClassNode}. See {@link #CLASS_HASHES}.
+     */
     public void accept(ClassNode original, ClassNode modified) {
+        if ((flags & CLASS_HASHES) != 0) {
+            output.visitClassHashes(Hashing.hashClass(original), Hashing.hashClass(modified));
+        }
+        if ((flags & REVERSIBLE) != 0) {
+            if (reverseWriter == null) {
+                reverseWriter = new DiffWriter();
+                reverseDiffer = new ClassDiffer(reverseWriter, flags & ~REVERSIBLE);
+            } else {
+                reverseWriter.reset();
+            }
+            reverseDiffer.accept(modified, original);
+            output.visitReverseDiff(reverseWriter.toByteArray());
+        }
+
         final Patch<String> interfacePatch;
         if (Objects.equals(original.interfaces, modified.interfaces)) {
             interfacePatch = null;
@@ -47,7 +97,7 @@ public class ClassDiffer {
         }
 
         output.visit(
-            DiffConstants.V1,
+            DiffConstants.V3,
             modified.version == original.version ? -1 : modified.version,
             modified.access == original.access ? -1 : modified.access,
             modified.name.equals(original.name) ? null : modified.name,
@@ -196,7 +246,7 @@ public class ClassDiffer {
         }
     }
 
-    private void diffRecordComponents(
+    void diffRecordComponents(
         RecordComponentNode original,
         RecordComponentNode modified,
         RecordComponentDiffVisitor output
@@ -349,7 +399,7 @@ public class ClassDiffer {
         }
     }
 
-    private void diffFields(
+    void diffFields(
         FieldNode original,
         FieldNode modified,
         FieldDiffVisitor output
@@ -492,7 +542,7 @@ public class ClassDiffer {
         }
     }
 
-    private void diffMethods(
+    void diffMethods(
         MethodNode original,
         MethodNode modified,
         MethodDiffVisitor output
@@ -702,11 +752,7 @@ public class ClassDiffer {
                 final byte[] aContents = ReflectUtils.getAttributeContent(attr);
                 final byte[] bContents = ReflectUtils.getAttributeContent(bAttributes.remove(attr.type));
                 if (!Arrays.equals(aContents, bContents)) {
-                    try {
-                        output.visitCustomAttribute(attr.type, delta.compute(aContents, bContents));
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
+                    output.visitCustomAttribute(attr.type, delta.compute(aContents, bContents));
                 }
             }
         }
@@ -2,7 +2,6 @@ package io.github.prcraftmc.classdiff;
 
 import com.github.difflib.patch.Patch;
 import com.github.difflib.patch.PatchFailedException;
-import com.nothome.delta.GDiffPatcher;
 import io.github.prcraftmc.classdiff.format.*;
 import io.github.prcraftmc.classdiff.util.Util;
 import io.github.prcraftmc.classdiff.util.*;
@@ -10,37 +9,252 @@ import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 public class ClassPatcher extends DiffVisitor {
-    private final GDiffPatcher bytePatcher = new GDiffPatcher();
     private final ClassNode node;
+    private final boolean copyOnWrite;
+    /**
+     * The instruction lists that this patcher made, and so may modify in copy-on-write mode.
+     */
+    private final Set<InsnList> ownedInsns = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private List<FieldNode> indexedFields;
+    private Map<MemberName, FieldNode> fieldIndex;
+    private List<MethodNode> indexedMethods;
+    private Map<MemberName, MethodNode> methodIndex;
+    private final Map<InsnList, LabelMap> labelMaps = new IdentityHashMap<>();
+
+    private boolean hasCurrentHash;
+    private long currentHash;
+    private boolean hasTargetHash;
+    private long targetHash;
 
     /**
+     * A {@code ClassPatcher} may be reused to apply several diffs in a row to the same node, as long as the node isn't
+     * modified by anything else in between.
+     *
      * @param node The {@link ClassNode} to patch <i>in-place</i>
      */
     public ClassPatcher(ClassNode node) {
+        this(node, false);
+    }
+
+    private ClassPatcher(ClassNode node, boolean copyOnWrite) {
         this.node = node;
+        this.copyOnWrite = copyOnWrite;
     }
 
     public static void patch(ClassNode node, DiffReader patch) {
         patch.accept(new ClassPatcher(node), node);
     }
 
+    /**
+     * Applies {@code patches} in order to {@code node}. Member lookups and label maps are shared between the patches,
+     * and if consecutive patches carry class hashes, the class is only hashed once.
+     */
+    public static void patch(ClassNode node, List<DiffReader> patches) {
+        final ClassPatcher patcher = new ClassPatcher(node);
+        for (final DiffReader patch : patches) {
+            patch.accept(patcher, node);
+        }
+    }
+
+    /**
+     * Returns a patched copy of {@code base}, leaving {@code base} unchanged. The copy shares everything that the patch
+     * doesn't touch with {@code base}, such as the instructions of unchanged methods, so this is much cheaper than
+     * copying or re-parsing {@code base} for each patch.
+     * <p>
+     * {@code base} can be patched by any number of threads at once this way, as long as nothing modifies it or reads
+     * its instructions by index meanwhile, since {@link InsnList} builds its index lazily. This method builds it under
+     * a lock on each instruction list first. The copy can be modified, but only by replacing the values of its fields
+     * and of the fields of its members, not by modifying the lists and other objects they hold, which may be shared.
+     */
+    public static ClassNode patchCopy(ClassNode base, DiffReader patch) {
+        return patchCopy(base, Collections.singletonList(patch));
+    }
+
+    /**
+     * Applies {@code patches} in order to a copy of {@code base}, as with {@link #patchCopy(ClassNode, DiffReader)}.
+     */
+    public static ClassNode patchCopy(ClassNode base, List<DiffReader> patches) {
+        final ClassNode result = copyOf(base);
+        final ClassPatcher patcher = new ClassPatcher(result, true);
+        for (final DiffReader patch : patches) {
+            patch.accept(patcher, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of {@code node} with new nodes for its members, module, and record components, but that shares
+     * everything those hold with {@code node}. Methods are copied as {@link SharedMethodNode}s, since their
+     * instructions are shared.
+     */
+    private static ClassNode copyOf(ClassNode node) {
+        final ClassNode result = new ClassNode();
+        result.version = node.version;
+        result.access = node.access;
+        result.name = node.name;
+        result.signature = node.signature;
+        result.superName = node.superName;
+        result.interfaces = node.interfaces;
+        result.sourceFile = node.sourceFile;
+        result.sourceDebug = node.sourceDebug;
+        if (node.module != null) {
+            final ModuleNode module = node.module;
+            result.module = new ModuleNode(
+                Opcodes.ASM9, module.name, module.access, module.version,
+                module.requires, module.exports, module.opens, module.uses, module.provides
+            );
+            result.module.mainClass = module.mainClass;
+            result.module.packages = module.packages;
+        }
+        result.outerClass = node.outerClass;
+        result.outerMethod = node.outerMethod;
+        result.outerMethodDesc = node.outerMethodDesc;
+        result.visibleAnnotations = node.visibleAnnotations;
+        result.invisibleAnnotations = node.invisibleAnnotations;
+        result.visibleTypeAnnotations = node.visibleTypeAnnotations;
+        result.invisibleTypeAnnotations = node.invisibleTypeAnnotations;
+        result.attrs = node.attrs;
+        result.innerClasses = node.innerClasses;
+        result.nestHostClass = node.nestHostClass;
+        result.nestMembers = node.nestMembers;
+        result.permittedSubclasses = node.permittedSubclasses;
+        if (node.recordComponents != null) {
+            result.recordComponents = new ArrayList<>(node.recordComponents.size());
+            for (final RecordComponentNode component : node.recordComponents) {
+                final RecordComponentNode copy = new RecordComponentNode(
+                    Opcodes.ASM9, component.name, component.descriptor, component.signature
+                );
+                copy.visibleAnnotations = component.visibleAnnotations;
+                copy.invisibleAnnotations = component.invisibleAnnotations;
+                copy.visibleTypeAnnotations = component.visibleTypeAnnotations;
+                copy.invisibleTypeAnnotations = component.invisibleTypeAnnotations;
+                copy.attrs = component.attrs;
+                result.recordComponents.add(copy);
+            }
+        }
+        result.fields = new ArrayList<>(node.fields.size());
+        for (final FieldNode field : node.fields) {
+            final FieldNode copy = new FieldNode(
+                Opcodes.ASM9, field.access, field.name, field.desc, field.signature, field.value
+            );
+            copy.visibleAnnotations = field.visibleAnnotations;
+            copy.invisibleAnnotations = field.invisibleAnnotations;
+            copy.visibleTypeAnnotations = field.visibleTypeAnnotations;
+            copy.invisibleTypeAnnotations = field.invisibleTypeAnnotations;
+            copy.attrs = field.attrs;
+            result.fields.add(copy);
+        }
+        result.methods = new ArrayList<>(node.methods.size());
+        for (final MethodNode method : node.methods) {
+            result.methods.add(SharedMethodNode.copyOf(method));
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code attrs} with the attribute {@code name} removed if {@code patchOrContents} is {@code null}, patched
+     * if it's present, or added otherwise. The result is a new list, and a patched attribute is a new attribute, so
+     * that lists and attributes shared with another class are left alone.
+     */
+    private static List<Attribute> patchAttribute(
+        @Nullable List<Attribute> attrs, String name, byte @Nullable [] patchOrContents
+    ) {
+        final List<Attribute> result = attrs != null ? new ArrayList<>(attrs) : new ArrayList<>();
+        if (patchOrContents == null) {
+            result.removeIf(attr -> attr.type.equals(name));
+            return result;
+        }
+        for (int i = 0; i < result.size(); i++) {
+            final Attribute attr = result.get(i);
+            if (attr.type.equals(name)) {
+                final byte[] original = ReflectUtils.getAttributeContent(attr);
+                final Attribute patched = ReflectUtils.newAttribute(name);
+                ReflectUtils.setAttributeContent(patched, ByteDelta.apply(original, patchOrContents));
+                result.set(i, patched);
+                return result;
+            }
+        }
+        final Attribute attr = ReflectUtils.newAttribute(name);
+        ReflectUtils.setAttributeContent(attr, patchOrContents);
+        result.add(attr);
+        return result;
+    }
+
     public static void patch(ClassReader reader, DiffReader patch, ClassVisitor output) {
+        patch(reader, Collections.singletonList(patch), output);
+    }
+
+    public static void patch(ClassReader reader, List<DiffReader> patches, ClassVisitor output) {
         final ClassNode node = new ClassNode();
         reader.accept(node, 0);
-        patch(node, patch);
+        patch(node, patches);
         node.accept(output);
     }
 
+    private Map<MemberName, FieldNode> getFieldIndex() {
+        if (node.fields != indexedFields) {
+            indexedFields = node.fields;
+            fieldIndex = new HashMap<>();
+            for (final FieldNode field : node.fields) {
+                fieldIndex.putIfAbsent(MemberName.fromField(field), field);
+            }
+        }
+        return fieldIndex;
+    }
+
+    private Map<MemberName, MethodNode> getMethodIndex() {
+        if (node.methods != indexedMethods) {
+            indexedMethods = node.methods;
+            methodIndex = new HashMap<>();
+            for (final MethodNode method : node.methods) {
+                methodIndex.putIfAbsent(MemberName.fromMethod(method), method);
+            }
+        }
+        return methodIndex;
+    }
+
+    private LabelMap getLabelMap(InsnList instructions) {
+        return labelMaps.computeIfAbsent(instructions, LabelMap::new);
+    }
+
+    @Override
+    public void visitClassHashes(long baseHash, long targetHash) {
+        // The previous diff already vouched for the current state of the class
+        final long actualHash = hasCurrentHash ? currentHash : Hashing.hashClass(node);
+        if (actualHash != baseHash) {
+            throw new IllegalArgumentException(
+                getHashMismatchMessage(node, baseHash, actualHash) + ".\nDouble check you are patching the same file."
+            );
+        }
+        hasTargetHash = true;
+        this.targetHash = targetHash;
+    }
+
+    /**
+     * @see PatchValidator#visitClassHashes
+     */
+    static String getHashMismatchMessage(ClassNode node, long baseHash, long actualHash) {
+        return "Class hash mismatch. Patch expects base class with hash " + Long.toHexString(baseHash) +
+            ", but " + node.name + " has hash " + Long.toHexString(actualHash);
+    }
+
+    @Override
+    public void visitEnd() {
+        hasCurrentHash = hasTargetHash;
+        currentHash = targetHash;
+        hasTargetHash = false;
+    }
+
     @Override
     public void visit(
         int diffVersion,
@@ -269,26 +483,7 @@ public class ClassPatcher extends DiffVisitor {
 
             @Override
             public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
-                if (patchOrContents == null) {
-                    fRecordNode.attrs.removeIf(attr -> attr.type.equals(name));
-                    return;
-                }
-                for (final Attribute attr : fRecordNode.attrs) {
-                    if (attr.type.equals(name)) {
-                        final byte[] original = ReflectUtils.getAttributeContent(attr);
-                        final byte[] patched;
-                        try {
-                            patched = bytePatcher.patch(original, patchOrContents);
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
-                        }
-                        ReflectUtils.setAttributeContent(attr, patched);
-                        return;
-                    }
-                }
-                final Attribute attr = ReflectUtils.newAttribute(name);
-                ReflectUtils.setAttributeContent(attr, patchOrContents);
-                fRecordNode.attrs.add(attr);
+                fRecordNode.attrs = patchAttribute(fRecordNode.attrs, name, patchOrContents);
             }
         };
     }
@@ -390,26 +585,7 @@ public class ClassPatcher extends DiffVisitor {
 
     @Override
     public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
-        if (patchOrContents == null) {
-            node.attrs.removeIf(attr -> attr.type.equals(name));
-            return;
-        }
-        for (final Attribute attr : node.attrs) {
-            if (attr.type.equals(name)) {
-                final byte[] original = ReflectUtils.getAttributeContent(attr);
-                final byte[] patched;
-                try {
-                    patched = bytePatcher.patch(original, patchOrContents);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-                ReflectUtils.setAttributeContent(attr, patched);
-                return;
-            }
-        }
-        final Attribute attr = ReflectUtils.newAttribute(name);
-        ReflectUtils.setAttributeContent(attr, patchOrContents);
-        node.attrs.add(attr);
+        node.attrs = patchAttribute(node.attrs, name, patchOrContents);
     }
 
     @Override
@@ -430,12 +606,15 @@ public class ClassPatcher extends DiffVisitor {
         }
 
         node.fields = new ArrayList<>();
+        fieldIndex = new HashMap<>();
+        indexedFields = node.fields;
         for (final MemberName name : modifiedList) {
             FieldNode fieldNode = originalMap.get(name);
             if (fieldNode == null) {
                 fieldNode = new FieldNode(0, name.name, name.descriptor, null, null);
             }
             node.fields.add(fieldNode);
+            fieldIndex.putIfAbsent(name, fieldNode);
         }
     }
 
@@ -452,16 +631,12 @@ public class ClassPatcher extends DiffVisitor {
             node.fields = new ArrayList<>();
         }
 
-        FieldNode fieldNode = null;
-        for (final FieldNode test : node.fields) {
-            if (test.name.equals(name) && test.desc.equals(descriptor)) {
-                fieldNode = test;
-                break;
-            }
-        }
+        final MemberName memberName = new MemberName(name, descriptor);
+        FieldNode fieldNode = getFieldIndex().get(memberName);
         if (fieldNode == null) {
             fieldNode = new FieldNode(access, name, descriptor, signature, value);
             node.fields.add(fieldNode);
+            fieldIndex.put(memberName, fieldNode);
         }
 
         fieldNode.access = access;
@@ -510,26 +685,7 @@ public class ClassPatcher extends DiffVisitor {
 
             @Override
             public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
-                if (patchOrContents == null) {
-                    fFieldNode.attrs.removeIf(attr -> attr.type.equals(name));
-                    return;
-                }
-                for (final Attribute attr : fFieldNode.attrs) {
-                    if (attr.type.equals(name)) {
-                        final byte[] original = ReflectUtils.getAttributeContent(attr);
-                        final byte[] patched;
-                        try {
-                            patched = bytePatcher.patch(original, patchOrContents);
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
-                        }
-                        ReflectUtils.setAttributeContent(attr, patched);
-                        return;
-                    }
-                }
-                final Attribute attr = ReflectUtils.newAttribute(name);
-                ReflectUtils.setAttributeContent(attr, patchOrContents);
-                fFieldNode.attrs.add(attr);
+                fFieldNode.attrs = patchAttribute(fFieldNode.attrs, name, patchOrContents);
             }
         };
     }
@@ -552,12 +708,15 @@ public class ClassPatcher extends DiffVisitor {
         }
 
         node.methods = new ArrayList<>();
+        methodIndex = new HashMap<>();
+        indexedMethods = node.methods;
         for (final MemberName name : modifiedList) {
             MethodNode methodNode = originalMap.get(name);
             if (methodNode == null) {
                 methodNode = new MethodNode(0, name.name, name.descriptor, null, null);
             }
             node.methods.add(methodNode);
+            methodIndex.putIfAbsent(name, methodNode);
         }
     }
 
@@ -574,16 +733,12 @@ public class ClassPatcher extends DiffVisitor {
             node.methods = new ArrayList<>();
         }
 
-        MethodNode methodNode = null;
-        for (final MethodNode test : node.methods) {
-            if (test.name.equals(name) && test.desc.equals(descriptor)) {
-                methodNode = test;
-                break;
-            }
-        }
+        final MemberName memberName = new MemberName(name, descriptor);
+        MethodNode methodNode = getMethodIndex().get(memberName);
         if (methodNode == null) {
             methodNode = new MethodNode(access, name, descriptor, signature, null);
             node.methods.add(methodNode);
+            methodIndex.put(memberName, methodNode);
         }
 
         methodNode.access = access;
@@ -650,12 +805,16 @@ public class ClassPatcher extends DiffVisitor {
                     fMethodNode.visibleAnnotableParameterCount = annotableCount;
                     if (fMethodNode.visibleParameterAnnotations == null) {
                         fMethodNode.visibleParameterAnnotations = (List<AnnotationNode>[])new List<?>[patches.size()];
+                    } else if (copyOnWrite) {
+                        fMethodNode.visibleParameterAnnotations = fMethodNode.visibleParameterAnnotations.clone();
                     }
                     output = fMethodNode.visibleParameterAnnotations;
                 } else {
                     fMethodNode.invisibleAnnotableParameterCount = annotableCount;
                     if (fMethodNode.invisibleParameterAnnotations == null) {
                         fMethodNode.invisibleParameterAnnotations = (List<AnnotationNode>[])new List<?>[patches.size()];
+                    } else if (copyOnWrite) {
+                        fMethodNode.invisibleParameterAnnotations = fMethodNode.invisibleParameterAnnotations.clone();
                     }
                     output = fMethodNode.invisibleParameterAnnotations;
                 }
@@ -682,26 +841,7 @@ public class ClassPatcher extends DiffVisitor {
 
             @Override
             public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
-                if (patchOrContents == null) {
-                    fMethodNode.attrs.removeIf(attr -> attr.type.equals(name));
-                    return;
-                }
-                for (final Attribute attr : fMethodNode.attrs) {
-                    if (attr.type.equals(name)) {
-                        final byte[] original = ReflectUtils.getAttributeContent(attr);
-                        final byte[] patched;
-                        try {
-                            patched = bytePatcher.patch(original, patchOrContents);
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
-                        }
-                        ReflectUtils.setAttributeContent(attr, patched);
-                        return;
-                    }
-                }
-                final Attribute attr = ReflectUtils.newAttribute(name);
-                ReflectUtils.setAttributeContent(attr, patchOrContents);
-                fMethodNode.attrs.add(attr);
+                fMethodNode.attrs = patchAttribute(fMethodNode.attrs, name, patchOrContents);
             }
 
             @Override
@@ -740,6 +880,9 @@ public class ClassPatcher extends DiffVisitor {
 
                 final LabelMap newLabelMap = new LabelMap(newInsns);
                 insnsLabelMap = newLabelMap;
+                ownedInsns.add(newInsns);
+                labelMaps.remove(fMethodNode.instructions);
+                labelMaps.put(newInsns, newLabelMap);
                 for (final AbstractInsnNode insn : newInsns) {
                     switch (insn.getType()) {
                         case AbstractInsnNode.JUMP_INSN: {
@@ -794,9 +937,9 @@ public class ClassPatcher extends DiffVisitor {
                         l -> l.start instanceof SyntheticLabelNode || l.end instanceof SyntheticLabelNode
                     )) {
                         insnsFrozen = true;
-                        useMap = new LabelMap(fMethodNode.instructions);
+                        useMap = getLabelMap(fMethodNode.instructions);
                     } else {
-                        useMap = new LabelMap();
+                        useMap = LabelMap.EMPTY;
                     }
                 }
 
@@ -824,9 +967,9 @@ public class ClassPatcher extends DiffVisitor {
                         l -> l.start instanceof SyntheticLabelNode || l.end instanceof SyntheticLabelNode || l.handler instanceof SyntheticLabelNode
                     )) {
                         insnsFrozen = true;
-                        useMap = new LabelMap(fMethodNode.instructions);
+                        useMap = getLabelMap(fMethodNode.instructions);
                     } else {
-                        useMap = new LabelMap();
+                        useMap = LabelMap.EMPTY;
                     }
                 }
 
@@ -856,9 +999,9 @@ public class ClassPatcher extends DiffVisitor {
                             l.end.stream().anyMatch(l2 -> l2 instanceof SyntheticLabelNode)
                     )) {
                         insnsFrozen = true;
-                        useMap = new LabelMap(fMethodNode.instructions);
+                        useMap = getLabelMap(fMethodNode.instructions);
                     } else {
-                        useMap = new LabelMap();
+                        useMap = LabelMap.EMPTY;
                     }
                 }
 
@@ -885,6 +1028,9 @@ public class ClassPatcher extends DiffVisitor {
             @Override
             public void visitInsnAnnotations(int[] indices, List<TypeAnnotationNode> annotations, boolean visible) {
                 insnsFrozen = true;
+                if (copyOnWrite && !ownedInsns.contains(fMethodNode.instructions)) {
+                    copyCode(fMethodNode);
+                }
                 for (int i = 0; i < indices.length; i++) {
                     final AbstractInsnNode insn = fMethodNode.instructions.get(indices[i]);
                     final TypeAnnotationNode annotation = annotations.get(i);
@@ -903,4 +1049,18 @@ public class ClassPatcher extends DiffVisitor {
             }
         };
     }
+
+    /**
+     * Replaces the instructions of {@code method}, and everything that refers to their labels, with copies.
+     */
+    private void copyCode(MethodNode method) {
+        final MethodNode code = new MethodNode(Opcodes.ASM9);
+        method.accept(code);
+        method.instructions = code.instructions;
+        method.tryCatchBlocks = code.tryCatchBlocks;
+        method.localVariables = code.localVariables;
+        method.visibleLocalVariableAnnotations = code.visibleLocalVariableAnnotations;
+        method.invisibleLocalVariableAnnotations = code.invisibleLocalVariableAnnotations;
+        ownedInsns.add(code.instructions);
+    }
 }
@@ -0,0 +1,1216 @@
+package io.github.prcraftmc.classdiff;
+
+import com.github.difflib.DiffUtils;
+import com.github.difflib.patch.*;
+import io.github.prcraftmc.classdiff.format.*;
+import io.github.prcraftmc.classdiff.util.*;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Combines an A&rarr;B diff and a B&rarr;C diff into a single A&rarr;C diff by composing their deltas.
+ * <p>
+ * Decoding the second diff requires the contents of B, so B is built in memory by patching a copy of A. It is never
+ * serialized, and the composed diff is built from the deltas of both diffs rather than by diffing A against C.
+ */
+public class PatchComposer {
+    private final ByteDelta delta = new ByteDelta();
+    private final ClassDiffer memberDiffer = new ClassDiffer(new DiffVisitor() {
+    });
+
+    private final ClassNode base;
+    private final ClassNode intermediate;
+    private final ClassRecording first;
+    private final ClassRecording second;
+
+    private PatchComposer(ClassNode base, DiffReader first, DiffReader second) {
+        this.base = base;
+        intermediate = copyClass(base);
+
+        this.first = new ClassRecording(new ClassPatcher(intermediate));
+        first.accept(this.first, intermediate);
+
+        this.second = new ClassRecording(null);
+        second.accept(this.second, intermediate);
+    }
+
+    /**
+     * @param base The class {@code first} applies to. It is not modified.
+     * @param first A diff from {@code base} to an intermediate class
+     * @param second A diff from the intermediate class to the final class
+     * @param output The visitor to receive a diff from {@code base} to the final class
+     */
+    public static void compose(ClassNode base, DiffReader first, DiffReader second, DiffVisitor output) {
+        new PatchComposer(base, first, second).accept(output);
+    }
+
+    private void accept(DiffVisitor output) {
+        if (second.hasClassHashes) {
+            final long intermediateHash = first.hasClassHashes ? first.targetHash : Hashing.hashClass(intermediate);
+            if (second.baseHash != intermediateHash) {
+                throw new IllegalArgumentException(
+                    "Cannot compose patches. The second patch expects base class with hash " +
+                        Long.toHexString(second.baseHash) + ", but the first patch produces hash " +
+                        Long.toHexString(intermediateHash)
+                );
+            }
+            output.visitClassHashes(
+                first.hasClassHashes ? first.baseHash : Hashing.hashClass(base), second.targetHash
+            );
+        }
+
+        output.visit(
+            Math.max(first.diffVersion, second.diffVersion),
+            second.classVersion != -1 ? second.classVersion : first.classVersion,
+            second.access != -1 ? second.access : first.access,
+            second.name != null ? second.name : first.name,
+            second.signature != null ? second.signature : first.signature,
+            second.superName != null ? second.superName : first.superName,
+            composePatches(base.interfaces, first.interfaces, second.interfaces)
+        );
+
+        if (first.sourceVisited || second.sourceVisited) {
+            output.visitSource(
+                second.source != null ? second.source : first.source,
+                second.debug != null ? second.debug : first.debug
+            );
+        }
+
+        emitPatch(composePatches(base.innerClasses, first.innerClasses, second.innerClasses), output::visitInnerClasses);
+
+        if (first.outerClassVisited || second.outerClassVisited) {
+            output.visitOuterClass(
+                second.outerClass != null ? second.outerClass : first.outerClass,
+                second.outerMethod != null ? second.outerMethod : first.outerMethod,
+                second.outerMethodDesc != null ? second.outerMethodDesc : first.outerMethodDesc
+            );
+        }
+
+        if (second.nestHostVisited) {
+            output.visitNestHost(second.nestHost);
+        } else if (first.nestHostVisited) {
+            output.visitNestHost(first.nestHost);
+        }
+
+        emitPatch(composePatches(base.nestMembers, first.nestMembers, second.nestMembers), output::visitNestMembers);
+        emitPatch(
+            composePatches(base.permittedSubclasses, first.permittedSubclasses, second.permittedSubclasses),
+            output::visitPermittedSubclasses
+        );
+
+        composeAnnotations(
+            output, first.annotations, second.annotations,
+            base.visibleAnnotations, base.invisibleAnnotations,
+            base.visibleTypeAnnotations, base.invisibleTypeAnnotations
+        );
+
+        composeRecordComponents(output);
+
+        composeModules(output);
+
+        composeAttributes(output, base.attrs, intermediate.attrs, first.attributes, second.attributes);
+
+        composeFields(output);
+
+        composeMethods(output);
+
+        output.visitEnd();
+    }
+
+    private void composeRecordComponents(DiffVisitor output) {
+        final List<MemberName> aNames = MemberName.fromRecordComponents(base.recordComponents);
+        emitPatch(
+            composePatches(aNames, first.recordComponentsPatch, second.recordComponentsPatch),
+            output::visitRecordComponents
+        );
+
+        final Map<MemberName, RecordComponentNode> aMap = new HashMap<>();
+        for (int i = 0; i < aNames.size(); i++) {
+            aMap.put(aNames.get(i), base.recordComponents.get(i));
+        }
+        final List<MemberName> bNames = MemberName.fromRecordComponents(intermediate.recordComponents);
+        final Map<MemberName, RecordComponentNode> bMap = new HashMap<>();
+        for (int i = 0; i < bNames.size(); i++) {
+            bMap.put(bNames.get(i), intermediate.recordComponents.get(i));
+        }
+
+        for (final MemberName name : patchedNames(bNames, second.recordComponentsPatch)) {
+            RecordComponentRecording r1 = first.recordComponents.get(name);
+            final RecordComponentRecording r2 = second.recordComponents.get(name);
+            final RecordComponentNode aNode = aMap.get(name);
+            RecordComponentNode bNode = bMap.get(name);
+            if (bNode == null) {
+                // Removed by the first patch and re-added by the second
+                bNode = new RecordComponentNode(name.name, name.descriptor, null);
+                r1 = null;
+                if (aNode != null) {
+                    r1 = new RecordComponentRecording(null);
+                    memberDiffer.diffRecordComponents(aNode, bNode, r1);
+                }
+            }
+            if (r1 == null && r2 == null) continue;
+
+            final RecordComponentRecording last = r2 != null ? r2 : r1;
+            final RecordComponentDiffVisitor visitor = output.visitRecordComponent(
+                name.name, name.descriptor, last.signature
+            );
+            if (visitor == null) continue;
+
+            final RecordComponentNode fromNode = aNode != null
+                ? aNode : new RecordComponentNode(name.name, name.descriptor, null);
+            composeAnnotations(
+                visitor,
+                r1 != null ? r1.annotations : null, r2 != null ? r2.annotations : null,
+                fromNode.visibleAnnotations, fromNode.invisibleAnnotations,
+                fromNode.visibleTypeAnnotations, fromNode.invisibleTypeAnnotations
+            );
+            composeAttributes(
+                visitor, fromNode.attrs, bNode.attrs,
+                r1 != null ? r1.attributes : Collections.emptyMap(),
+                r2 != null ? r2.attributes : Collections.emptyMap()
+            );
+            visitor.visitEnd();
+        }
+    }
+
+    private void composeModules(DiffVisitor output) {
+        ModuleRecording m1 = first.module;
+        final ModuleRecording m2 = second.module;
+        if (m1 == null && m2 == null) return;
+
+        if (m2 != null && m2.name == null || m2 == null && m1.name == null) {
+            final ModuleDiffVisitor visitor = output.visitModule(null, 0, null);
+            if (visitor != null) {
+                visitor.visitEnd();
+            }
+            return;
+        }
+
+        final ModuleNode aModule = base.module != null ? base.module : new ModuleNode("", 0, null);
+        if (m1 != null && m1.name == null) {
+            // Removed by the first patch and re-added by the second
+            m1 = new ModuleRecording(null);
+            m1.mainClassVisited = aModule.mainClass != null;
+            m1.packages = DiffUtils.diff(Util.nullToEmpty(aModule.packages), Collections.emptyList());
+            m1.requires = DiffUtils.diff(Util.nullToEmpty(aModule.requires), Collections.emptyList());
+            m1.exports = DiffUtils.diff(Util.nullToEmpty(aModule.exports), Collections.emptyList());
+            m1.opens = DiffUtils.diff(Util.nullToEmpty(aModule.opens), Collections.emptyList());
+            m1.uses = DiffUtils.diff(Util.nullToEmpty(aModule.uses), Collections.emptyList());
+            m1.provides = DiffUtils.diff(Util.nullToEmpty(aModule.provides), Collections.emptyList());
+        }
+
+        final ModuleRecording last = m2 != null ? m2 : m1;
+        final ModuleDiffVisitor visitor = output.visitModule(last.name, last.access, last.version);
+        if (visitor == null) return;
+
+        if (m2 != null && m2.mainClassVisited) {
+            visitor.visitMainClass(m2.mainClass);
+        } else if (m1 != null && m1.mainClassVisited) {
+            visitor.visitMainClass(m1.mainClass);
+        }
+        emitPatch(composePatches(
+            aModule.packages, m1 != null ? m1.packages : null, m2 != null ? m2.packages : null
+        ), visitor::visitPackages);
+        emitPatch(composePatches(
+            aModule.requires, m1 != null ? m1.requires : null, m2 != null ? m2.requires : null
+        ), visitor::visitRequires);
+        emitPatch(composePatches(
+            aModule.exports, m1 != null ? m1.exports : null, m2 != null ? m2.exports : null
+        ), visitor::visitExports);
+        emitPatch(composePatches(
+            aModule.opens, m1 != null ? m1.opens : null, m2 != null ? m2.opens : null
+        ), visitor::visitOpens);
+        emitPatch(composePatches(
+            aModule.uses, m1 != null ? m1.uses : null, m2 != null ? m2.uses : null
+        ), visitor::visitUses);
+        emitPatch(composePatches(
+            aModule.provides, m1 != null ? m1.provides : null, m2 != null ? m2.provides : null
+        ), visitor::visitProvides);
+        visitor.visitEnd();
+    }
+
+    private void composeFields(DiffVisitor output) {
+        final List<MemberName> aNames = MemberName.fromFields(base.fields);
+        emitPatch(composePatches(aNames, first.fieldsPatch, second.fieldsPatch), output::visitFields);
+
+        final Map<MemberName, FieldNode> aMap = new HashMap<>();
+        for (int i = 0; i < aNames.size(); i++) {
+            aMap.put(aNames.get(i), base.fields.get(i));
+        }
+        final List<MemberName> bNames = MemberName.fromFields(intermediate.fields);
+        final Map<MemberName, FieldNode> bMap = new HashMap<>();
+        for (int i = 0; i < bNames.size(); i++) {
+            bMap.put(bNames.get(i), intermediate.fields.get(i));
+        }
+
+        for (final MemberName name : patchedNames(bNames, second.fieldsPatch)) {
+            FieldRecording r1 = first.fields.get(name);
+            final FieldRecording r2 = second.fields.get(name);
+            final FieldNode aNode = aMap.get(name);
+            FieldNode bNode = bMap.get(name);
+            if (bNode == null) {
+                // Removed by the first patch and re-added by the second
+                bNode = new FieldNode(0, name.name, name.descriptor, null, null);
+                r1 = null;
+                if (aNode != null) {
+                    r1 = new FieldRecording(null);
+                    memberDiffer.diffFields(aNode, bNode, r1);
+                }
+            }
+            if (r1 == null && r2 == null) continue;
+
+            final FieldRecording last = r2 != null ? r2 : r1;
+            final FieldDiffVisitor visitor = output.visitField(
+                last.access, name.name, name.descriptor, last.signature, last.value
+            );
+            if (visitor == null) continue;
+
+            final FieldNode fromNode = aNode != null ? aNode : new FieldNode(0, name.name, name.descriptor, null, null);
+            composeAnnotations(
+                visitor,
+                r1 != null ? r1.annotations : null, r2 != null ? r2.annotations : null,
+                fromNode.visibleAnnotations, fromNode.invisibleAnnotations,
+                fromNode.visibleTypeAnnotations, fromNode.invisibleTypeAnnotations
+            );
+            composeAttributes(
+                visitor, fromNode.attrs, bNode.attrs,
+                r1 != null ? r1.attributes : Collections.emptyMap(),
+                r2 != null ? r2.attributes : Collections.emptyMap()
+            );
+            visitor.visitEnd();
+        }
+    }
+
+    private void composeMethods(DiffVisitor output) {
+        final List<MemberName> aNames = MemberName.fromMethods(base.methods);
+        emitPatch(composePatches(aNames, first.methodsPatch, second.methodsPatch), output::visitMethods);
+
+        final Map<MemberName, MethodNode> aMap = new HashMap<>();
+        for (int i = 0; i < aNames.size(); i++) {
+            aMap.put(aNames.get(i), base.methods.get(i));
+        }
+        final List<MemberName> bNames = MemberName.fromMethods(intermediate.methods);
+        final Map<MemberName, MethodNode> bMap = new HashMap<>();
+        for (int i = 0; i < bNames.size(); i++) {
+            bMap.put(bNames.get(i), intermediate.methods.get(i));
+        }
+
+        for (final MemberName name : patchedNames(bNames, second.methodsPatch)) {
+            MethodRecording r1 = first.methods.get(name);
+            final MethodRecording r2 = second.methods.get(name);
+            final MethodNode aNode = aMap.get(name);
+            MethodNode bNode = bMap.get(name);
+            if (bNode == null) {
+                // Removed by the first patch and re-added by the second
+                bNode = new MethodNode(0, name.name, name.descriptor, null, null);
+                r1 = null;
+                if (aNode != null) {
+                    r1 = new MethodRecording(null);
+                    r1.exceptions = DiffUtils.diff(aNode.exceptions, bNode.exceptions);
+                    memberDiffer.diffMethods(aNode, bNode, r1);
+                }
+            }
+            if (r1 == null && r2 == null) continue;
+
+            composeMethod(
+                output, name,
+                aNode != null ? aNode : new MethodNode(0, name.name, name.descriptor, null, null),
+                bNode, r1, r2
+            );
+        }
+    }
+
+    private void composeMethod(
+        DiffVisitor output,
+        MemberName name,
+        MethodNode aNode,
+        MethodNode bNode,
+        @Nullable MethodRecording r1,
+        @Nullable MethodRecording r2
+    ) {
+        final MethodRecording last = r2 != null ? r2 : r1;
+        assert last != null;
+        Patch<String> exceptions = composePatches(
+            aNode.exceptions, r1 != null ? r1.exceptions : null, r2 != null ? r2.exceptions : null
+        );
+        if (exceptions == null) {
+            exceptions = new Patch<>();
+        }
+        final MethodDiffVisitor visitor = output.visitMethod(
+            last.access, name.name, name.descriptor, last.signature, exceptions
+        );
+        if (visitor == null) return;
+
+        composeAnnotations(
+            visitor,
+            r1 != null ? r1.annotations : null, r2 != null ? r2.annotations : null,
+            aNode.visibleAnnotations, aNode.invisibleAnnotations,
+            aNode.visibleTypeAnnotations, aNode.invisibleTypeAnnotations
+        );
+
+        if (r2 != null && r2.annotationDefaultVisited) {
+            visitor.visitAnnotationDefault(r2.annotationDefault);
+        } else if (r1 != null && r1.annotationDefaultVisited) {
+            visitor.visitAnnotationDefault(r1.annotationDefault);
+        }
+
+        final int paramCount = Type.getArgumentTypes(name.descriptor).length;
+        for (final boolean visible : new boolean[] {true, false}) {
+            final ParameterAnnotations p1 = r1 != null ? r1.getParameterAnnotations(visible) : null;
+            final ParameterAnnotations p2 = r2 != null ? r2.getParameterAnnotations(visible) : null;
+            if (p1 == null && p2 == null) continue;
+            final List<AnnotationNode>[] aAnnotations = visible
+                ? aNode.visibleParameterAnnotations : aNode.invisibleParameterAnnotations;
+            final List<Patch<AnnotationNode>> patches = new ArrayList<>(paramCount);
+            for (int i = 0; i < paramCount; i++) {
+                final Patch<AnnotationNode> patch = composePatches(
+                    Util.getListFromArray(aAnnotations, i),
+                    p1 != null ? p1.patches.get(i) : null,
+                    p2 != null ? p2.patches.get(i) : null
+                );
+                patches.add(patch != null ? patch : new Patch<>());
+            }
+            visitor.visitParameterAnnotations(p2 != null ? p2.annotableCount : p1.annotableCount, patches, visible);
+        }
+
+        emitPatch(composePatches(
+            aNode.parameters, r1 != null ? r1.parameters : null, r2 != null ? r2.parameters : null
+        ), visitor::visitParameters);
+
+        composeAttributes(
+            visitor, aNode.attrs, bNode.attrs,
+            r1 != null ? r1.attributes : Collections.emptyMap(),
+            r2 != null ? r2.attributes : Collections.emptyMap()
+        );
+
+        if (r2 != null && r2.maxsVisited) {
+            visitor.visitMaxs(r2.maxStack, r2.maxLocals);
+        } else if (r1 != null && r1.maxsVisited) {
+            visitor.visitMaxs(r1.maxStack, r1.maxLocals);
+        }
+
+        // The labels of the final method. Labels kept from the intermediate method are its real LabelNodes, which the
+        // first patch's instructions refer to after being applied.
+        final Supplier<LabelMap> finalLabelMap = Util.lazy(() -> {
+            final InsnListAdapter bInsns = new InsnListAdapter(bNode.instructions);
+            return new LabelMap(
+                r2 != null && r2.insns != null ? Util.applyPatchUnchecked(r2.insns, bInsns) : bInsns
+            );
+        });
+
+        final Patch<AbstractInsnNode> insns = composePatches(
+            new InsnListAdapter(aNode.instructions),
+            r1 != null ? r1.insns : null, r2 != null ? r2.insns : null
+        );
+        if (insns != null && !insns.getDeltas().isEmpty()) {
+            visitor.visitInsns(aNode.instructions.size(), insns, finalLabelMap);
+        }
+
+        if (r2 != null && r2.localsVisited) {
+            visitor.visitLocalVariables(r2.locals, r2.localsMap);
+        } else if (r1 != null && r1.localsVisited) {
+            visitor.visitLocalVariables(Util.nullToEmpty(bNode.localVariables), finalLabelMap.get());
+        }
+
+        if (r2 != null && r2.tryCatchBlocksVisited) {
+            visitor.visitTryCatchBlocks(r2.tryCatchBlocks, r2.tryCatchBlocksMap);
+        } else if (r1 != null && r1.tryCatchBlocksVisited) {
+            visitor.visitTryCatchBlocks(bNode.tryCatchBlocks, finalLabelMap.get());
+        }
+
+        for (final boolean visible : new boolean[] {false, true}) {
+            final LocalVariableAnnotations l1 = r1 != null ? r1.getLocalVariableAnnotations(visible) : null;
+            final LocalVariableAnnotations l2 = r2 != null ? r2.getLocalVariableAnnotations(visible) : null;
+            if (l2 != null) {
+                visitor.visitLocalVariableAnnotations(l2.annotations, visible, l2.useMap);
+            } else if (l1 != null) {
+                visitor.visitLocalVariableAnnotations(
+                    Util.nullToEmpty(visible ? bNode.visibleLocalVariableAnnotations : bNode.invisibleLocalVariableAnnotations),
+                    visible, finalLabelMap.get()
+                );
+            }
+        }
+
+        // Instruction annotations are always written in full for the patched method
+        for (final boolean visible : new boolean[] {false, true}) {
+            final InsnAnnotations i1 = r1 != null ? r1.getInsnAnnotations(visible) : null;
+            final InsnAnnotations i2 = r2 != null ? r2.getInsnAnnotations(visible) : null;
+            if (i2 != null) {
+                visitor.visitInsnAnnotations(i2.indices, i2.annotations, visible);
+            } else if (i1 != null && r2 == null) {
+                visitor.visitInsnAnnotations(i1.indices, i1.annotations, visible);
+            }
+        }
+
+        visitor.visitEnd();
+    }
+
+    private void composeAnnotations(
+        AnnotatedElementVisitor output,
+        @Nullable AnnotationPatches first,
+        @Nullable AnnotationPatches second,
+        @Nullable List<AnnotationNode> visibleAnnotations,
+        @Nullable List<AnnotationNode> invisibleAnnotations,
+        @Nullable List<TypeAnnotationNode> visibleTypeAnnotations,
+        @Nullable List<TypeAnnotationNode> invisibleTypeAnnotations
+    ) {
+        emitPatch(composePatches(
+            visibleAnnotations,
+            first != null ? first.visibleAnnotations : null,
+            second != null ? second.visibleAnnotations : null
+        ), patch -> output.visitAnnotations(patch, true));
+        emitPatch(composePatches(
+            invisibleAnnotations,
+            first != null ? first.invisibleAnnotations : null,
+            second != null ? second.invisibleAnnotations : null
+        ), patch -> output.visitAnnotations(patch, false));
+        emitPatch(composePatches(
+            visibleTypeAnnotations,
+            first != null ? first.visibleTypeAnnotations : null,
+            second != null ? second.visibleTypeAnnotations : null
+        ), patch -> output.visitTypeAnnotations(patch, true));
+        emitPatch(composePatches(
+            invisibleTypeAnnotations,
+            first != null ? first.invisibleTypeAnnotations : null,
+            second != null ? second.invisibleTypeAnnotations : null
+        ), patch -> output.visitTypeAnnotations(patch, false));
+    }
+
+    /**
+     * Custom attribute patches are opaque byte patches, so these are composed by computing the final contents from
+     * the intermediate class and diffing them against the base.
+     */
+    private void composeAttributes(
+        CustomAttributableVisitor output,
+        @Nullable List<Attribute> baseAttrs,
+        @Nullable List<Attribute> intermediateAttrs,
+        Map<String, byte @Nullable []> first,
+        Map<String, byte @Nullable []> second
+    ) {
+        final Set<String> names = new LinkedHashSet<>(first.keySet());
+        names.addAll(second.keySet());
+        for (final String name : names) {
+            final byte[] intermediateContents = getAttributeContent(intermediateAttrs, name);
+            final byte[] finalContents;
+            if (second.containsKey(name)) {
+                final byte[] patchOrContents = second.get(name);
+                if (patchOrContents == null) {
+                    finalContents = null;
+                } else if (intermediateContents != null) {
+                    finalContents = ByteDelta.apply(intermediateContents, patchOrContents);
+                } else {
+                    finalContents = patchOrContents;
+                }
+            } else {
+                finalContents = intermediateContents;
+            }
+
+            final byte[] baseContents = getAttributeContent(baseAttrs, name);
+            if (finalContents == null) {
+                if (baseContents != null) {
+                    output.visitCustomAttribute(name, null);
+                }
+            } else if (baseContents == null) {
+                output.visitCustomAttribute(name, finalContents);
+            } else if (!Arrays.equals(baseContents, finalContents)) {
+                output.visitCustomAttribute(name, delta.compute(baseContents, finalContents));
+            }
+        }
+    }
+
+    private static byte @Nullable [] getAttributeContent(@Nullable List<Attribute> attrs, String name) {
+        if (attrs != null) {
+            for (final Attribute attr : attrs) {
+                if (attr.type.equals(name)) {
+                    return ReflectUtils.getAttributeContent(attr);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<MemberName> patchedNames(List<MemberName> names, @Nullable Patch<MemberName> patch) {
+        if (patch == null) {
+            return names;
+        }
+        return Util.applyPatchUnchecked(patch, names);
+    }
+
+    private static <T> void emitPatch(@Nullable Patch<T> patch, Consumer<Patch<T>> output) {
+        if (patch != null && !patch.getDeltas().isEmpty()) {
+            output.accept(patch);
+        }
+    }
+
+    /**
+     * Composes two patches positionally. Only the positions and lengths of the source chunks and the lines of the
+     * target chunks are used, so the intermediate list never needs to be built.
+     *
+     * @param base The list {@code first} applies to
+     * @param first A patch from {@code base} to an intermediate list, or {@code null} if it is unchanged
+     * @param second A patch from the intermediate list to the final list, or {@code null} if it is unchanged
+     * @return A patch from {@code base} to the final list, or {@code null} if both patches are {@code null}
+     */
+    @Nullable
+    static <T> Patch<T> composePatches(@Nullable List<T> base, @Nullable Patch<T> first, @Nullable Patch<T> second) {
+        if (second == null) {
+            return first;
+        }
+        if (first == null) {
+            return second;
+        }
+        base = Util.nullToEmpty(base);
+
+        // For each element of the intermediate list, the index it came from in base, or -1 if it was inserted
+        int intermediateSize = base.size();
+        for (final AbstractDelta<T> delta : first.getDeltas()) {
+            intermediateSize += delta.getTarget().size() - delta.getSource().size();
+        }
+        final int[] origins = new int[intermediateSize];
+        final List<T> inserted = new ArrayList<>(Collections.nCopies(intermediateSize, null));
+        int baseIndex = 0;
+        int index = 0;
+        for (final AbstractDelta<T> delta : first.getDeltas()) {
+            while (baseIndex < delta.getSource().getPosition()) {
+                origins[index++] = baseIndex++;
+            }
+            baseIndex += delta.getSource().size();
+            for (final T line : delta.getTarget().getLines()) {
+                origins[index] = -1;
+                inserted.set(index++, line);
+            }
+        }
+        while (baseIndex < base.size()) {
+            origins[index++] = baseIndex++;
+        }
+
+        final PatchBuilder<T> result = new PatchBuilder<>(base);
+        index = 0;
+        for (final AbstractDelta<T> delta : second.getDeltas()) {
+            while (index < delta.getSource().getPosition()) {
+                result.keep(origins[index], inserted.get(index));
+                index++;
+            }
+            index += delta.getSource().size();
+            for (final T line : delta.getTarget().getLines()) {
+                result.insert(line);
+            }
+        }
+        while (index < intermediateSize) {
+            result.keep(origins[index], inserted.get(index));
+            index++;
+        }
+        return result.finish();
+    }
+
+    private static final class PatchBuilder<T> {
+        private final List<T> base;
+        private final Patch<T> patch = new Patch<>();
+        private List<T> pending = new ArrayList<>();
+        private int nextBaseIndex;
+        private int targetIndex;
+
+        PatchBuilder(List<T> base) {
+            this.base = base;
+        }
+
+        void keep(int origin, T line) {
+            if (origin == -1) {
+                insert(line);
+                return;
+            }
+            flush(origin);
+            nextBaseIndex = origin + 1;
+            targetIndex++;
+        }
+
+        void insert(T line) {
+            pending.add(line);
+        }
+
+        Patch<T> finish() {
+            flush(base.size());
+            return patch;
+        }
+
+        private void flush(int untilBaseIndex) {
+            final int sourceLength = untilBaseIndex - nextBaseIndex;
+            if (sourceLength == 0 && pending.isEmpty()) return;
+            final Chunk<T> source = new Chunk<>(nextBaseIndex, base.subList(nextBaseIndex, untilBaseIndex));
+            final Chunk<T> target = new Chunk<>(targetIndex, pending);
+            if (pending.isEmpty()) {
+                patch.addDelta(new DeleteDelta<>(source, target));
+            } else if (sourceLength == 0) {
+                patch.addDelta(new InsertDelta<>(source, target));
+            } else {
+                patch.addDelta(new ChangeDelta<>(source, target));
+            }
+            targetIndex += pending.size();
+            pending = new ArrayList<>();
+        }
+    }
+
+    private static ClassNode copyClass(ClassNode node) {
+        final ClassNode result = new ClassNode();
+        node.accept(result);
+        // Attributes are shared by accept(), but ClassPatcher modifies them in place
+        copyAttributes(result.attrs);
+        if (result.recordComponents != null) {
+            for (final RecordComponentNode component : result.recordComponents) {
+                copyAttributes(component.attrs);
+            }
+        }
+        for (final FieldNode field : result.fields) {
+            copyAttributes(field.attrs);
+        }
+        for (final MethodNode method : result.methods) {
+            copyAttributes(method.attrs);
+        }
+        return result;
+    }
+
+    private static void copyAttributes(@Nullable List<Attribute> attrs) {
+        if (attrs == null) return;
+        attrs.replaceAll(attr -> {
+            final Attribute copy = ReflectUtils.newAttribute(attr.type);
+            ReflectUtils.setAttributeContent(copy, ReflectUtils.getAttributeContent(attr));
+            return copy;
+        });
+    }
+
+    private static final class AnnotationPatches {
+        Patch<AnnotationNode> visibleAnnotations;
+        Patch<AnnotationNode> invisibleAnnotations;
+        Patch<TypeAnnotationNode> visibleTypeAnnotations;
+        Patch<TypeAnnotationNode> invisibleTypeAnnotations;
+
+        void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+            if (visible) {
+                visibleAnnotations = patch;
+            } else {
+                invisibleAnnotations = patch;
+            }
+        }
+
+        void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+            if (visible) {
+                visibleTypeAnnotations = patch;
+            } else {
+                invisibleTypeAnnotations = patch;
+            }
+        }
+    }
+
+    private static final class ClassRecording extends DiffVisitor {
+        boolean hasClassHashes;
+        long baseHash;
+        long targetHash;
+
+        int diffVersion;
+        int classVersion = -1;
+        int access = -1;
+        String name;
+        String signature;
+        String superName;
+        Patch<String> interfaces;
+
+        boolean sourceVisited;
+        String source;
+        String debug;
+
+        Patch<InnerClassNode> innerClasses;
+
+        boolean outerClassVisited;
+        String outerClass;
+        String outerMethod;
+        String outerMethodDesc;
+
+        boolean nestHostVisited;
+        String nestHost;
+
+        Patch<String> nestMembers;
+        Patch<String> permittedSubclasses;
+
+        final AnnotationPatches annotations = new AnnotationPatches();
+
+        Patch<MemberName> recordComponentsPatch;
+        final Map<MemberName, RecordComponentRecording> recordComponents = new HashMap<>();
+
+        ModuleRecording module;
+
+        final Map<String, byte @Nullable []> attributes = new LinkedHashMap<>();
+
+        Patch<MemberName> fieldsPatch;
+        final Map<MemberName, FieldRecording> fields = new HashMap<>();
+
+        Patch<MemberName> methodsPatch;
+        final Map<MemberName, MethodRecording> methods = new HashMap<>();
+
+        ClassRecording(@Nullable DiffVisitor delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void visitClassHashes(long baseHash, long targetHash) {
+            super.visitClassHashes(baseHash, targetHash);
+            hasClassHashes = true;
+            this.baseHash = baseHash;
+            this.targetHash = targetHash;
+        }
+
+        @Override
+        public void visit(
+            int diffVersion,
+            int classVersion,
+            int access,
+            @Nullable String name,
+            @Nullable String signature,
+            @Nullable String superName,
+            @Nullable Patch<String> interfaces
+        ) {
+            super.visit(diffVersion, classVersion, access, name, signature, superName, interfaces);
+            this.diffVersion = diffVersion;
+            this.classVersion = classVersion;
+            this.access = access;
+            this.name = name;
+            this.signature = signature;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        @Override
+        public void visitSource(@Nullable String source, @Nullable String debug) {
+            super.visitSource(source, debug);
+            sourceVisited = true;
+            this.source = source;
+            this.debug = debug;
+        }
+
+        @Override
+        public void visitInnerClasses(Patch<InnerClassNode> patch) {
+            super.visitInnerClasses(patch);
+            innerClasses = patch;
+        }
+
+        @Override
+        public void visitOuterClass(@Nullable String className, @Nullable String methodName, @Nullable String methodDescriptor) {
+            super.visitOuterClass(className, methodName, methodDescriptor);
+            outerClassVisited = true;
+            outerClass = className;
+            outerMethod = methodName;
+            outerMethodDesc = methodDescriptor;
+        }
+
+        @Override
+        public void visitNestHost(@Nullable String nestHost) {
+            super.visitNestHost(nestHost);
+            nestHostVisited = true;
+            this.nestHost = nestHost;
+        }
+
+        @Override
+        public void visitNestMembers(Patch<String> patch) {
+            super.visitNestMembers(patch);
+            nestMembers = patch;
+        }
+
+        @Override
+        public void visitPermittedSubclasses(Patch<String> patch) {
+            super.visitPermittedSubclasses(patch);
+            permittedSubclasses = patch;
+        }
+
+        @Override
+        public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+            super.visitAnnotations(patch, visible);
+            annotations.visitAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+            super.visitTypeAnnotations(patch, visible);
+            annotations.visitTypeAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitRecordComponents(Patch<MemberName> patch) {
+            super.visitRecordComponents(patch);
+            recordComponentsPatch = patch;
+        }
+
+        @Override
+        public RecordComponentDiffVisitor visitRecordComponent(String name, String descriptor, @Nullable String signature) {
+            final RecordComponentRecording result = new RecordComponentRecording(
+                super.visitRecordComponent(name, descriptor, signature)
+            );
+            result.signature = signature;
+            recordComponents.put(new MemberName(name, descriptor), result);
+            return result;
+        }
+
+        @Override
+        public ModuleDiffVisitor visitModule(@Nullable String name, int access, @Nullable String version) {
+            module = new ModuleRecording(super.visitModule(name, access, version));
+            module.name = name;
+            module.access = access;
+            module.version = version;
+            return module;
+        }
+
+        @Override
+        public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
+            super.visitCustomAttribute(name, patchOrContents);
+            attributes.put(name, patchOrContents);
+        }
+
+        @Override
+        public void visitFields(Patch<MemberName> patch) {
+            super.visitFields(patch);
+            fieldsPatch = patch;
+        }
+
+        @Override
+        public FieldDiffVisitor visitField(
+            int access,
+            String name,
+            String descriptor,
+            @Nullable String signature,
+            @Nullable Object value
+        ) {
+            final FieldRecording result = new FieldRecording(
+                super.visitField(access, name, descriptor, signature, value)
+            );
+            result.access = access;
+            result.signature = signature;
+            result.value = value;
+            fields.put(new MemberName(name, descriptor), result);
+            return result;
+        }
+
+        @Override
+        public void visitMethods(Patch<MemberName> patch) {
+            super.visitMethods(patch);
+            methodsPatch = patch;
+        }
+
+        @Override
+        public MethodDiffVisitor visitMethod(
+            int access,
+            String name,
+            String descriptor,
+            @Nullable String signature,
+            Patch<String> exceptions
+        ) {
+            final MethodRecording result = new MethodRecording(
+                super.visitMethod(access, name, descriptor, signature, exceptions)
+            );
+            result.access = access;
+            result.signature = signature;
+            result.exceptions = exceptions;
+            methods.put(new MemberName(name, descriptor), result);
+            return result;
+        }
+    }
+
+    private static final class RecordComponentRecording extends RecordComponentDiffVisitor {
+        String signature;
+        final AnnotationPatches annotations = new AnnotationPatches();
+        final Map<String, byte @Nullable []> attributes = new LinkedHashMap<>();
+
+        RecordComponentRecording(@Nullable RecordComponentDiffVisitor delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+            super.visitAnnotations(patch, visible);
+            annotations.visitAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+            super.visitTypeAnnotations(patch, visible);
+            annotations.visitTypeAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
+            super.visitCustomAttribute(name, patchOrContents);
+            attributes.put(name, patchOrContents);
+        }
+    }
+
+    private static final class ModuleRecording extends ModuleDiffVisitor {
+        String name;
+        int access;
+        String version;
+
+        boolean mainClassVisited;
+        String mainClass;
+        Patch<String> packages;
+        Patch<ModuleRequireNode> requires;
+        Patch<ModuleExportNode> exports;
+        Patch<ModuleOpenNode> opens;
+        Patch<String> uses;
+        Patch<ModuleProvideNode> provides;
+
+        ModuleRecording(@Nullable ModuleDiffVisitor delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void visitMainClass(@Nullable String mainClass) {
+            super.visitMainClass(mainClass);
+            mainClassVisited = true;
+            this.mainClass = mainClass;
+        }
+
+        @Override
+        public void visitPackages(Patch<String> patch) {
+            super.visitPackages(patch);
+            packages = patch;
+        }
+
+        @Override
+        public void visitRequires(Patch<ModuleRequireNode> patch) {
+            super.visitRequires(patch);
+            requires = patch;
+        }
+
+        @Override
+        public void visitExports(Patch<ModuleExportNode> patch) {
+            super.visitExports(patch);
+            exports = patch;
+        }
+
+        @Override
+        public void visitOpens(Patch<ModuleOpenNode> patch) {
+            super.visitOpens(patch);
+            opens = patch;
+        }
+
+        @Override
+        public void visitUses(Patch<String> patch) {
+            super.visitUses(patch);
+            uses = patch;
+        }
+
+        @Override
+        public void visitProvides(Patch<ModuleProvideNode> patch) {
+            super.visitProvides(patch);
+            provides = patch;
+        }
+    }
+
+    private static final class FieldRecording extends FieldDiffVisitor {
+        int access;
+        String signature;
+        Object value;
+        final AnnotationPatches annotations = new AnnotationPatches();
+        final Map<String, byte @Nullable []> attributes = new LinkedHashMap<>();
+
+        FieldRecording(@Nullable FieldDiffVisitor delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+            super.visitAnnotations(patch, visible);
+            annotations.visitAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+            super.visitTypeAnnotations(patch, visible);
+            annotations.visitTypeAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
+            super.visitCustomAttribute(name, patchOrContents);
+            attributes.put(name, patchOrContents);
+        }
+    }
+
+    private static final class ParameterAnnotations {
+        final int annotableCount;
+        final List<Patch<AnnotationNode>> patches;
+
+        ParameterAnnotations(int annotableCount, List<Patch<AnnotationNode>> patches) {
+            this.annotableCount = annotableCount;
+            this.patches = patches;
+        }
+    }
+
+    private static final class LocalVariableAnnotations {
+        final List<LocalVariableAnnotationNode> annotations;
+        @Nullable
+        final LabelMap useMap;
+
+        LocalVariableAnnotations(List<LocalVariableAnnotationNode> annotations, @Nullable LabelMap useMap) {
+            this.annotations = annotations;
+            this.useMap = useMap;
+        }
+    }
+
+    private static final class InsnAnnotations {
+        final int[] indices;
+        final List<TypeAnnotationNode> annotations;
+
+        InsnAnnotations(int[] indices, List<TypeAnnotationNode> annotations) {
+            this.indices = indices;
+            this.annotations = annotations;
+        }
+    }
+
+    private static final class MethodRecording extends MethodDiffVisitor {
+        int access;
+        String signature;
+        Patch<String> exceptions;
+
+        final AnnotationPatches annotations = new AnnotationPatches();
+
+        boolean annotationDefaultVisited;
+        Object annotationDefault;
+
+        ParameterAnnotations visibleParameterAnnotations;
+        ParameterAnnotations invisibleParameterAnnotations;
+
+        Patch<ParameterNode> parameters;
+
+        final Map<String, byte @Nullable []> attributes = new LinkedHashMap<>();
+
+        boolean maxsVisited;
+        int maxStack;
+        int maxLocals;
+
+        Patch<AbstractInsnNode> insns;
+
+        boolean localsVisited;
+        List<LocalVariableNode> locals;
+        LabelMap localsMap;
+
+        boolean tryCatchBlocksVisited;
+        List<TryCatchBlockNode> tryCatchBlocks;
+        LabelMap tryCatchBlocksMap;
+
+        LocalVariableAnnotations visibleLocalVariableAnnotations;
+        LocalVariableAnnotations invisibleLocalVariableAnnotations;
+
+        InsnAnnotations visibleInsnAnnotations;
+        InsnAnnotations invisibleInsnAnnotations;
+
+        MethodRecording(@Nullable MethodDiffVisitor delegate) {
+            super(delegate);
+        }
+
+        ParameterAnnotations getParameterAnnotations(boolean visible) {
+            return visible ? visibleParameterAnnotations : invisibleParameterAnnotations;
+        }
+
+        LocalVariableAnnotations getLocalVariableAnnotations(boolean visible) {
+            return visible ? visibleLocalVariableAnnotations : invisibleLocalVariableAnnotations;
+        }
+
+        InsnAnnotations getInsnAnnotations(boolean visible) {
+            return visible ? visibleInsnAnnotations : invisibleInsnAnnotations;
+        }
+
+        @Override
+        public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+            super.visitAnnotations(patch, visible);
+            annotations.visitAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+            super.visitTypeAnnotations(patch, visible);
+            annotations.visitTypeAnnotations(patch, visible);
+        }
+
+        @Override
+        public void visitAnnotationDefault(@Nullable Object value) {
+            super.visitAnnotationDefault(value);
+            annotationDefaultVisited = true;
+            annotationDefault = value;
+        }
+
+        @Override
+        public void visitParameterAnnotations(int annotableCount, List<Patch<AnnotationNode>> patches, boolean visible) {
+            super.visitParameterAnnotations(annotableCount, patches, visible);
+            if (visible) {
+                visibleParameterAnnotations = new ParameterAnnotations(annotableCount, patches);
+            } else {
+                invisibleParameterAnnotations = new ParameterAnnotations(annotableCount, patches);
+            }
+        }
+
+        @Override
+        public void visitParameters(Patch<ParameterNode> parameters) {
+            super.visitParameters(parameters);
+            this.parameters = parameters;
+        }
+
+        @Override
+        public void visitCustomAttribute(String name, byte @Nullable [] patchOrContents) {
+            super.visitCustomAttribute(name, patchOrContents);
+            attributes.put(name, patchOrContents);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(maxStack, maxLocals);
+            maxsVisited = true;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        @Override
+        public void visitInsns(int unpatchedInsnCount, Patch<AbstractInsnNode> patch, Supplier<LabelMap> patchedLabelMap) {
+            super.visitInsns(unpatchedInsnCount, patch, patchedLabelMap);
+            insns = patch;
+        }
+
+        @Override
+        public void visitLocalVariables(List<LocalVariableNode> newLocals, @Nullable LabelMap useMap) {
+            super.visitLocalVariables(newLocals, useMap);
+            localsVisited = true;
+            locals = newLocals;
+            localsMap = useMap;
+        }
+
+        @Override
+        public void visitTryCatchBlocks(List<TryCatchBlockNode> newBlocks, @Nullable LabelMap useMap) {
+            super.visitTryCatchBlocks(newBlocks, useMap);
+            tryCatchBlocksVisited = true;
+            tryCatchBlocks = newBlocks;
+            tryCatchBlocksMap = useMap;
+        }
+
+        @Override
+        public void visitLocalVariableAnnotations(List<LocalVariableAnnotationNode> annotations, boolean visible, @Nullable LabelMap useMap) {
+            super.visitLocalVariableAnnotations(annotations, visible, useMap);
+            if (visible) {
+                visibleLocalVariableAnnotations = new LocalVariableAnnotations(annotations, useMap);
+            } else {
+                invisibleLocalVariableAnnotations = new LocalVariableAnnotations(annotations, useMap);
+            }
+        }
+
+        @Override
+        public void visitInsnAnnotations(int[] indices, List<TypeAnnotationNode> annotations, boolean visible) {
+            super.visitInsnAnnotations(indices, annotations, visible);
+            if (visible) {
+                visibleInsnAnnotations = new InsnAnnotations(indices, annotations);
+            } else {
+                invisibleInsnAnnotations = new InsnAnnotations(indices, annotations);
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package io.github.prcraftmc.classdiff;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.patch.Patch;
+import com.github.difflib.patch.PatchFailedException;
+import io.github.prcraftmc.classdiff.format.*;
+import io.github.prcraftmc.classdiff.util.*;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Checks whether a diff applies to a class without patching it. The class is never mutated, and no patched
+ * instruction lists are built.
+ */
+public class PatchValidator extends DiffVisitor {
+    private final ClassNode node;
+    private final List<String> problems = new ArrayList<>();
+
+    private Set<MemberName> patchedRecordComponents;
+    private Set<MemberName> patchedFields;
+    private Set<MemberName> patchedMethods;
+
+    public PatchValidator(ClassNode node) {
+        this.node = node;
+    }
+
+    /**
+     * @return A list of reasons the patch would fail to apply. Empty if the patch applies cleanly.
+     */
+    public static List<String> validate(ClassNode node, DiffReader patch) {
+        final PatchValidator validator = new PatchValidator(node);
+        try {
+            patch.accept(validator, node);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            validator.problems.add(e.getMessage());
+        }
+        return validator.getProblems();
+    }
+
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    public boolean isValid() {
+        return problems.isEmpty();
+    }
+
+    @Override
+    public void visitClassHashes(long baseHash, long targetHash) {
+        final long actualHash = Hashing.hashClass(node);
+        if (actualHash != baseHash) {
+            problems.add(ClassPatcher.getHashMismatchMessage(node, baseHash, actualHash));
+        }
+    }
+
+    @Override
+    public void visit(
+        int diffVersion,
+        int classVersion,
+        int access,
+        @Nullable String name,
+        @Nullable String signature,
+        @Nullable String superName,
+        @Nullable Patch<String> interfaces
+    ) {
+        if (interfaces != null) {
+            checkPatch("interfaces", interfaces, node.interfaces);
+        }
+    }
+
+    @Override
+    public void visitInnerClasses(Patch<InnerClassNode> patch) {
+        checkPatch("inner classes", patch, node.innerClasses);
+    }
+
+    @Override
+    public void visitNestMembers(Patch<String> patch) {
+        checkPatch("nest members", patch, node.nestMembers);
+    }
+
+    @Override
+    public void visitPermittedSubclasses(Patch<String> patch) {
+        checkPatch("permitted subclasses", patch, node.permittedSubclasses);
+    }
+
+    @Override
+    public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+        checkPatch(
+            visible ? "visible annotations" : "invisible annotations",
+            patch, visible ? node.visibleAnnotations : node.invisibleAnnotations
+        );
+    }
+
+    @Override
+    public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+        checkPatch(
+            visible ? "visible type annotations" : "invisible type annotations",
+            patch, visible ? node.visibleTypeAnnotations : node.invisibleTypeAnnotations
+        );
+    }
+
+    @Override
+    public void visitRecordComponents(Patch<MemberName> patch) {
+        patchedRecordComponents = applyMemberPatch(
+            "record components", patch, MemberName.fromRecordComponents(node.recordComponents)
+        );
+    }
+
+    @Nullable
+    @Override
+    public RecordComponentDiffVisitor visitRecordComponent(String name, String descriptor, @Nullable String signature) {
+        final MemberName memberName = new MemberName(name, descriptor);
+        if (patchedRecordComponents == null) {
+            patchedRecordComponents = new HashSet<>(MemberName.fromRecordComponents(node.recordComponents));
+        }
+        if (!patchedRecordComponents.contains(memberName)) {
+            problems.add("Record component " + memberName + " is patched, but is not present after patching");
+        }
+
+        RecordComponentNode baseNode = null;
+        if (node.recordComponents != null) {
+            for (final RecordComponentNode test : node.recordComponents) {
+                if (test.name.equals(name) && test.descriptor.equals(descriptor)) {
+                    baseNode = test;
+                    break;
+                }
+            }
+        }
+        final String where = "record component " + memberName;
+        final RecordComponentNode fBaseNode = baseNode;
+        return new RecordComponentDiffVisitor() {
+            @Override
+            public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+                checkPatch(
+                    where, patch, fBaseNode == null ? null :
+                        visible ? fBaseNode.visibleAnnotations : fBaseNode.invisibleAnnotations
+                );
+            }
+
+            @Override
+            public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+                checkPatch(
+                    where, patch, fBaseNode == null ? null :
+                        visible ? fBaseNode.visibleTypeAnnotations : fBaseNode.invisibleTypeAnnotations
+                );
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public ModuleDiffVisitor visitModule(@Nullable String name, int access, @Nullable String version) {
+        if (name == null) {
+            return null;
+        }
+        final ModuleNode module = node.module;
+        return new ModuleDiffVisitor() {
+            @Override
+            public void visitPackages(Patch<String> patch) {
+                checkPatch("module packages", patch, module != null ? module.packages : null);
+            }
+
+            @Override
+            public void visitRequires(Patch<ModuleRequireNode> patch) {
+                checkPatch("module requires", patch, module != null ? module.requires : null);
+            }
+
+            @Override
+            public void visitExports(Patch<ModuleExportNode> patch) {
+                checkPatch("module exports", patch, module != null ? module.exports : null);
+            }
+
+            @Override
+            public void visitOpens(Patch<ModuleOpenNode> patch) {
+                checkPatch("module opens", patch, module != null ? module.opens : null);
+            }
+
+            @Override
+            public void visitUses(Patch<String> patch) {
+                checkPatch("module uses", patch, module != null ? module.uses : null);
+            }
+
+            @Override
+            public void visitProvides(Patch<ModuleProvideNode> patch) {
+                checkPatch("module provides", patch, module != null ? module.provides : null);
+            }
+        };
+    }
+
+    @Override
+    public void visitFields(Patch<MemberName> patch) {
+        patchedFields = applyMemberPatch("fields", patch, MemberName.fromFields(node.fields));
+    }
+
+    @Nullable
+    @Override
+    public FieldDiffVisitor visitField(
+        int access,
+        String name,
+        String descriptor,
+        @Nullable String signature,
+        @Nullable Object value
+    ) {
+        final MemberName memberName = new MemberName(name, descriptor);
+        if (patchedFields != null && !patchedFields.contains(memberName)) {
+            problems.add("Field " + memberName + " is patched, but is not present after patching");
+        }
+
+        FieldNode baseNode = null;
+        if (node.fields != null) {
+            for (final FieldNode test : node.fields) {
+                if (test.name.equals(name) && test.desc.equals(descriptor)) {
+                    baseNode = test;
+                    break;
+                }
+            }
+        }
+        final String where = "field " + memberName;
+        final FieldNode fBaseNode = baseNode;
+        return new FieldDiffVisitor() {
+            @Override
+            public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+                checkPatch(
+                    where, patch, fBaseNode == null ? null :
+                        visible ? fBaseNode.visibleAnnotations : fBaseNode.invisibleAnnotations
+                );
+            }
+
+            @Override
+            public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+                checkPatch(
+                    where, patch, fBaseNode == null ? null :
+                        visible ? fBaseNode.visibleTypeAnnotations : fBaseNode.invisibleTypeAnnotations
+                );
+            }
+        };
+    }
+
+    @Override
+    public void visitMethods(Patch<MemberName> patch) {
+        patchedMethods = applyMemberPatch("methods", patch, MemberName.fromMethods(node.methods));
+    }
+
+    @Nullable
+    @Override
+    public MethodDiffVisitor visitMethod(
+        int access,
+        String name,
+        String descriptor,
+        @Nullable String signature,
+        Patch<String> exceptions
+    ) {
+        final MemberName memberName = new MemberName(name, descriptor);
+        if (patchedMethods != null && !patchedMethods.contains(memberName)) {
+            problems.add("Method " + memberName + " is patched, but is not present after patching");
+        }
+
+        MethodNode baseNode = null;
+        if (node.methods != null) {
+            for (final MethodNode test : node.methods) {
+                if (test.name.equals(name) && test.desc.equals(descriptor)) {
+                    baseNode = test;
+                    break;
+                }
+            }
+        }
+        if (baseNode == null) {
+            baseNode = new MethodNode(access, name, descriptor, signature, null);
+        }
+        final String where = "method " + memberName;
+        checkPatch(where + " exceptions", exceptions, baseNode.exceptions);
+
+        final MethodNode fBaseNode = baseNode;
+        final int baseLabelCount = countLabels(baseNode.instructions);
+        return new MethodDiffVisitor() {
+            boolean insnsPatched;
+            int patchedInsnCount = fBaseNode.instructions.size();
+            int patchedLabelCount = baseLabelCount;
+
+            @Override
+            public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
+                checkPatch(where, patch, visible ? fBaseNode.visibleAnnotations : fBaseNode.invisibleAnnotations);
+            }
+
+            @Override
+            public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
+                checkPatch(where, patch, visible ? fBaseNode.visibleTypeAnnotations : fBaseNode.invisibleTypeAnnotations);
+            }
+
+            @Override
+            public void visitParameterAnnotations(int annotableCount, List<Patch<AnnotationNode>> patches, boolean visible) {
+                for (int i = 0; i < patches.size(); i++) {
+                    checkPatch(
+                        where + " parameter " + i, patches.get(i),
+                        Util.getListFromArray(
+                            visible ? fBaseNode.visibleParameterAnnotations : fBaseNode.invisibleParameterAnnotations, i
+                        )
+                    );
+                }
+            }
+
+            @Override
+            public void visitParameters(Patch<ParameterNode> parameters) {
+                checkPatch(where + " parameters", parameters, fBaseNode.parameters);
+            }
+
+            @Override
+            public void visitInsns(int unpatchedInsnCount, Patch<AbstractInsnNode> patch, Supplier<LabelMap> patchedLabelMap) {
+                if (unpatchedInsnCount != fBaseNode.instructions.size()) {
+                    problems.add(
+                        "Instruction size for " + name + descriptor + " was " + fBaseNode.instructions.size() + ". "
+                            + unpatchedInsnCount + " instructions were expected."
+                    );
+                    return;
+                }
+                if (!checkPatch(where + " instructions", patch, new InsnListAdapter(fBaseNode.instructions))) {
+                    return;
+                }
+
+                insnsPatched = true;
+                for (final AbstractDelta<AbstractInsnNode> delta : patch.getDeltas()) {
+                    patchedInsnCount += delta.getTarget().size() - delta.getSource().size();
+                    patchedLabelCount += countLabels(delta.getTarget().getLines()) - countLabels(delta.getSource().getLines());
+                }
+                for (final AbstractDelta<AbstractInsnNode> delta : patch.getDeltas()) {
+                    for (final AbstractInsnNode insn : delta.getTarget().getLines()) {
+                        checkInsnLabels(insn, patchedLabelCount);
+                    }
+                }
+            }
+
+            @Override
+            public void visitLocalVariables(List<LocalVariableNode> newLocals, @Nullable LabelMap useMap) {
+                final int labelCount = getLabelCount(useMap);
+                for (final LocalVariableNode local : newLocals) {
+                    checkLabel(where + " local variable " + local.name, local.start, labelCount);
+                    checkLabel(where + " local variable " + local.name, local.end, labelCount);
+                }
+            }
+
+            @Override
+            public void visitTryCatchBlocks(List<TryCatchBlockNode> newBlocks, @Nullable LabelMap useMap) {
+                final int labelCount = getLabelCount(useMap);
+                for (final TryCatchBlockNode block : newBlocks) {
+                    checkLabel(where + " try-catch block", block.start, labelCount);
+                    checkLabel(where + " try-catch block", block.end, labelCount);
+                    checkLabel(where + " try-catch block", block.handler, labelCount);
+                }
+            }
+
+            @Override
+            public void visitLocalVariableAnnotations(List<LocalVariableAnnotationNode> annotations, boolean visible, @Nullable LabelMap useMap) {
+                final int labelCount = getLabelCount(useMap);
+                for (final LocalVariableAnnotationNode annotation : annotations) {
+                    for (final LabelNode label : annotation.start) {
+                        checkLabel(where + " local variable annotation", label, labelCount);
+                    }
+                    for (final LabelNode label : annotation.end) {
+                        checkLabel(where + " local variable annotation", label, labelCount);
+                    }
+                }
+            }
+
+            @Override
+            public void visitInsnAnnotations(int[] indices, List<TypeAnnotationNode> annotations, boolean visible) {
+                for (final int index : indices) {
+                    if (index < 0 || index >= patchedInsnCount) {
+                        problems.add(
+                            "Instruction annotation in " + where + " refers to instruction " + index +
+                                ", but there are only " + patchedInsnCount + " instructions after patching"
+                        );
+                    }
+                }
+            }
+
+            private int getLabelCount(@Nullable LabelMap useMap) {
+                if (useMap != null) {
+                    return useMap.size();
+                }
+                return insnsPatched ? patchedLabelCount : baseLabelCount;
+            }
+
+            private void checkInsnLabels(AbstractInsnNode insn, int labelCount) {
+                final String insnWhere = where + " instruction";
+                switch (insn.getType()) {
+                    case AbstractInsnNode.JUMP_INSN:
+                        checkLabel(insnWhere, ((JumpInsnNode)insn).label, labelCount);
+                        break;
+                    case AbstractInsnNode.TABLESWITCH_INSN: {
+                        final TableSwitchInsnNode tableSwitchInsn = (TableSwitchInsnNode)insn;
+                        checkLabel(insnWhere, tableSwitchInsn.dflt, labelCount);
+                        for (final LabelNode label : tableSwitchInsn.labels) {
+                            checkLabel(insnWhere, label, labelCount);
+                        }
+                        break;
+                    }
+                    case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                        final LookupSwitchInsnNode lookupSwitchInsn = (LookupSwitchInsnNode)insn;
+                        checkLabel(insnWhere, lookupSwitchInsn.dflt, labelCount);
+                        for (final LabelNode label : lookupSwitchInsn.labels) {
+                            checkLabel(insnWhere, label, labelCount);
+                        }
+                        break;
+                    }
+                    case AbstractInsnNode.LINE:
+                        checkLabel(insnWhere, ((LineNumberNode)insn).start, labelCount);
+                        break;
+                    case AbstractInsnNode.FRAME: {
+                        final FrameNode frame = (FrameNode)insn;
+                        if (frame.local != null) {
+                            for (final Object o : frame.local) {
+                                if (o instanceof LabelNode) {
+                                    checkLabel(insnWhere, (LabelNode)o, labelCount);
+                                }
+                            }
+                        }
+                        if (frame.stack != null) {
+                            for (final Object o : frame.stack) {
+                                if (o instanceof LabelNode) {
+                                    checkLabel(insnWhere, (LabelNode)o, labelCount);
+                                }
+                            }
+                        }
+                        break;
+                    }
+                }
+            }
+        };
+    }
+
+    private void checkLabel(String where, LabelNode label, int labelCount) {
+        if (label instanceof SyntheticLabelNode) {
+            final int id = ((SyntheticLabelNode)label).getId();
+            if (id >= labelCount) {
+                problems.add(
+                    "Label " + id + " in " + where + " is out of range. There are only " + labelCount + " labels"
+                );
+            }
+        }
+    }
+
+    private boolean checkPatch(String where, Patch<?> patch, @Nullable List<?> original) {
+        final int size = original != null ? original.size() : 0;
+        int end = 0;
+        for (final AbstractDelta<?> delta : patch.getDeltas()) {
+            final int position = delta.getSource().getPosition();
+            if (position < end) {
+                problems.add("Patch for " + where + " has overlapping or out of order deltas at " + position);
+                return false;
+            }
+            end = position + delta.getSource().size();
+            if (end > size) {
+                problems.add(
+                    "Patch for " + where + " has a delta at " + position + " with length " + delta.getSource().size() +
+                        ", which is out of bounds for " + size + " elements"
+                );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private Set<MemberName> applyMemberPatch(String where, Patch<MemberName> patch, List<MemberName> original) {
+        if (!checkPatch(where, patch, original)) {
+            return null;
+        }
+        try {
+            return new HashSet<>(patch.applyTo(original));
+        } catch (PatchFailedException e) {
+            problems.add("Patch for " + where + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static int countLabels(Iterable<AbstractInsnNode> insns) {
+        int count = 0;
+        for (final AbstractInsnNode insn : insns) {
+            if (insn instanceof LabelNode && !(insn instanceof SyntheticLabelNode)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
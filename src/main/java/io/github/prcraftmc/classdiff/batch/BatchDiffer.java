@@ -0,0 +1,252 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import io.github.prcraftmc.classdiff.ClassDiffer;
+import io.github.prcraftmc.classdiff.format.DiffWriter;
+import io.github.prcraftmc.classdiff.util.ClassNodeCache;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Diffs every class in a directory or archive against the class at the same path in another, and writes a
+ * {@code .cdiff} file for each class that changed. Files are read and written on an
+ * {@link BatchExecutors#newIoExecutor() I/O executor}, while diffing runs on a bounded pool of platform threads that
+ * each reuse one {@link DiffWriter}.
+ * <p>
+ * Classes are read largest first, and the diffing threads always take the class with the highest estimated cost out
+ * of those that have been read, so the total time is close to the time taken by the largest class.
+ */
+public class BatchDiffer {
+    /**
+     * How many classes can be read but not yet written at once, which bounds memory use.
+     */
+    private static final int MAX_PENDING = 1024;
+
+    private final int flags;
+    private final int threads;
+    @Nullable
+    private ClassNodeCache classCache;
+    @Nullable
+    private DiffCache diffCache;
+
+    public BatchDiffer() {
+        this(0);
+    }
+
+    public BatchDiffer(int flags) {
+        this(flags, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param flags The {@link ClassDiffer} flags to diff with
+     * @param threads The number of threads to diff on
+     */
+    public BatchDiffer(int flags, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.flags = flags;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets a cache to parse the original classes with, so that diffing the same original classes against several
+     * versions parses them only once.
+     */
+    public BatchDiffer setClassCache(@Nullable ClassNodeCache classCache) {
+        this.classCache = classCache;
+        return this;
+    }
+
+    /**
+     * Sets a cache of diffs to check before diffing each class, and to add new diffs to. The cache is
+     * {@link DiffCache#prune() pruned} at the end of each batch.
+     */
+    public BatchDiffer setDiffCache(@Nullable DiffCache diffCache) {
+        this.diffCache = diffCache;
+        return this;
+    }
+
+    /**
+     * @param original A directory or archive of the original classes
+     * @param modified A directory or archive of the modified classes
+     * @param output The directory to write the diffs to. The diff for {@code a/B.class} is written to {@code a/B.cdiff}.
+     */
+    public Result diff(Path original, Path modified, Path output) throws IOException {
+        try (
+            FileTree originalTree = FileTree.open(original, ".class");
+            FileTree modifiedTree = FileTree.open(modified, ".class")
+        ) {
+            return diff(originalTree, modifiedTree, output);
+        }
+    }
+
+    public Result diff(FileTree original, FileTree modified, Path output) throws IOException {
+        final List<String> changed = Collections.synchronizedList(new ArrayList<>());
+        final List<String> added = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+
+        final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        final List<CompletableFuture<?>> tasks = new ArrayList<>();
+        final ExecutorService io = BatchExecutors.newIoExecutor();
+        final BatchExecutors.CostOrderedExecutor cpu = BatchExecutors.newCostOrderedExecutor(threads);
+        try {
+            final List<String> common = new ArrayList<>();
+            for (final String name : modified.getNames()) {
+                if (original.contains(name)) {
+                    common.add(name);
+                } else {
+                    added.add(name);
+                }
+            }
+            for (final String name : CostEstimator.sortBySize(common, original, modified)) {
+                pending.acquireUninterruptibly();
+                tasks.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        final Job job = new Job(original.read(name), modified.read(name));
+                        if (diffCache != null && !Arrays.equals(job.original, job.modified)) {
+                            job.diff = diffCache.get(job.original, job.modified, flags);
+                            job.cached = job.diff != null;
+                        }
+                        return job;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, io).thenCompose(job -> {
+                    if (job.diff != null || Arrays.equals(job.original, job.modified)) {
+                        return CompletableFuture.completedFuture(job);
+                    }
+                    return CompletableFuture.supplyAsync(() -> {
+                        job.diff = workers.get().diff(job.original, job.modified);
+                        return job;
+                    }, cpu.withCost(CostEstimator.estimate(job.original, job.modified)));
+                }).thenAcceptAsync(job -> {
+                    if (job.diff == null) {
+                        return;
+                    }
+                    try {
+                        write(output.resolve(getDiffName(name)), job.diff);
+                        if (diffCache != null && !job.cached) {
+                            diffCache.put(job.original, job.modified, flags, job.diff);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    changed.add(name);
+                }, io).whenComplete((result, t) -> pending.release()));
+            }
+            for (final String name : original.getNames()) {
+                if (!modified.contains(name)) {
+                    removed.add(name);
+                }
+            }
+            BatchExecutors.joinAll(tasks);
+            if (diffCache != null) {
+                diffCache.prune();
+            }
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+
+        final List<String> sortedChanged = new ArrayList<>(changed);
+        Collections.sort(sortedChanged);
+        return new Result(sortedChanged, added, removed);
+    }
+
+    /**
+     * Returns the name of the diff for the class file {@code className}.
+     */
+    public static String getDiffName(String className) {
+        final String baseName = className.endsWith(".class")
+            ? className.substring(0, className.length() - 6) : className;
+        return baseName + ".cdiff";
+    }
+
+    static void write(Path path, byte[] contents) throws IOException {
+        final Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(path, contents);
+    }
+
+    static ClassNode readOriginal(@Nullable ClassNodeCache cache, byte[] classFile) {
+        return cache != null ? cache.get(classFile, 0) : readClass(classFile);
+    }
+
+    static ClassNode readClass(byte[] classFile) {
+        final ClassNode node = new ClassNode();
+        new ClassReader(classFile).accept(node, 0);
+        return node;
+    }
+
+    private static final class Job {
+        final byte[] original;
+        final byte[] modified;
+        byte @Nullable [] diff;
+        boolean cached;
+
+        Job(byte[] original, byte[] modified) {
+            this.original = original;
+            this.modified = modified;
+        }
+    }
+
+    private final class Worker {
+        final DiffWriter writer = new DiffWriter();
+        final ClassDiffer differ = new ClassDiffer(writer, flags);
+
+        byte[] diff(byte[] original, byte[] modified) {
+            writer.reset();
+            differ.accept(readOriginal(classCache, original), readClass(modified));
+            return writer.toByteArray();
+        }
+    }
+
+    /**
+     * The classes in a batch, by their path in the modified directory or archive.
+     */
+    public static final class Result {
+        private final List<String> changed;
+        private final List<String> added;
+        private final List<String> removed;
+
+        Result(List<String> changed, List<String> added, List<String> removed) {
+            this.changed = Collections.unmodifiableList(changed);
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Returns the classes that a diff was written for.
+         */
+        public List<String> getChanged() {
+            return changed;
+        }
+
+        /**
+         * Returns the classes that are only in the modified classes, which can't be diffed.
+         */
+        public List<String> getAdded() {
+            return added;
+        }
+
+        /**
+         * Returns the classes that are only in the original classes.
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+}
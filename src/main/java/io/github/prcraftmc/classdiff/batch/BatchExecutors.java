@@ -0,0 +1,167 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executors that the batch front ends split their work between. Reading and writing files blocks, so it runs on
+ * an {@link #newIoExecutor() I/O executor}, while diffing and patching run on a {@link #newCpuExecutor bounded pool} of
+ * platform threads.
+ */
+public final class BatchExecutors {
+    @Nullable
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadExecutor();
+
+    private BatchExecutors() {
+    }
+
+    /**
+     * Returns whether {@link #newIoExecutor()} uses virtual threads, which needs Java 21 or later.
+     */
+    public static boolean hasVirtualThreads() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor for blocking file and archive I/O. On Java 21 and later, this starts a virtual thread for
+     * each task, so any number of tasks can wait on I/O at once. On older versions, it's a pool of four daemon threads
+     * per processor.
+     */
+    public static ExecutorService newIoExecutor() {
+        return newIoExecutor(0);
+    }
+
+    /**
+     * Like {@link #newIoExecutor()}, but without virtual threads the pool has at least {@code minThreads} threads, so
+     * that many long-running tasks can run at once.
+     */
+    static ExecutorService newIoExecutor(int minThreads) {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService)NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(
+            Math.max(minThreads, 4 * Runtime.getRuntime().availableProcessors()), daemonThreads("class-diff-io-")
+        );
+    }
+
+    /**
+     * Returns a pool of {@code threads} daemon platform threads for CPU-bound work such as diffing and patching.
+     */
+    public static ExecutorService newCpuExecutor(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        return Executors.newFixedThreadPool(threads, daemonThreads("class-diff-worker-"));
+    }
+
+    /**
+     * Like {@link #newCpuExecutor}, but the queued task with the highest cost runs first, rather than the oldest. Idle
+     * threads always take the most expensive task left, so the expensive tasks start early and the cheap ones fill in
+     * around them.
+     */
+    static CostOrderedExecutor newCostOrderedExecutor(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        return new CostOrderedExecutor(threads);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return task -> {
+            final Thread thread = new Thread(task, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Waits for every task to finish, and rethrows the first failure.
+     */
+    static void joinAll(List<CompletableFuture<?>> tasks) throws IOException {
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+
+    static final class CostOrderedExecutor {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong sequence = new AtomicLong();
+
+        CostOrderedExecutor(int threads) {
+            executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), daemonThreads("class-diff-worker-")
+            );
+            // Otherwise the first tasks are handed straight to new threads, regardless of their cost
+            executor.prestartAllCoreThreads();
+        }
+
+        /**
+         * Returns an executor that queues its tasks with the given cost.
+         */
+        Executor withCost(long cost) {
+            return task -> executor.execute(new CostedTask(task, cost, sequence.getAndIncrement()));
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    private static final class CostedTask implements Runnable, Comparable<CostedTask> {
+        private final Runnable task;
+        private final long cost;
+        private final long sequence;
+
+        CostedTask(Runnable task, long cost, long sequence) {
+            this.task = task;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(CostedTask o) {
+            final int result = Long.compare(o.cost, cost);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    @Nullable
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import io.github.prcraftmc.classdiff.ClassPatcher;
+import io.github.prcraftmc.classdiff.format.DiffReader;
+import io.github.prcraftmc.classdiff.util.ClassNodeCache;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Applies a directory or archive of diffs written by {@link BatchDiffer} to a directory or archive of classes. Files
+ * are read and written on an {@link BatchExecutors#newIoExecutor() I/O executor}, while patching runs on a bounded pool
+ * of platform threads.
+ */
+public class BatchPatcher {
+    private static final int MAX_PENDING = 1024;
+
+    private final int threads;
+    @Nullable
+    private ClassNodeCache classCache;
+
+    public BatchPatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The number of threads to patch on
+     */
+    public BatchPatcher(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets a cache to parse the classes with. Cached classes are patched with {@link ClassPatcher#patchCopy}, so
+     * patching the same classes several times parses them only once.
+     */
+    public BatchPatcher setClassCache(@Nullable ClassNodeCache classCache) {
+        this.classCache = classCache;
+        return this;
+    }
+
+    /**
+     * Writes every class in {@code classes} to {@code output}, patched if it has a diff in {@code diffs}.
+     *
+     * @param output The directory to write the classes to
+     * @return The classes that were patched
+     * @throws IllegalArgumentException If there's a diff for a class that isn't in {@code classes}
+     */
+    public List<String> patch(Path classes, Path diffs, Path output) throws IOException {
+        try (
+            FileTree classTree = FileTree.open(classes, ".class");
+            FileTree diffTree = FileTree.open(diffs, ".cdiff")
+        ) {
+            return patch(classTree, diffTree, output);
+        }
+    }
+
+    public List<String> patch(FileTree classes, FileTree diffs, Path output) throws IOException {
+        final List<String> patched = new ArrayList<>();
+        for (final String name : classes.getNames()) {
+            if (diffs.contains(BatchDiffer.getDiffName(name))) {
+                patched.add(name);
+            }
+        }
+        if (patched.size() != diffs.getNames().size()) {
+            for (final String diffName : diffs.getNames()) {
+                final String name = diffName.substring(0, diffName.length() - 6) + ".class";
+                if (!classes.contains(name)) {
+                    throw new IllegalArgumentException("Found diff " + diffName + " for missing class " + name);
+                }
+            }
+        }
+
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        final List<CompletableFuture<?>> tasks = new ArrayList<>();
+        final ExecutorService io = BatchExecutors.newIoExecutor();
+        final ExecutorService cpu = BatchExecutors.newCpuExecutor(threads);
+        try {
+            for (final String name : classes.getNames()) {
+                final String diffName = BatchDiffer.getDiffName(name);
+                final Path target = output.resolve(name);
+                pending.acquireUninterruptibly();
+                final CompletableFuture<?> task;
+                if (!diffs.contains(diffName)) {
+                    task = CompletableFuture.runAsync(() -> {
+                        try {
+                            BatchDiffer.write(target, classes.read(name));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, io);
+                } else {
+                    task = CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return new byte[][] {classes.read(name), diffs.read(diffName)};
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, io).thenApplyAsync(
+                        files -> patch(files[0], files[1]), cpu
+                    ).thenAcceptAsync(result -> {
+                        try {
+                            BatchDiffer.write(target, result);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, io);
+                }
+                tasks.add(task.whenComplete((result, t) -> pending.release()));
+            }
+            BatchExecutors.joinAll(tasks);
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+        return Collections.unmodifiableList(patched);
+    }
+
+    private byte[] patch(byte[] classFile, byte[] diff) {
+        final ClassNode node;
+        if (classCache != null) {
+            node = ClassPatcher.patchCopy(classCache.get(classFile, 0), new DiffReader(diff));
+        } else {
+            node = BatchDiffer.readClass(classFile);
+            ClassPatcher.patch(node, new DiffReader(diff));
+        }
+        final ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+}
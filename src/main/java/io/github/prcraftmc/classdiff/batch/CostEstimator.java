@@ -0,0 +1,78 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Estimates how long a pair of classes takes to diff, so that the batch front ends can start the most expensive
+ * classes first. Without this, one huge class that happens to be scheduled last keeps a single thread busy after the
+ * others have run out of work.
+ */
+final class CostEstimator {
+    /**
+     * The extra cost of each method, in bytes. Methods are diffed one instruction list at a time, which costs more than
+     * the size of their bytecode alone suggests.
+     */
+    static final long METHOD_COST = 256;
+
+    private CostEstimator() {
+    }
+
+    /**
+     * Returns {@code names} sorted by the combined size of the original and modified files, largest first. Names that
+     * are only in {@code modified} are sorted by their size there.
+     */
+    static List<String> sortBySize(Collection<String> names, FileTree original, FileTree modified) throws IOException {
+        final Map<String, Long> sizes = new HashMap<>();
+        for (final String name : names) {
+            long size = modified.getSize(name);
+            if (original.contains(name)) {
+                size += original.getSize(name);
+            }
+            sizes.put(name, size);
+        }
+        final List<String> result = new ArrayList<>(names);
+        result.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+        return result;
+    }
+
+    /**
+     * Returns the estimated cost of diffing {@code original} against {@code modified}, from their sizes and their
+     * method counts.
+     */
+    static long estimate(byte[] original, byte[] modified) {
+        return original.length + modified.length + METHOD_COST * ((long)countMethods(original) + countMethods(modified));
+    }
+
+    /**
+     * Returns the number of methods in {@code classFile}, or {@code 0} if it's malformed, without parsing anything but
+     * the constant pool.
+     */
+    static int countMethods(byte[] classFile) {
+        try {
+            final ClassReader reader = new ClassReader(classFile);
+            int offset = reader.header + 6;
+            offset += 2 + 2 * reader.readUnsignedShort(offset);
+            int fields = reader.readUnsignedShort(offset);
+            offset += 2;
+            while (fields-- > 0) {
+                offset = skipMember(reader, offset);
+            }
+            return reader.readUnsignedShort(offset);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static int skipMember(ClassReader reader, int offset) {
+        offset += 6;
+        int attributes = reader.readUnsignedShort(offset);
+        offset += 2;
+        while (attributes-- > 0) {
+            offset += 6 + reader.readInt(offset + 2);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,327 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import io.github.prcraftmc.classdiff.format.DiffConstants;
+import io.github.prcraftmc.classdiff.util.Hashing;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single file holding the changes to many classes, as written by {@link DiffPipeline}. Each entry is the diff for
+ * a changed class, the contents of an added class, or a marker for a removed class.
+ * <p>
+ * The file starts with {@link DiffConstants#BUNDLE_MAGIC} and a version, followed by the entries back to back. Each
+ * entry is its {@link Kind}, its name, and its length-prefixed contents. After the entries comes an index of every
+ * entry's kind, name, offset, and length, and the file ends with the offset of the index and the magic again, so that
+ * an entry can be read without reading the others. Since version 2, the index also has the
+ * {@link io.github.prcraftmc.classdiff.util.Hashing#hash hash} and length of the class each entry produces, so that
+ * {@link DiffPipeline#update} can tell which entries are still up to date. Entries can be read from any thread.
+ */
+public final class DiffBundle implements Closeable {
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 6;
+    private static final int FOOTER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+
+    private DiffBundle(FileChannel channel, Map<String, Entry> entries) {
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * @throws IllegalArgumentException If {@code path} isn't a diff bundle
+     */
+    public static DiffBundle open(Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new DiffBundle(channel, readIndex(channel));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Map<String, Entry> readIndex(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            throw new IllegalArgumentException("Diff bundle is only " + size + " bytes long");
+        }
+        final ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+        if (header.getInt() != DiffConstants.BUNDLE_MAGIC) {
+            throw new IllegalArgumentException("Diff bundle did not start with magic 0xEBABEFBD");
+        }
+        final int version = header.getShort() & 0xffff;
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported diff bundle version " + version);
+        }
+        final ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+        final long indexOffset = footer.getLong();
+        if (footer.getInt() != DiffConstants.BUNDLE_MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - FOOTER_SIZE) {
+            throw new IllegalArgumentException("Diff bundle is truncated or corrupt");
+        }
+
+        final ByteBuffer index = readFully(channel, indexOffset, (int)(size - FOOTER_SIZE - indexOffset));
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+            index.array(), index.arrayOffset(), index.remaining()
+        ));
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        for (int i = input.readInt(); i > 0; i--) {
+            final Kind kind = Kind.fromId(input.readByte());
+            final String name = input.readUTF();
+            final long offset = input.readLong();
+            final int length = input.readInt();
+            final long targetHash = version >= 2 ? input.readLong() : 0L;
+            final int targetLength = version >= 2 ? input.readInt() : -1;
+            if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) {
+                throw new IllegalArgumentException("Diff bundle entry " + name + " is out of bounds");
+            }
+            entries.put(name, new Entry(kind, name, offset, length, targetHash, targetLength));
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            if (channel.read(result, position + result.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Returns the names of the entries, in the order they were written.
+     */
+    public Set<String> getNames() {
+        return entries.keySet();
+    }
+
+    @Nullable
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the contents of the entry {@code name}, which is empty for {@link Kind#REMOVED} entries.
+     *
+     * @throws IllegalArgumentException If there's no entry {@code name}
+     */
+    public byte[] read(String name) throws IOException {
+        final Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Diff bundle has no entry " + name);
+        }
+        return readFully(channel, entry.offset, entry.length).array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public enum Kind {
+        /**
+         * The entry is the diff for a class.
+         */
+        CHANGED,
+        /**
+         * The entry is the contents of a new class.
+         */
+        ADDED,
+        /**
+         * The class was removed. The entry has no contents.
+         */
+        REMOVED;
+
+        static Kind fromId(int id) {
+            if (id < 0 || id >= values().length) {
+                throw new IllegalArgumentException("Unknown diff bundle entry kind " + id);
+            }
+            return values()[id];
+        }
+    }
+
+    public static final class Entry {
+        private final Kind kind;
+        private final String name;
+        private final long offset;
+        private final int length;
+        private final long targetHash;
+        private final int targetLength;
+
+        Entry(Kind kind, String name, long offset, int length, long targetHash, int targetLength) {
+            this.kind = kind;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.targetHash = targetHash;
+            this.targetLength = targetLength;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns whether the hash and length of the class this entry produces are known.
+         */
+        public boolean hasTarget() {
+            return targetLength >= 0;
+        }
+
+        public long getTargetHash() {
+            return targetHash;
+        }
+
+        /**
+         * Returns the length of the class this entry produces, or {@code -1} if it isn't known.
+         */
+        public int getTargetLength() {
+            return targetLength;
+        }
+
+        /**
+         * Returns whether this entry produces {@code classFile}, going by its hash and length.
+         */
+        public boolean producesTarget(byte[] classFile) {
+            return targetLength == classFile.length && targetHash == Hashing.hash(classFile);
+        }
+    }
+
+    /**
+     * Writes a bundle one entry at a time. The index is written by {@link #close()}, and the bundle can't be read until
+     * then. Writers are not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final DataOutputStream output;
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+        private long position;
+
+        public Writer(Path path) throws IOException {
+            channel = FileChannel.open(
+                path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+            );
+            output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            output.writeInt(DiffConstants.BUNDLE_MAGIC);
+            output.writeShort(VERSION);
+            position = HEADER_SIZE;
+        }
+
+        /**
+         * Adds an entry, computing the hash and length of its class for {@link Kind#ADDED} entries. The class of a
+         * {@link Kind#CHANGED} entry is recorded as unknown.
+         *
+         * @throws IllegalArgumentException If there's already an entry {@code name}
+         */
+        public void add(Kind kind, String name, byte[] contents) throws IOException {
+            if (kind == Kind.ADDED) {
+                add(kind, name, contents, Hashing.hash(contents), contents.length);
+            } else {
+                add(kind, name, contents, 0L, -1);
+            }
+        }
+
+        /**
+         * @param targetHash The {@link Hashing#hash hash} of the class the entry produces
+         * @param targetLength The length of the class the entry produces, or {@code -1} if it isn't known
+         * @throws IllegalArgumentException If there's already an entry {@code name}
+         */
+        public void add(Kind kind, String name, byte[] contents, long targetHash, int targetLength) throws IOException {
+            final long offset = writeEntryHeader(kind, name, contents.length);
+            output.write(contents);
+            position += contents.length;
+            entries.put(name, new Entry(kind, name, offset, contents.length, targetHash, targetLength));
+        }
+
+        /**
+         * Copies the entry {@code name} from {@code source} without reading it into memory.
+         *
+         * @throws IllegalArgumentException If {@code source} has no entry {@code name}, or this bundle already does
+         */
+        public void copy(DiffBundle source, String name) throws IOException {
+            final Entry entry = source.entries.get(name);
+            if (entry == null) {
+                throw new IllegalArgumentException("Diff bundle has no entry " + name);
+            }
+            final long offset = writeEntryHeader(entry.kind, name, entry.length);
+            output.flush();
+            long copied = 0;
+            while (copied < entry.length) {
+                copied += source.channel.transferTo(entry.offset + copied, entry.length - copied, channel);
+            }
+            position += entry.length;
+            entries.put(name, new Entry(
+                entry.kind, name, offset, entry.length, entry.targetHash, entry.targetLength
+            ));
+        }
+
+        private long writeEntryHeader(Kind kind, String name, int length) throws IOException {
+            if (entries.containsKey(name)) {
+                throw new IllegalArgumentException("Diff bundle already has an entry " + name);
+            }
+            output.writeByte(kind.ordinal());
+            output.writeUTF(name);
+            output.writeInt(length);
+            position += 7 + getUtfLength(name);
+            return position;
+        }
+
+        /**
+         * Returns the length of {@code value} in modified UTF-8, as written by {@link DataOutputStream#writeUTF}.
+         */
+        private static int getUtfLength(String value) {
+            int result = 0;
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                result += c >= 1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                final long indexOffset = position;
+                output.writeInt(entries.size());
+                for (final Entry entry : entries.values()) {
+                    output.writeByte(entry.kind.ordinal());
+                    output.writeUTF(entry.name);
+                    output.writeLong(entry.offset);
+                    output.writeInt(entry.length);
+                    output.writeLong(entry.targetHash);
+                    output.writeInt(entry.targetLength);
+                }
+                output.writeLong(indexOffset);
+                output.writeInt(DiffConstants.BUNDLE_MAGIC);
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
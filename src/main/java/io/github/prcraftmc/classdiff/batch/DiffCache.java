@@ -0,0 +1,174 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import io.github.prcraftmc.classdiff.ClassDiffer;
+import io.github.prcraftmc.classdiff.format.DiffConstants;
+import io.github.prcraftmc.classdiff.util.Hashing;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of diffs, keyed by the {@link Hashing#hash XXH64} and length of the original and modified class
+ * files, the {@link ClassDiffer} flags, and the diff format version. When a build is diffed against the same release
+ * as the last build, only the classes that changed between the builds need to be diffed again.
+ * <p>
+ * Each diff is a file in the cache directory, and is written to a temporary file first and then moved into place, so
+ * any number of threads and processes can share a cache. Reading a diff updates its modification time, and
+ * {@link #prune()} deletes the diffs that haven't been used for longer than the maximum age, and then the least
+ * recently used diffs until the cache fits in its maximum size.
+ */
+public final class DiffCache {
+    private static final String EXTENSION = ".cdiff";
+    private static final String TEMP_PREFIX = "diff";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxSize;
+    private final long maxAgeMillis;
+
+    /**
+     * Opens a cache of at most 256 MiB, of diffs used in the last 30 days.
+     */
+    public DiffCache(Path directory) throws IOException {
+        this(directory, 256L * 1024 * 1024, 30L * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * @param directory The directory to keep the diffs in, which is created if it doesn't exist
+     * @param maxSize The maximum total size of the diffs, in bytes
+     * @param maxAgeMillis How long a diff can go unused before it's deleted
+     */
+    public DiffCache(Path directory, long maxSize, long maxAgeMillis) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Maximum age must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the cached diff of {@code original} against {@code modified} with {@code flags}, or {@code null} if it
+     * isn't cached.
+     */
+    public byte @Nullable [] get(byte[] original, byte[] modified, int flags) throws IOException {
+        final Path path = getPath(original, modified, flags);
+        final byte[] result;
+        try {
+            result = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Pruned by someone else since we read it
+        }
+        return result;
+    }
+
+    /**
+     * Caches {@code diff} as the diff of {@code original} against {@code modified} with {@code flags}.
+     */
+    public void put(byte[] original, byte[] modified, int flags, byte[] diff) throws IOException {
+        final Path path = getPath(original, modified, flags);
+        final Path temp = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+        try {
+            Files.write(temp, diff);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes the diffs that haven't been used for longer than the maximum age, and then the least recently used diffs
+     * until the total size is at most the maximum size. Leftover temporary files from interrupted writes are deleted
+     * by age too. Other files and directories in the cache directory are left alone.
+     */
+    public void prune() throws IOException {
+        final long oldest = System.currentTimeMillis() - maxAgeMillis;
+        final List<CachedFile> files = new ArrayList<>();
+        long size = 0;
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (final Path path : (Iterable<Path>)paths::iterator) {
+                final String name = path.getFileName().toString();
+                final boolean isDiff = name.endsWith(EXTENSION);
+                if (!isDiff && !(name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX))) {
+                    continue;
+                }
+                final CachedFile file;
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(
+                        path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS
+                    );
+                    if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    file = new CachedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis());
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (file.lastModified < oldest) {
+                    Files.deleteIfExists(path);
+                } else if (isDiff) {
+                    files.add(file);
+                    size += file.size;
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        files.sort((a, b) -> Long.compare(a.lastModified, b.lastModified));
+        for (final CachedFile file : files) {
+            if (size <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(file.path);
+            size -= file.size;
+        }
+    }
+
+    private Path getPath(byte[] original, byte[] modified, int flags) {
+        return directory.resolve(
+            toHex(Hashing.hash(original)) + toHex(Hashing.hash(modified)) +
+                '-' + Integer.toHexString(original.length) + '-' + Integer.toHexString(modified.length) +
+                '-' + Integer.toHexString(flags) + "-v" + DiffConstants.V_MAX + EXTENSION
+        );
+    }
+
+    private static String toHex(long value) {
+        final String hex = Long.toHexString(value);
+        final StringBuilder result = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            result.append('0');
+        }
+        return result.append(hex).toString();
+    }
+
+    private static final class CachedFile {
+        final Path path;
+        final long size;
+        final long lastModified;
+
+        CachedFile(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import io.github.prcraftmc.classdiff.ClassDiffer;
+import io.github.prcraftmc.classdiff.format.DiffWriter;
+import io.github.prcraftmc.classdiff.util.ClassNodeCache;
+import io.github.prcraftmc.classdiff.util.Hashing;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Diffs two directories or archives of classes into a {@link DiffBundle}, as a pipeline of stages that each run on
+ * their own threads:
+ * <ol>
+ *     <li>read both versions of a class,</li>
+ *     <li>parse them into {@link ClassNode}s,</li>
+ *     <li>diff them with a {@link ClassDiffer},</li>
+ *     <li>encode the diff with {@link DiffWriter#toByteArray()}, and</li>
+ *     <li>write it to the bundle.</li>
+ * </ol>
+ * The stages are connected by bounded queues, so a slow stage holds back the stages before it rather than letting
+ * classes pile up in memory. Reading and writing run on an {@link BatchExecutors#newIoExecutor() I/O executor}, and
+ * the other stages on platform threads.
+ * <p>
+ * Classes are read largest first, so that the largest classes don't hold up the end of the run. The entries in the
+ * bundle are in the order their classes finished, which isn't necessarily sorted.
+ * <p>
+ * A bundle can also be {@link #update updated} for a new version of the modified classes, which only diffs the classes
+ * that changed since.
+ */
+public class DiffPipeline {
+    private final int flags;
+    private int readThreads = 2;
+    private int parseThreads;
+    private int diffThreads;
+    private int encodeThreads = 1;
+    private int queueCapacity = 64;
+    @Nullable
+    private ClassNodeCache classCache;
+    @Nullable
+    private DiffCache diffCache;
+
+    public DiffPipeline() {
+        this(0);
+    }
+
+    /**
+     * @param flags The {@link ClassDiffer} flags to diff with
+     */
+    public DiffPipeline(int flags) {
+        this.flags = flags;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        parseThreads = Math.max(1, processors / 2);
+        diffThreads = processors;
+    }
+
+    public DiffPipeline setReadThreads(int readThreads) {
+        this.readThreads = checkThreads(readThreads);
+        return this;
+    }
+
+    public DiffPipeline setParseThreads(int parseThreads) {
+        this.parseThreads = checkThreads(parseThreads);
+        return this;
+    }
+
+    public DiffPipeline setDiffThreads(int diffThreads) {
+        this.diffThreads = checkThreads(diffThreads);
+        return this;
+    }
+
+    public DiffPipeline setEncodeThreads(int encodeThreads) {
+        this.encodeThreads = checkThreads(encodeThreads);
+        return this;
+    }
+
+    /**
+     * Sets how many classes can wait between each pair of stages.
+     */
+    public DiffPipeline setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @see BatchDiffer#setClassCache
+     */
+    public DiffPipeline setClassCache(@Nullable ClassNodeCache classCache) {
+        this.classCache = classCache;
+        return this;
+    }
+
+    /**
+     * Sets a cache of diffs to check when each class is read, and to add new diffs to when they're written. Classes
+     * with a cached diff skip the parse, diff, and encode stages.
+     *
+     * @see BatchDiffer#setDiffCache
+     */
+    public DiffPipeline setDiffCache(@Nullable DiffCache diffCache) {
+        this.diffCache = diffCache;
+        return this;
+    }
+
+    private static int checkThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        return threads;
+    }
+
+    /**
+     * @param original A directory or archive of the original classes
+     * @param modified A directory or archive of the modified classes
+     * @param bundle The file to write the bundle to
+     */
+    public BatchDiffer.Result run(Path original, Path modified, Path bundle) throws IOException {
+        try (
+            FileTree originalTree = FileTree.open(original, ".class");
+            FileTree modifiedTree = FileTree.open(modified, ".class")
+        ) {
+            return run(originalTree, modifiedTree, bundle);
+        }
+    }
+
+    /**
+     * Writes the diff of each changed class, the contents of each added class, and a marker for each removed class to
+     * {@code bundle}.
+     */
+    public BatchDiffer.Result run(FileTree original, FileTree modified, Path bundle) throws IOException {
+        return run(original, modified, null, bundle);
+    }
+
+    /**
+     * @param original A directory or archive of the original classes
+     * @param modified A directory or archive of the modified classes
+     * @param previous A bundle of diffs from the same original classes to an earlier version of the modified classes
+     * @param bundle The file to write the new bundle to, which can't be {@code previous}
+     * @see #update(FileTree, FileTree, DiffBundle, Path)
+     */
+    public BatchDiffer.Result update(Path original, Path modified, Path previous, Path bundle) throws IOException {
+        if (Files.exists(bundle) && Files.isSameFile(previous, bundle)) {
+            throw new IllegalArgumentException("Cannot update a diff bundle in place");
+        }
+        try (
+            FileTree originalTree = FileTree.open(original, ".class");
+            FileTree modifiedTree = FileTree.open(modified, ".class");
+            DiffBundle previousBundle = DiffBundle.open(previous)
+        ) {
+            return update(originalTree, modifiedTree, previousBundle, bundle);
+        }
+    }
+
+    /**
+     * Like {@link #run(FileTree, FileTree, Path)}, but reuses the entries of {@code previous} for the classes that
+     * haven't changed since it was written, going by the hash of the class each entry produces. Reused entries are
+     * copied to the new bundle as they are, without reading the original class or diffing it again. Entries from
+     * bundles written before {@link DiffBundle#VERSION version} 2 are never reused.
+     *
+     * @param previous A bundle of diffs from the same original classes to an earlier version of the modified classes
+     */
+    public BatchDiffer.Result update(
+        FileTree original, FileTree modified, DiffBundle previous, Path bundle
+    ) throws IOException {
+        return run(original, modified, previous, bundle);
+    }
+
+    private BatchDiffer.Result run(
+        FileTree original, FileTree modified, @Nullable DiffBundle previous, Path bundle
+    ) throws IOException {
+        final Queue<String> names = new ConcurrentLinkedQueue<>(
+            CostEstimator.sortBySize(modified.getNames(), original, modified)
+        );
+        final List<String> changed = new ArrayList<>();
+        final List<String> added = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+
+        final BlockingQueue<Job> parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Job> diffQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Job> encodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(diffThreads + encodeThreads);
+        for (int i = diffThreads + encodeThreads; i > 0; i--) {
+            workers.add(new Worker());
+        }
+
+        final ClassNodeCache classCache = this.classCache;
+        final DiffCache diffCache = this.diffCache;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<CompletableFuture<?>> stages = new ArrayList<>();
+        // Written next to the bundle and moved over it once complete, so that a failed run leaves any previous bundle
+        // alone rather than replacing it with a partial one
+        final Path absoluteBundle = bundle.toAbsolutePath();
+        final Path temp = Files.createTempFile(
+            absoluteBundle.getParent(), absoluteBundle.getFileName().toString(), ".tmp"
+        );
+        final ExecutorService io = BatchExecutors.newIoExecutor(readThreads + 1);
+        final ExecutorService cpu = BatchExecutors.newCpuExecutor(parseThreads + diffThreads + encodeThreads);
+        boolean succeeded = false;
+        try {
+            try (DiffBundle.Writer writer = new DiffBundle.Writer(temp)) {
+                final AtomicInteger readersLeft = new AtomicInteger(readThreads);
+                for (int i = 0; i < readThreads; i++) {
+                    stages.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            String name;
+                            while (failure.get() == null && (name = names.poll()) != null) {
+                                try {
+                                    final Job job = new Job(name);
+                                    job.modified = modified.read(name);
+                                    job.targetHash = Hashing.hash(job.modified);
+                                    job.targetLength = job.modified.length;
+                                    final DiffBundle.Entry previousEntry =
+                                        previous != null ? previous.getEntry(name) : null;
+                                    if (
+                                        previousEntry != null && previousEntry.getKind() != DiffBundle.Kind.REMOVED &&
+                                            previousEntry.producesTarget(job.modified)
+                                    ) {
+                                        job.reused = previousEntry;
+                                        job.modified = null;
+                                        parseQueue.put(job);
+                                        continue;
+                                    }
+                                    if (original.contains(name)) {
+                                        job.original = original.read(name);
+                                    }
+                                    final byte[] originalClass = job.original;
+                                    if (
+                                        diffCache != null && originalClass != null &&
+                                            !Arrays.equals(originalClass, job.modified)
+                                    ) {
+                                        job.diff = diffCache.get(originalClass, job.modified, flags);
+                                        if (job.diff != null) {
+                                            job.original = job.modified = null;
+                                        }
+                                    }
+                                    parseQueue.put(job);
+                                } catch (InterruptedException e) {
+                                    failure.compareAndSet(null, e);
+                                    Thread.currentThread().interrupt();
+                                    break;
+                                } catch (Throwable e) {
+                                    failure.compareAndSet(null, e);
+                                }
+                            }
+                        } finally {
+                            // However the readers stop, the last one ends the pipeline, or the later stages block
+                            if (readersLeft.decrementAndGet() == 0) {
+                                putEnd(parseQueue);
+                            }
+                        }
+                    }, io));
+                }
+
+                stages.addAll(stage(parseThreads, parseQueue, diffQueue, workers, failure, cpu, job -> {
+                    if (job.original == null) {
+                        return job;
+                    }
+                    if (Arrays.equals(job.original, job.modified)) {
+                        return null;
+                    }
+                    job.originalNode = BatchDiffer.readOriginal(classCache, job.original);
+                    job.modifiedNode = BatchDiffer.readClass(job.modified);
+                    if (diffCache == null) {
+                        job.original = job.modified = null;
+                    }
+                    return job;
+                }));
+
+                stages.addAll(stage(diffThreads, diffQueue, encodeQueue, workers, failure, cpu, job -> {
+                    if (job.originalNode == null) {
+                        return job;
+                    }
+                    // Poll rather than take, since the workers held by jobs dropped after a failure may never come back
+                    Worker worker;
+                    while ((worker = workers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                        if (failure.get() != null) {
+                            return null;
+                        }
+                    }
+                    try {
+                        worker.writer.reset();
+                        worker.differ.accept(job.originalNode, job.modifiedNode);
+                    } catch (RuntimeException | Error e) {
+                        workers.add(worker);
+                        throw e;
+                    }
+                    job.originalNode = job.modifiedNode = null;
+                    job.worker = worker;
+                    return job;
+                }));
+
+                stages.addAll(stage(encodeThreads, encodeQueue, writeQueue, workers, failure, cpu, job -> {
+                    final Worker worker = job.worker;
+                    if (worker == null) {
+                        return job;
+                    }
+                    job.worker = null;
+                    try {
+                        job.diff = worker.writer.toByteArray();
+                    } finally {
+                        workers.add(worker);
+                    }
+                    return job;
+                }));
+
+                stages.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        Job job;
+                        while ((job = writeQueue.take()) != Job.END) {
+                            if (failure.get() != null) {
+                                continue;
+                            }
+                            try {
+                                if (job.reused != null) {
+                                    writer.copy(previous, job.name);
+                                    (job.reused.getKind() == DiffBundle.Kind.CHANGED ? changed : added).add(job.name);
+                                } else if (job.diff != null) {
+                                    writer.add(
+                                        DiffBundle.Kind.CHANGED, job.name, job.diff, job.targetHash, job.targetLength
+                                    );
+                                    changed.add(job.name);
+                                    if (diffCache != null && job.original != null) {
+                                        diffCache.put(job.original, job.modified, flags, job.diff);
+                                    }
+                                } else {
+                                    writer.add(
+                                        DiffBundle.Kind.ADDED, job.name, job.modified, job.targetHash, job.targetLength
+                                    );
+                                    added.add(job.name);
+                                }
+                            } catch (Throwable e) {
+                                // Keep draining, so that the stages before this one don't block on a full queue
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        failure.compareAndSet(null, e);
+                        Thread.currentThread().interrupt();
+                    }
+                }, io));
+
+                BatchExecutors.joinAll(stages);
+                rethrow(failure.get());
+
+                for (final String name : original.getNames()) {
+                    if (!modified.contains(name)) {
+                        writer.add(DiffBundle.Kind.REMOVED, name, new byte[0]);
+                        removed.add(name);
+                    }
+                }
+            }
+            try {
+                Files.move(temp, absoluteBundle, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absoluteBundle, StandardCopyOption.REPLACE_EXISTING);
+            }
+            succeeded = true;
+            if (diffCache != null) {
+                diffCache.prune();
+            }
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+            if (!succeeded) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // The original failure matters more
+                }
+            }
+        }
+
+        Collections.sort(changed);
+        Collections.sort(added);
+        return new BatchDiffer.Result(changed, added, removed);
+    }
+
+    /**
+     * Starts {@code threads} workers that each apply {@code action} to jobs from {@code input} and pass the result to
+     * {@code output}, unless it's {@code null}. Once a job fails, the workers keep draining their input, but stop
+     * applying {@code action}, and give any {@link Worker} a dropped job holds back to {@code workers}.
+     */
+    private static List<CompletableFuture<?>> stage(
+        int threads,
+        BlockingQueue<Job> input,
+        BlockingQueue<Job> output,
+        BlockingQueue<Worker> workers,
+        AtomicReference<Throwable> failure,
+        Executor executor,
+        Stage action
+    ) {
+        final AtomicInteger workersLeft = new AtomicInteger(threads);
+        final List<CompletableFuture<?>> result = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            result.add(CompletableFuture.runAsync(() -> {
+                boolean tookEnd = false;
+                try {
+                    Job job;
+                    while ((job = input.take()) != Job.END) {
+                        if (failure.get() != null) {
+                            if (job.worker != null) {
+                                workers.add(job.worker);
+                                job.worker = null;
+                            }
+                            continue;
+                        }
+                        try {
+                            final Job next = action.process(job);
+                            if (next != null) {
+                                output.put(next);
+                            }
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                    tookEnd = true;
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, e);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // Each worker takes the end marker once and passes it to a sibling, or downstream if none are left.
+                    // A worker that stopped early leaves the marker for its siblings.
+                    if (workersLeft.decrementAndGet() == 0) {
+                        putEnd(output);
+                    } else if (tookEnd) {
+                        putEnd(input);
+                    }
+                }
+            }, executor));
+        }
+        return result;
+    }
+
+    /**
+     * Puts {@link Job#END} in {@code queue}, even if this thread is interrupted, since the next stage can't finish
+     * without it. The stages keep draining their input after a failure, so this doesn't block for long.
+     */
+    private static void putEnd(BlockingQueue<Job> queue) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(Job.END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(@Nullable Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error)failure;
+        }
+        throw new IllegalStateException("Diff pipeline was interrupted", failure);
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        @Nullable
+        Job process(Job job) throws InterruptedException;
+    }
+
+    private static final class Job {
+        static final Job END = new Job("");
+
+        final String name;
+        byte @Nullable [] original;
+        byte @Nullable [] modified;
+        @Nullable ClassNode originalNode;
+        @Nullable ClassNode modifiedNode;
+        @Nullable Worker worker;
+        byte @Nullable [] diff;
+        long targetHash;
+        int targetLength;
+        @Nullable DiffBundle.Entry reused;
+
+        Job(String name) {
+            this.name = name;
+        }
+    }
+
+    private final class Worker {
+        final DiffWriter writer = new DiffWriter();
+        final ClassDiffer differ = new ClassDiffer(writer, flags);
+    }
+}
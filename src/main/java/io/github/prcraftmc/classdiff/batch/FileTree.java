@@ -0,0 +1,82 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * The files with a given extension in a directory or a jar or zip archive, named by their path relative to its root
+ * with {@code /} as the separator, such as {@code java/lang/Object.class}. Files can be read from any thread.
+ */
+public final class FileTree implements Closeable {
+    @Nullable
+    private final FileSystem archive;
+    private final Path root;
+    private final Set<String> names;
+
+    private FileTree(@Nullable FileSystem archive, Path root, String extension) throws IOException {
+        this.archive = archive;
+        this.root = root;
+        final Set<String> names = new TreeSet<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.forEach(path -> {
+                if (path.toString().endsWith(extension) && Files.isRegularFile(path)) {
+                    names.add(root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"));
+                }
+            });
+        }
+        this.names = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @param path A directory, or a jar or zip archive
+     * @param extension The extension of the files to include, such as {@code .class}
+     */
+    public static FileTree open(Path path, String extension) throws IOException {
+        if (Files.isDirectory(path)) {
+            return new FileTree(null, path, extension);
+        }
+        final FileSystem archive = FileSystems.newFileSystem(path, (ClassLoader)null);
+        try {
+            return new FileTree(archive, archive.getPath("/"), extension);
+        } catch (IOException | RuntimeException e) {
+            archive.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the names of the files in this tree, in sorted order.
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    public long getSize(String name) throws IOException {
+        return Files.size(root.resolve(name));
+    }
+
+    public byte[] read(String name) throws IOException {
+        return Files.readAllBytes(root.resolve(name));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.prcraftmc.classdiff.format;
+
+/**
+ * Thrown by {@link DiffReader} when a diff fails its checksums or can't be parsed, such as after a truncated or
+ * damaged download. The diff should be fetched again.
+ */
+public class CorruptDiffException extends IllegalArgumentException {
+    public CorruptDiffException(String message) {
+        super(message);
+    }
+
+    public CorruptDiffException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.prcraftmc.classdiff.format;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Builds a {@link PatchDictionary} from a corpus of diffs. Most of a small diff is its constant pool, so the
+ * dictionary is made of the UTF-8 constants (descriptors, owner names, and so on) that the most diffs share, encoded
+ * exactly as they appear in the constant pool.
+ */
+public class DictionaryTrainer {
+    private final Map<ByteBuffer, Integer> constantCounts = new HashMap<>();
+    private int diffCount;
+
+    public void addDiff(byte[] diff) {
+        addDiff(new DiffReader(diff));
+    }
+
+    public void addDiff(DiffReader diff) {
+        diffCount++;
+        for (final ByteBuffer constant : diff.getUtf8Constants()) {
+            constantCounts.merge(constant, 1, Integer::sum);
+        }
+    }
+
+    public int getDiffCount() {
+        return diffCount;
+    }
+
+    public PatchDictionary train() {
+        return train(PatchDictionary.MAX_SIZE);
+    }
+
+    /**
+     * @throws IllegalStateException If no constant occurs in more than one diff
+     */
+    public PatchDictionary train(int maxSize) {
+        if (maxSize <= 0 || maxSize > PatchDictionary.MAX_SIZE) {
+            throw new IllegalArgumentException("Dictionary size must be between 1 and " + PatchDictionary.MAX_SIZE);
+        }
+
+        final List<Map.Entry<ByteBuffer, Integer>> candidates = new ArrayList<>();
+        for (final Map.Entry<ByteBuffer, Integer> entry : constantCounts.entrySet()) {
+            if (entry.getValue() > 1) {
+                candidates.add(entry);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("No constants are shared between the " + diffCount + " diffs given");
+        }
+        // Score by the bytes each constant would save over the corpus
+        candidates.sort(Comparator.comparingLong(
+            (Map.Entry<ByteBuffer, Integer> e) -> (long)e.getValue() * e.getKey().remaining()
+        ).reversed());
+
+        final List<ByteBuffer> chosen = new ArrayList<>();
+        int size = 0;
+        for (final Map.Entry<ByteBuffer, Integer> candidate : candidates) {
+            final int length = candidate.getKey().remaining();
+            if (size + length <= maxSize) {
+                chosen.add(candidate.getKey());
+                size += length;
+            }
+        }
+
+        // Deflate finds the end of the dictionary cheapest to refer to, so the most valuable constants go last
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            result.put(chosen.get(i).duplicate());
+        }
+        return new PatchDictionary(result.array());
+    }
+}
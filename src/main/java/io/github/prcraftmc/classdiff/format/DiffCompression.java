@@ -0,0 +1,111 @@
+package io.github.prcraftmc.classdiff.format;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed diff container. This consists of {@link DiffConstants#COMPRESSED_MAGIC}, the ID of the
+ * {@link PatchDictionary} used (or 0 for none), the uncompressed size, and then a zlib stream of the diff.
+ * {@link DiffReader} decompresses these transparently.
+ */
+public final class DiffCompression {
+    private static final int HEADER_SIZE = 16;
+
+    private DiffCompression() {
+    }
+
+    public static boolean isCompressed(ByteBuffer diff) {
+        return diff.remaining() >= HEADER_SIZE && diff.getInt(diff.position()) == DiffConstants.COMPRESSED_MAGIC;
+    }
+
+    public static byte[] compress(byte[] diff) {
+        return compress(diff, null);
+    }
+
+    public static byte[] compress(byte[] diff, @Nullable PatchDictionary dictionary) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary.getDataUnsafe());
+            }
+            deflater.setInput(diff);
+            deflater.finish();
+
+            byte[] result = new byte[HEADER_SIZE + Math.max(64, diff.length / 2)];
+            final ByteBuffer header = ByteBuffer.wrap(result);
+            header.putInt(DiffConstants.COMPRESSED_MAGIC);
+            header.putLong(dictionary != null ? dictionary.getId() : 0L);
+            header.putInt(diff.length);
+            int size = HEADER_SIZE;
+            while (!deflater.finished()) {
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                size += deflater.deflate(result, size, result.length - size);
+            }
+            return Arrays.copyOf(result, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses {@code diff} if it's compressed, or returns it as-is otherwise.
+     *
+     * @throws IllegalArgumentException If the diff needs a different dictionary than {@code dictionary}, or is corrupt
+     */
+    public static ByteBuffer decompress(ByteBuffer diff, @Nullable PatchDictionary dictionary) {
+        if (!isCompressed(diff)) {
+            return diff;
+        }
+        final int start = diff.position();
+        final long dictionaryId = diff.getLong(start + 4);
+        final int size = diff.getInt(start + 12);
+        if (dictionaryId != 0) {
+            if (dictionary == null) {
+                throw new IllegalArgumentException(
+                    "Diff was compressed with dictionary " + Long.toHexString(dictionaryId) + ", but none was given"
+                );
+            }
+            if (dictionary.getId() != dictionaryId) {
+                throw new IllegalArgumentException(
+                    "Diff was compressed with dictionary " + Long.toHexString(dictionaryId) +
+                        ", but dictionary " + Long.toHexString(dictionary.getId()) + " was given"
+                );
+            }
+        }
+
+        final byte[] input = new byte[diff.remaining() - HEADER_SIZE];
+        final ByteBuffer source = diff.duplicate();
+        source.position(start + HEADER_SIZE);
+        source.get(input);
+
+        final byte[] result = new byte[size];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int position = 0;
+            while (position < size) {
+                final int count = inflater.inflate(result, position, size - position);
+                if (count == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary.getDataUnsafe());
+                    } else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IllegalArgumentException("Compressed diff ended after " + position + " of " + size + " bytes");
+                    }
+                }
+                position += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed diff", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -2,9 +2,39 @@ package io.github.prcraftmc.classdiff.format;
 
 public class DiffConstants {
     public static final int MAGIC = 0xEBABEFAC;
+    /**
+     * @see DiffCompression
+     */
+    public static final int COMPRESSED_MAGIC = 0xEBABEFCC;
+    /**
+     * Used instead of {@link #MAGIC} by diffs with checksums. This differs from the other magics in two bytes, so that
+     * no single damaged byte turns a checksummed diff into one that isn't checked.
+     *
+     * @see DiffWriter#setChecksums
+     */
+    public static final int CHECKSUMMED_MAGIC = 0xEBABC5AD;
+    /**
+     * @see io.github.prcraftmc.classdiff.batch.DiffBundle
+     */
+    public static final int BUNDLE_MAGIC = 0xEBABEFBD;
+
+    /**
+     * Special insn type (following opcode 255) for a run of insns copied from the unpatched method. Only used in
+     * {@link #V2} and later.
+     */
+    public static final int INSN_COPY = 64;
 
     public static final int V1 = 1;
-    public static final int V_MAX = V1;
+    /**
+     * Like {@link #V1}, but with counts, patch positions, and label IDs written as unsigned LEB128 varints.
+     */
+    public static final int V2 = 2;
+    /**
+     * Like {@link #V2}, but with a preset list of common {@code CONSTANT_Utf8} entries at the start of the constant
+     * pool, which aren't written out.
+     */
+    public static final int V3 = 3;
+    public static final int V_MAX = V3;
 
     public static final int LDC_W = 19;
     public static final int LDC2_W = 20;
@@ -0,0 +1,162 @@
+package io.github.prcraftmc.classdiff.format;
+
+import io.github.prcraftmc.classdiff.util.Crc32c;
+import io.github.prcraftmc.classdiff.util.ReflectUtils;
+import org.objectweb.asm.ByteVector;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+abstract class DiffOutput {
+    private final byte[] scratch = new byte[8];
+
+    abstract void putBytes(byte[] data, int offset, int length) throws IOException;
+
+    void flush() throws IOException {
+    }
+
+    /**
+     * Marks the start of a new section of the diff, and whether that section is covered by its checksums.
+     */
+    void beginSection(boolean checked) throws IOException {
+    }
+
+    final DiffOutput putByte(int value) throws IOException {
+        scratch[0] = (byte)value;
+        putBytes(scratch, 0, 1);
+        return this;
+    }
+
+    final DiffOutput putShort(int value) throws IOException {
+        scratch[0] = (byte)(value >>> 8);
+        scratch[1] = (byte)value;
+        putBytes(scratch, 0, 2);
+        return this;
+    }
+
+    final DiffOutput putInt(int value) throws IOException {
+        scratch[0] = (byte)(value >>> 24);
+        scratch[1] = (byte)(value >>> 16);
+        scratch[2] = (byte)(value >>> 8);
+        scratch[3] = (byte)value;
+        putBytes(scratch, 0, 4);
+        return this;
+    }
+
+    final DiffOutput putLong(long value) throws IOException {
+        return putInt((int)(value >>> 32)).putInt((int)value);
+    }
+
+    final DiffOutput putVarInt(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            putByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        return putByte(value);
+    }
+
+    final DiffOutput putByteArray(byte[] data, int offset, int length) throws IOException {
+        putBytes(data, offset, length);
+        return this;
+    }
+
+    final DiffOutput putVector(ByteVector vector) throws IOException {
+        putBytes(ReflectUtils.getByteVectorData(vector), 0, vector.size());
+        return this;
+    }
+
+    static final class Counting extends DiffOutput {
+        int size;
+
+        @Override
+        void putBytes(byte[] data, int offset, int length) {
+            size += length;
+        }
+    }
+
+    /**
+     * Computes the checksum of each checked section instead of writing anything.
+     */
+    static final class Checksumming extends DiffOutput {
+        private final Checksum checksum = Crc32c.create();
+        private boolean checked;
+        int size;
+        int[] checksums = new int[16];
+        int checksumCount;
+
+        @Override
+        void putBytes(byte[] data, int offset, int length) {
+            size += length;
+            if (checked) {
+                checksum.update(data, offset, length);
+            }
+        }
+
+        @Override
+        void beginSection(boolean checked) {
+            if (this.checked) {
+                if (checksumCount == checksums.length) {
+                    checksums = Arrays.copyOf(checksums, checksumCount * 2);
+                }
+                checksums[checksumCount++] = (int)checksum.getValue();
+            }
+            checksum.reset();
+            this.checked = checked;
+        }
+    }
+
+    static final class Array extends DiffOutput {
+        final byte[] result;
+        private int position;
+
+        Array(int size) {
+            result = new byte[size];
+        }
+
+        @Override
+        void putBytes(byte[] data, int offset, int length) {
+            System.arraycopy(data, offset, result, position, length);
+            position += length;
+        }
+    }
+
+    /**
+     * Collects small writes into a buffer, and passes large sections on to the sink directly.
+     */
+    static final class Buffered extends DiffOutput {
+        private final Sink sink;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+
+        Buffered(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        void putBytes(byte[] data, int offset, int length) throws IOException {
+            if (length > buffer.length - position) {
+                flush();
+                if (length >= buffer.length) {
+                    sink.write(data, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(data, offset, buffer, position, length);
+            position += length;
+        }
+
+        @Override
+        void flush() throws IOException {
+            if (position > 0) {
+                sink.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface Sink {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+}
@@ -1,16 +1,25 @@
 package io.github.prcraftmc.classdiff.format;
 
-import com.github.difflib.patch.DeltaType;
 import com.github.difflib.patch.Patch;
 import io.github.prcraftmc.classdiff.util.Util;
 import io.github.prcraftmc.classdiff.util.*;
+import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Checksum;
 
+/**
+ * Reads a diff. A reader is immutable once constructed, and its caches are thread-safe, so one reader can be used to
+ * patch any number of classes at once from different threads.
+ */
 public class DiffReader {
-    private int[] constantOffsets;
+    private static final int CHECKSUMS_FOOTER_SIZE = 10;
+
+    private final int[] constantOffsets;
     private final PatchReader<String> classPatchReader = new PatchReader<>(reader -> {
         reader.skip(2);
         return readClass(reader.pointer() - 2);
@@ -21,128 +30,517 @@ public class DiffReader {
         return result;
     });
     private final PatchReader<TypeAnnotationNode> typeAnnotationPatchReader = new PatchReader<>(this::readTypeAnnotation);
-    private final PatchReader<MemberName> memberNamePatchReader = new PatchReader<>(reader -> {
-        final int nameAndTypeOffset = constantOffsets[reader.readShort()];
-        return new MemberName(readUtf8(nameAndTypeOffset), readUtf8(nameAndTypeOffset + 2));
-    });
+    private final PatchReader<MemberName> memberNamePatchReader = new PatchReader<>(this::readMemberName);
     private final PatchReader<String> packagePatchReader = new PatchReader<>(reader -> {
         reader.skip(2);
         return readPackage(reader.pointer() - 2);
     });
 
-    private final byte[] contents;
+    private final ByteBuffer contents;
+    @Nullable
+    private final Utf8Cache stringCache;
+    private final boolean hasChecksums;
+    /**
+     * The end of the diff, not counting the checksums footer.
+     */
+    private final int end;
+
+    private final int version;
+    private final int presetCount;
+    private final boolean varInts;
+    private final AtomicReferenceArray<String> constantStringCache;
+    private final int startPos;
+
+    @Nullable
+    private final AtomicReferenceArray<ConstantDynamic> condyCache;
+    private final int @Nullable [] bsmOffsets;
 
-    private int version;
-    private String[] constantStringCache;
-    private char[] charBuffer;
-    private int startPos;
+    private final boolean hasClassHashes;
+    private final long baseHash;
+    private final long targetHash;
 
-    private ConstantDynamic[] condyCache;
-    private int[] bsmOffsets;
+    private final int reverseDiffOffset;
+
+    private final int membersOffset;
+    private final int @Nullable [] fieldOffsets;
+    private final int @Nullable [] methodOffsets;
 
     private final ThreadLocal<Context> context = new ThreadLocal<>();
 
     public DiffReader(byte[] contents) {
-        this.contents = contents;
-        readStart();
+        this(ByteBuffer.wrap(contents));
+    }
+
+    /**
+     * @param dictionary The dictionary to decompress with, if {@code contents} was compressed with one
+     * @see DiffCompression
+     */
+    public DiffReader(byte[] contents, @Nullable PatchDictionary dictionary) {
+        this(ByteBuffer.wrap(contents), dictionary);
+    }
+
+    public DiffReader(byte[] contents, int offset, int length) {
+        this(ByteBuffer.wrap(contents, offset, length));
     }
 
-    private void readStart() {
-        if (readInt(0) != DiffConstants.MAGIC) {
-            throw new IllegalArgumentException("Class diff did not start with magic 0xEBABEFAC");
+    /**
+     * Reads the diff between the position and limit of {@code contents}, without copying it. The buffer's position and
+     * limit are not modified, but its contents must not change while this reader is in use.
+     */
+    public DiffReader(ByteBuffer contents) {
+        this(contents, null);
+    }
+
+    public DiffReader(ByteBuffer contents, @Nullable PatchDictionary dictionary) {
+        this(contents, dictionary, null);
+    }
+
+    /**
+     * @param stringCache A cache to look up constant pool strings in before decoding them, which may be shared with
+     * other readers
+     */
+    public DiffReader(ByteBuffer contents, @Nullable PatchDictionary dictionary, @Nullable Utf8Cache stringCache) {
+        this.contents = DiffCompression.decompress(contents.slice(), dictionary);
+        this.stringCache = stringCache;
+        try {
+            final int magic = readInt(0);
+            hasChecksums = magic == DiffConstants.CHECKSUMMED_MAGIC;
+            if (!hasChecksums && magic != DiffConstants.MAGIC) {
+                throw new IllegalArgumentException("Class diff did not start with magic 0xEBABEFAC");
+            }
+            final Checksum checksum = hasChecksums ? Crc32c.create() : null;
+            final byte[] checksumBuffer = hasChecksums ? new byte[8192] : null;
+            final int checksummedPoolEnd;
+            if (hasChecksums) {
+                final int limit = this.contents.limit();
+                final int length = readInt(limit - 4);
+                if (length != limit) {
+                    throw new CorruptDiffException("Class diff is " + limit + " bytes long, but should be " + length);
+                }
+                end = limit - CHECKSUMS_FOOTER_SIZE - 4 * readShort(limit - CHECKSUMS_FOOTER_SIZE);
+                checksummedPoolEnd = readInt(limit - 8);
+                if (checksummedPoolEnd < 8 || checksummedPoolEnd > end) {
+                    throw new CorruptDiffException("Class diff checksums are corrupt");
+                }
+                // Checked before anything in the constant pool is trusted, since everything else is found through it
+                verifySection(checksum, checksumBuffer, "constant pool", 4, checksummedPoolEnd, readInt(end));
+            } else {
+                end = this.contents.limit();
+                checksummedPoolEnd = -1;
+            }
+            version = readShort(4);
+            if (version < DiffConstants.V1 || version > DiffConstants.V_MAX) {
+                throw new IllegalArgumentException(
+                    "Unsupported class diff version. Read " + version +
+                    ". Class diff only supports 1 through " + DiffConstants.V_MAX + "."
+                );
+            }
+            varInts = version >= DiffConstants.V2;
+
+            final int constantCount = readShort(6);
+            final List<String> presets = PresetConstants.forVersion(version);
+            presetCount = presets.size();
+            if (constantCount <= presetCount) {
+                throw new IllegalArgumentException(
+                    "Constant pool of " + constantCount + " entries is smaller than the " + presetCount + " preset entries"
+                );
+            }
+            constantOffsets = new int[constantCount + 1];
+            constantStringCache = new AtomicReferenceArray<>(constantCount + 1);
+            for (int i = 0; i < presetCount; i++) {
+                constantStringCache.set(i + 1, presets.get(i));
+            }
+
+            int pointer = 8;
+            boolean hasCondy = false;
+            boolean hasBsm = false;
+            for (int i = presetCount + 1; i < constantCount; i++) {
+                constantOffsets[i] = pointer + 1;
+                int size;
+                switch (this.contents.get(pointer)) {
+                    case Symbol.CONSTANT_FIELDREF_TAG:
+                    case Symbol.CONSTANT_METHODREF_TAG:
+                    case Symbol.CONSTANT_INTERFACE_METHODREF_TAG:
+                    case Symbol.CONSTANT_INTEGER_TAG:
+                    case Symbol.CONSTANT_FLOAT_TAG:
+                    case Symbol.CONSTANT_NAME_AND_TYPE_TAG:
+                        size = 5;
+                        break;
+                    case Symbol.CONSTANT_DYNAMIC_TAG:
+                        size = 5;
+                        hasBsm = true;
+                        hasCondy = true;
+                        break;
+                    case Symbol.CONSTANT_INVOKE_DYNAMIC_TAG:
+                        size = 5;
+                        hasBsm = true;
+                        break;
+                    case Symbol.CONSTANT_LONG_TAG:
+                    case Symbol.CONSTANT_DOUBLE_TAG:
+                        size = 9;
+                        i++;
+                        break;
+                    case Symbol.CONSTANT_UTF8_TAG:
+                        size = 3 + readShort(pointer + 1);
+                        break;
+                    case Symbol.CONSTANT_METHOD_HANDLE_TAG:
+                        size = 4;
+                        break;
+                    case Symbol.CONSTANT_CLASS_TAG:
+                    case Symbol.CONSTANT_STRING_TAG:
+                    case Symbol.CONSTANT_METHOD_TYPE_TAG:
+                    case Symbol.CONSTANT_PACKAGE_TAG:
+                    case Symbol.CONSTANT_MODULE_TAG:
+                        size = 3;
+                        break;
+                    default:
+                        throw new CorruptDiffException("Unknown constant type: " + this.contents.get(pointer));
+                }
+                pointer += size;
+            }
+            startPos = pointer;
+
+            if (hasChecksums) {
+                if (startPos != checksummedPoolEnd) {
+                    throw new CorruptDiffException("Class diff constant pool doesn't match its checksums");
+                }
+                verifyChecksums(checksum, checksumBuffer);
+            }
+
+            condyCache = hasCondy ? new AtomicReferenceArray<>(constantCount) : null;
+            bsmOffsets = hasBsm ? readBsmAttribute() : null;
+
+            final int classHashesOffset = findAttribute("ClassHashes");
+            hasClassHashes = classHashesOffset != -1;
+            baseHash = hasClassHashes ? readLong(classHashesOffset) : 0L;
+            targetHash = hasClassHashes ? readLong(classHashesOffset + 8) : 0L;
+
+            reverseDiffOffset = findAttribute("Reverse");
+
+            final int contentsOffset = findAttribute("Contents");
+            if (contentsOffset != -1) {
+                membersOffset = getMembersOffset();
+                final ByteReader reader = new ByteReader(this.contents, contentsOffset);
+                fieldOffsets = readOffsets(reader);
+                reader.skip(4); // Methods patch
+                methodOffsets = readOffsets(reader);
+            } else {
+                membersOffset = -1;
+                fieldOffsets = null;
+                methodOffsets = null;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptDiffException("Class diff is truncated or corrupt", e);
         }
-        version = readShort(4);
-        if (version < DiffConstants.V1 || version > DiffConstants.V_MAX) {
-            throw new IllegalArgumentException(
-                "Unsupported class diff version. Read " + version +
-                ". Class diff only supports 1 through " + DiffConstants.V_MAX + "."
+    }
+
+    /**
+     * Reads the diff at {@code offset} in {@code contents}, without copying it. This works with direct and
+     * memory-mapped buffers as well.
+     */
+    public DiffReader(ByteBuffer contents, int offset, int length) {
+        this(slice(contents, offset, length), null, null);
+    }
+
+    private static ByteBuffer slice(ByteBuffer contents, int offset, int length) {
+        final ByteBuffer view = contents.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    private static int[] readOffsets(ByteReader reader) {
+        final int[] result = new int[reader.readInt()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = reader.readInt();
+        }
+        return result;
+    }
+
+    private void verifyChecksums(Checksum checksum, byte[] buffer) {
+        final int[] sections;
+        try {
+            sections = getChecksumSections();
+        } catch (RuntimeException e) {
+            // The header hasn't been verified yet, so finding the attributes in it can fail in any number of ways
+            throw new CorruptDiffException("Class diff failed the checksum for its header", e);
+        }
+        final int sectionCount = sections.length - 1;
+        if (sectionCount != readShort(contents.limit() - CHECKSUMS_FOOTER_SIZE)) {
+            throw new CorruptDiffException(
+                "Class diff has checksums for " + readShort(contents.limit() - CHECKSUMS_FOOTER_SIZE) +
+                    " sections, but has " + sectionCount
             );
         }
+        // The constant pool was verified already
+        for (int i = 1; i < sectionCount; i++) {
+            final String name = i == 1 ? "header" : i == sectionCount - 1 ? "members" : "attribute " + (i - 2);
+            verifySection(checksum, buffer, name, sections[i], sections[i + 1], readInt(end + 4 * i));
+        }
+    }
 
-        final int constantCount = readShort(6);
-        constantOffsets = new int[constantCount + 1];
-        constantStringCache = new String[constantCount + 1];
+    private void verifySection(Checksum checksum, byte[] buffer, String name, int from, int to, int expected) {
+        if (from > to || to > end || Crc32c.compute(checksum, contents, from, to, buffer) != expected) {
+            throw new CorruptDiffException("Class diff failed the checksum for its " + name);
+        }
+    }
 
-        int maxStringSize = 0;
-        int pointer = 8;
-        boolean hasCondy = false;
-        boolean hasBsm = false;
-        for (int i = 1; i < constantCount; i++) {
-            constantOffsets[i] = pointer + 1;
-            int size;
-            switch (contents[pointer]) {
-                case Symbol.CONSTANT_FIELDREF_TAG:
-                case Symbol.CONSTANT_METHODREF_TAG:
-                case Symbol.CONSTANT_INTERFACE_METHODREF_TAG:
-                case Symbol.CONSTANT_INTEGER_TAG:
-                case Symbol.CONSTANT_FLOAT_TAG:
-                case Symbol.CONSTANT_NAME_AND_TYPE_TAG:
-                    size = 5;
-                    break;
-                case Symbol.CONSTANT_DYNAMIC_TAG:
-                    size = 5;
-                    hasBsm = true;
-                    hasCondy = true;
-                    break;
-                case Symbol.CONSTANT_INVOKE_DYNAMIC_TAG:
-                    size = 5;
-                    hasBsm = true;
-                    break;
-                case Symbol.CONSTANT_LONG_TAG:
-                case Symbol.CONSTANT_DOUBLE_TAG:
-                    size = 9;
-                    i++;
-                    break;
-                case Symbol.CONSTANT_UTF8_TAG:
-                    size = 3 + readShort(pointer + 1);
-                    if (size > maxStringSize) {
-                        maxStringSize = size;
-                    }
-                    break;
-                case Symbol.CONSTANT_METHOD_HANDLE_TAG:
-                    size = 4;
-                    break;
-                case Symbol.CONSTANT_CLASS_TAG:
-                case Symbol.CONSTANT_STRING_TAG:
-                case Symbol.CONSTANT_METHOD_TYPE_TAG:
-                case Symbol.CONSTANT_PACKAGE_TAG:
-                case Symbol.CONSTANT_MODULE_TAG:
-                    size = 3;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown constant type: " + contents[pointer]);
+    /**
+     * Returns the offsets of the sections covered by checksums (the constant pool, the header, each attribute, and the
+     * members), followed by the end of the last one.
+     */
+    private int[] getChecksumSections() {
+        final int attributeOffset = getFirstAttributeOffset();
+        final int attributeCount = readShort(attributeOffset - 2);
+        final int[] result = new int[attributeCount + 4];
+        result[0] = 4;
+        result[1] = startPos;
+        int currentAttributeOffset = attributeOffset;
+        for (int i = 0; i < attributeCount; i++) {
+            result[i + 2] = currentAttributeOffset;
+            currentAttributeOffset += 6 + readInt(currentAttributeOffset + 2);
+        }
+        result[attributeCount + 2] = currentAttributeOffset;
+        result[attributeCount + 3] = end;
+        return result;
+    }
+
+    /**
+     * Returns whether this diff has checksums, which were verified when this reader was constructed. See {@link
+     * DiffWriter#setChecksums}.
+     */
+    public boolean hasChecksums() {
+        return hasChecksums;
+    }
+
+    /**
+     * Returns whether this diff carries the hashes of its base and target classes.
+     */
+    public boolean hasClassHashes() {
+        return hasClassHashes;
+    }
+
+    /**
+     * Returns the {@link io.github.prcraftmc.classdiff.util.Hashing#hashClass} of the class this diff applies to.
+     *
+     * @throws IllegalStateException if {@link #hasClassHashes()} is {@code false}
+     */
+    public long getBaseHash() {
+        if (!hasClassHashes) {
+            throw new IllegalStateException("Class diff does not contain class hashes");
+        }
+        return baseHash;
+    }
+
+    /**
+     * Returns the {@link io.github.prcraftmc.classdiff.util.Hashing#hashClass} of the class this diff produces.
+     *
+     * @throws IllegalStateException if {@link #hasClassHashes()} is {@code false}
+     */
+    public long getTargetHash() {
+        if (!hasClassHashes) {
+            throw new IllegalStateException("Class diff does not contain class hashes");
+        }
+        return targetHash;
+    }
+
+    /**
+     * Returns whether this diff carries its own reverse diff, as written with {@link
+     * io.github.prcraftmc.classdiff.ClassDiffer#REVERSIBLE}.
+     */
+    public boolean isReversible() {
+        return reverseDiffOffset != -1;
+    }
+
+    /**
+     * Returns whether this diff has a table of contents, which allows reading members individually. See {@link
+     * DiffWriter#setTableOfContents}.
+     */
+    public boolean hasTableOfContents() {
+        return membersOffset != -1;
+    }
+
+    public int getFieldCount() {
+        requireTableOfContents();
+        return fieldOffsets.length;
+    }
+
+    public int getMethodCount() {
+        requireTableOfContents();
+        return methodOffsets.length;
+    }
+
+    /**
+     * Reads only the field record at {@code index}, without reading anything before it. {@link
+     * DiffVisitor#visitField} is the only method called on {@code visitor}.
+     *
+     * @throws IllegalStateException If this diff has no {@link #hasTableOfContents() table of contents}
+     */
+    public void acceptField(int index, DiffVisitor visitor, ClassNode node) {
+        requireTableOfContents();
+        context.set(new Context());
+        try {
+            readField(new ByteReader(contents, membersOffset + fieldOffsets[index]), visitor, node);
+        } finally {
+            context.remove();
+        }
+    }
+
+    /**
+     * Reads only the method record at {@code index}, without reading anything before it. {@link
+     * DiffVisitor#visitMethod} is the only method called on {@code visitor}.
+     *
+     * @throws IllegalStateException If this diff has no {@link #hasTableOfContents() table of contents}
+     */
+    public void acceptMethod(int index, DiffVisitor visitor, ClassNode node) {
+        requireTableOfContents();
+        context.set(new Context());
+        try {
+            readMethod(new ByteReader(contents, membersOffset + methodOffsets[index]), visitor, node);
+        } finally {
+            context.remove();
+        }
+    }
+
+    private void requireTableOfContents() {
+        if (membersOffset == -1) {
+            throw new IllegalStateException("Diff has no table of contents");
+        }
+    }
+
+    /**
+     * Returns copies of the {@code CONSTANT_Utf8} entries in the constant pool, tag and length included.
+     */
+    List<ByteBuffer> getUtf8Constants() {
+        final List<ByteBuffer> result = new ArrayList<>();
+        for (final int offset : constantOffsets) {
+            if (offset != 0 && contents.get(offset - 1) == Symbol.CONSTANT_UTF8_TAG) {
+                result.add(ByteBuffer.wrap(copyOfRange(offset - 1, offset + 2 + readShort(offset))));
             }
-            pointer += size;
         }
-        charBuffer = new char[maxStringSize];
+        return result;
+    }
+
+    /**
+     * Returns a diff that undoes this diff. This is done by swapping this diff with its embedded reverse diff, so the
+     * base class isn't needed, and the result is reversible as well. The result has checksums if this diff does.
+     *
+     * @throws IllegalStateException if {@link #isReversible()} is {@code false}
+     */
+    public byte[] invert() {
+        if (reverseDiffOffset == -1) {
+            throw new IllegalStateException("Class diff is not reversible");
+        }
+        // Without the checksums, which no longer match once the reverse diff is taken out. The embedded diff is
+        // covered by the checksum of the attribute it ends up in instead.
+        final byte[] data = copyOfRange(0, end);
+        if (hasChecksums) {
+            ByteBuffer.wrap(data).putInt(0, DiffConstants.MAGIC);
+        }
+        final int reverseDiffLength = readInt(reverseDiffOffset - 4);
+        final int attributeStart = reverseDiffOffset - 6;
+        final int attributeEnd = reverseDiffOffset + reverseDiffLength;
+
+        final byte[] forward = new byte[data.length - (attributeEnd - attributeStart)];
+        System.arraycopy(data, 0, forward, 0, attributeStart);
+        System.arraycopy(data, attributeEnd, forward, attributeStart, data.length - attributeEnd);
+        final int attributeCountOffset = getFirstAttributeOffset() - 2;
+        final int attributeCount = readShort(attributeCountOffset) - 1;
+        forward[attributeCountOffset] = (byte)(attributeCount >>> 8);
+        forward[attributeCountOffset + 1] = (byte)attributeCount;
+
+        final byte[] result = new DiffReader(Arrays.copyOfRange(data, reverseDiffOffset, attributeEnd))
+            .withAttribute("Reverse", forward);
+        return hasChecksums ? new DiffReader(result).withChecksums() : result;
+    }
 
-        startPos = pointer;
+    /**
+     * Returns this diff with checksums, as if it had been written with {@link DiffWriter#setChecksums} on.
+     */
+    private byte[] withChecksums() {
+        final int[] sections = getChecksumSections();
+        final int sectionCount = sections.length - 1;
+        final ByteBuffer result = ByteBuffer.allocate(end + 4 * sectionCount + CHECKSUMS_FOOTER_SIZE);
+        result.put(copyOfRange(0, end));
+        result.putInt(0, DiffConstants.CHECKSUMMED_MAGIC);
+        final Checksum checksum = Crc32c.create();
+        final byte[] buffer = new byte[8192];
+        for (int i = 0; i < sectionCount; i++) {
+            result.putInt(Crc32c.compute(checksum, result, sections[i], sections[i + 1], buffer));
+        }
+        result.putShort((short)sectionCount).putInt(startPos).putInt(result.capacity());
+        return result.array();
+    }
 
-        if (hasCondy) {
-            condyCache = new ConstantDynamic[constantCount];
+    private byte[] withAttribute(String name, byte[] attribute) {
+        final byte[] data = copyOfRange(0, end);
+        int nameIndex = 0;
+        final int constantCount = readShort(6);
+        for (int i = 1; i < constantCount; i++) {
+            final int offset = constantOffsets[i];
+            if (
+                (i <= presetCount || offset != 0 && contents.get(offset - 1) == Symbol.CONSTANT_UTF8_TAG) &&
+                    name.equals(readUtf(i))
+            ) {
+                nameIndex = i;
+                break;
+            }
         }
-        if (hasBsm) {
-            bsmOffsets = readBsmAttribute();
+
+        final ByteVector result = new ByteVector(data.length + attribute.length + name.length() + 9);
+        final int attributeCountOffset = getFirstAttributeOffset() - 2;
+        if (nameIndex == 0) {
+            if (constantCount == 0xffff) {
+                throw new IllegalArgumentException("Class diff constant pool is full");
+            }
+            nameIndex = constantCount;
+            result.putByteArray(data, 0, 6);
+            result.putShort(constantCount + 1);
+            result.putByteArray(data, 8, startPos - 8);
+            result.putByte(Symbol.CONSTANT_UTF8_TAG).putUTF8(name);
+            result.putByteArray(data, startPos, attributeCountOffset - startPos);
+        } else {
+            result.putByteArray(data, 0, attributeCountOffset);
         }
+        result.putShort(readShort(attributeCountOffset) + 1);
+        result.putShort(nameIndex).putInt(attribute.length).putByteArray(attribute, 0, attribute.length);
+        result.putByteArray(data, attributeCountOffset + 2, data.length - attributeCountOffset - 2);
+        return Arrays.copyOf(ReflectUtils.getByteVectorData(result), result.size());
     }
 
     public void accept(DiffVisitor visitor, ClassNode node) {
         context.set(new Context());
+        try {
+            readDiff(visitor, node);
+        } finally {
+            context.remove();
+        }
+    }
 
+    private void readDiff(DiffVisitor visitor, ClassNode node) {
         final ByteReader reader = new ByteReader(contents, startPos + 14);
 
         final Patch<String> interfacePatch;
         {
-            if (reader.readShort() == 0) {
+            final int patchStart = reader.pointer();
+            if (readVarShort(reader) == 0) {
                 interfacePatch = null;
             } else {
-                reader.skip(-2);
+                reader.pointer(patchStart);
                 interfacePatch = classPatchReader.readPatch(
-                    reader, Util.nullToEmpty(node.interfaces)
+                    reader, Util.nullToEmpty(node.interfaces), varInts
                 );
             }
         }
 
+        if (hasClassHashes) {
+            visitor.visitClassHashes(baseHash, targetHash);
+        }
+        if (reverseDiffOffset != -1) {
+            visitor.visitReverseDiff(copyOfRange(reverseDiffOffset, reverseDiffOffset + readInt(reverseDiffOffset - 4)
+            ));
+        }
+
         visitor.visit(
             version,
             readInt(startPos),
@@ -177,7 +575,7 @@ public class DiffReader {
                         );
                     }).readPatch(
                         reader,
-                        Util.nullToEmpty(node.innerClasses)
+                        Util.nullToEmpty(node.innerClasses), varInts
                     ));
                     break;
                 case "OuterClasses":
@@ -193,45 +591,45 @@ public class DiffReader {
                 case "NestMembers":
                     visitor.visitNestMembers(classPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.nestMembers)
+                        Util.nullToEmpty(node.nestMembers), varInts
                     ));
                     break;
                 case "PermittedSubclasses":
                     visitor.visitPermittedSubclasses(classPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.permittedSubclasses)
+                        Util.nullToEmpty(node.permittedSubclasses), varInts
                     ));
                     break;
                 case "VisibleAnnotations":
                     visitor.visitAnnotations(annotationPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.visibleAnnotations)
+                        Util.nullToEmpty(node.visibleAnnotations), varInts
                     ), true);
                     break;
                 case "InvisibleAnnotations":
                     visitor.visitAnnotations(annotationPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.invisibleAnnotations)
+                        Util.nullToEmpty(node.invisibleAnnotations), varInts
                     ), false);
                     break;
                 case "VisibleTypeAnnotations":
                     visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.visibleTypeAnnotations)
+                        Util.nullToEmpty(node.visibleTypeAnnotations), varInts
                     ), true);
                     break;
                 case "InvisibleTypeAnnotations":
                     visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                         reader,
-                        Util.nullToEmpty(node.invisibleTypeAnnotations)
+                        Util.nullToEmpty(node.invisibleTypeAnnotations), varInts
                     ), false);
                     break;
                 case "RecordComponents":
                     visitor.visitRecordComponents(memberNamePatchReader.readPatch(
                         reader, node.recordComponents != null
-                            ? MemberName.fromRecordComponents(node.recordComponents) : Collections.emptyList()
+                            ? MemberName.fromRecordComponents(node.recordComponents) : Collections.emptyList(), varInts
                     ));
-                    for (int j = 0, l = reader.readShort(); j < l; j++) {
+                    for (int j = 0, l = readVarShort(reader); j < l; j++) {
                         readRecordComponent(reader, visitor, node);
                     }
                     break;
@@ -254,7 +652,7 @@ public class DiffReader {
                         if (reader.readByte() != 0) {
                             visitor.visitCustomAttribute(
                                 attributeName.substring(6),
-                                Arrays.copyOfRange(contents, reader.pointer(), reader.pointer() + attributeLength - 1)
+                                copyOfRange(reader.pointer(), reader.pointer() + attributeLength - 1)
                             );
                         } else {
                             visitor.visitCustomAttribute(attributeName.substring(6), null);
@@ -267,22 +665,21 @@ public class DiffReader {
 
         visitor.visitFields(memberNamePatchReader.readPatch(
             reader,
-            node.fields != null ? MemberName.fromFields(node.fields) : Collections.emptyList()
+            node.fields != null ? MemberName.fromFields(node.fields) : Collections.emptyList(), varInts
         ));
-        for (int i = 0, l = reader.readShort(); i < l; i++) {
+        for (int i = 0, l = readVarShort(reader); i < l; i++) {
             readField(reader, visitor, node);
         }
 
         visitor.visitMethods(memberNamePatchReader.readPatch(
             reader,
-            node.methods != null ? MemberName.fromMethods(node.methods) : Collections.emptyList()
+            node.methods != null ? MemberName.fromMethods(node.methods) : Collections.emptyList(), varInts
         ));
-        for (int i = 0, l = reader.readShort(); i < l; i++) {
+        for (int i = 0, l = readVarShort(reader); i < l; i++) {
             readMethod(reader, visitor, node);
         }
 
         visitor.visitEnd();
-        context.remove();
     }
 
     private void readMethod(ByteReader reader, DiffVisitor diffVisitor, ClassNode classNode) {
@@ -306,7 +703,7 @@ public class DiffReader {
         }
 
         final Patch<String> exceptions = classPatchReader.readPatch(
-            reader, Util.nullToEmpty(node.exceptions)
+            reader, Util.nullToEmpty(node.exceptions), varInts
         );
         final MethodDiffVisitor visitor = diffVisitor.visitMethod(access, name, descriptor, signature, exceptions);
 
@@ -324,25 +721,25 @@ public class DiffReader {
                     case "VisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleAnnotations)
+                            Util.nullToEmpty(node.visibleAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleAnnotations)
+                            Util.nullToEmpty(node.invisibleAnnotations), varInts
                         ), false);
                         break;
                     case "VisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleTypeAnnotations)
+                            Util.nullToEmpty(node.visibleTypeAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleTypeAnnotations)
+                            Util.nullToEmpty(node.invisibleTypeAnnotations), varInts
                         ), false);
                         break;
                     case "AnnotationDefault":
@@ -360,7 +757,7 @@ public class DiffReader {
                         final List<Patch<AnnotationNode>> patches = new ArrayList<>(paramCount);
                         for (int j = 0; j < paramCount; j++) {
                             patches.add(annotationPatchReader.readPatch(
-                                reader, Util.getListFromArray(node.visibleParameterAnnotations, j)
+                                reader, Util.getListFromArray(node.visibleParameterAnnotations, j), varInts
                             ));
                         }
                         visitor.visitParameterAnnotations(annotableCount, patches, true);
@@ -372,7 +769,7 @@ public class DiffReader {
                         final List<Patch<AnnotationNode>> patches = new ArrayList<>(paramCount);
                         for (int j = 0; j < paramCount; j++) {
                             patches.add(annotationPatchReader.readPatch(
-                                reader, Util.getListFromArray(node.invisibleParameterAnnotations, j)
+                                reader, Util.getListFromArray(node.invisibleParameterAnnotations, j), varInts
                             ));
                         }
                         visitor.visitParameterAnnotations(annotableCount, patches, false);
@@ -382,15 +779,36 @@ public class DiffReader {
                         visitor.visitParameters(new PatchReader<>(reader1 -> {
                             reader1.skip(2);
                             return new ParameterNode(readUtf8(reader1.pointer() - 2), reader1.readInt());
-                        }).readPatch(reader, Util.nullToEmpty(node.parameters)));
+                        }).readPatch(reader, Util.nullToEmpty(node.parameters), varInts));
                         break;
                     case "Maxs":
-                        visitor.visitMaxs(reader.readShort(), reader.readShort());
+                        visitor.visitMaxs(readVarShort(reader), readVarShort(reader));
                         break;
                     case "Insns": {
-                        final int unpatchedInsnCount = reader.readShort();
-                        final Patch<AbstractInsnNode> patch = new PatchReader<>(this::readInsn)
-                            .readPatch(reader, new InsnListAdapter(node.instructions));
+                        final int unpatchedInsnCount = readVarShort(reader);
+                        final InsnListAdapter unpatched = new InsnListAdapter(node.instructions);
+                        final int[] copy = new int[2]; // Next source index and remaining length of the current copy
+                        final Patch<AbstractInsnNode> patch = new PatchReader<>(reader1 -> {
+                            if (copy[1] == 0) {
+                                if (
+                                    contents.get(reader1.pointer()) != (byte)255 ||
+                                        contents.get(reader1.pointer() + 1) != DiffConstants.INSN_COPY
+                                ) {
+                                    return readInsn(reader1);
+                                }
+                                reader1.skip(2);
+                                copy[0] = reader1.readVarInt();
+                                copy[1] = reader1.readVarInt();
+                                if (copy[0] + copy[1] > unpatched.size()) {
+                                    throw new IllegalArgumentException(
+                                        "Insn copy of " + copy[1] + " insns from " + copy[0] +
+                                            " out of bounds for " + unpatched.size() + " insns"
+                                    );
+                                }
+                            }
+                            copy[1]--;
+                            return copyInsn(unpatched.get(copy[0]++));
+                        }).readPatch(reader, unpatched, varInts);
                         final MethodNode fNode = node;
                         visitor.visitInsns(unpatchedInsnCount, patch, Util.lazy(() -> { // We need to apply the patch to calculate this
                             final Map<LabelNode, LabelNode> clonedLabels = new HashMap<>();
@@ -412,7 +830,7 @@ public class DiffReader {
                         break;
                     }
                     case "LocalVariables": {
-                        final int nLocals = reader.readShort();
+                        final int nLocals = readVarShort(reader);
                         final List<LocalVariableNode> locals = new ArrayList<>(nLocals);
                         for (int j = 0; j < nLocals; j++) {
                             reader.skip(6);
@@ -420,27 +838,27 @@ public class DiffReader {
                                 readUtf8(reader.pointer() - 6),
                                 readUtf8(reader.pointer() - 4),
                                 readUtf8(reader.pointer() - 2),
-                                new SyntheticLabelNode(reader.readShort()),
-                                new SyntheticLabelNode(reader.readShort()),
-                                reader.readShort()
+                                new SyntheticLabelNode(readVarShort(reader)),
+                                new SyntheticLabelNode(readVarShort(reader)),
+                                readVarShort(reader)
                             ));
                         }
                         visitor.visitLocalVariables(locals, null);
                         break;
                     }
                     case "TryCatchBlocks": {
-                        final int nBlocks = reader.readShort();
+                        final int nBlocks = readVarShort(reader);
                         final List<TryCatchBlockNode> blocks = new ArrayList<>(nBlocks);
                         for (int j = 0; j < nBlocks; j++) {
                             final TryCatchBlockNode block = new TryCatchBlockNode(
-                                new SyntheticLabelNode(reader.readShort()),
-                                new SyntheticLabelNode(reader.readShort()),
-                                new SyntheticLabelNode(reader.readShort()),
+                                new SyntheticLabelNode(readVarShort(reader)),
+                                new SyntheticLabelNode(readVarShort(reader)),
+                                new SyntheticLabelNode(readVarShort(reader)),
                                 readClass(reader.pointer())
                             );
                             reader.skip(2);
 
-                            final int invisibleAnnotationCount = reader.readShort();
+                            final int invisibleAnnotationCount = readVarShort(reader);
                             if (invisibleAnnotationCount > 0) {
                                 block.invisibleTypeAnnotations = new ArrayList<>(invisibleAnnotationCount);
                                 for (int k = 0; k < invisibleAnnotationCount; k++) {
@@ -448,7 +866,7 @@ public class DiffReader {
                                 }
                             }
 
-                            final int visibleAnnotationCount = reader.readShort();
+                            final int visibleAnnotationCount = readVarShort(reader);
                             if (visibleAnnotationCount > 0) {
                                 block.visibleTypeAnnotations = new ArrayList<>(visibleAnnotationCount);
                                 for (int k = 0; k < visibleAnnotationCount; k++) {
@@ -463,27 +881,27 @@ public class DiffReader {
                     }
                     case "InvisibleLocalVariableAnnotations":
                     case "VisibleLocalVariableAnnotations": {
-                        final int count = reader.readShort();
+                        final int count = readVarShort(reader);
                         final List<LocalVariableAnnotationNode> annotations = new ArrayList<>(count);
                         for (int j = 0; j < count; j++) {
                             final TypeAnnotationNode typeAnnotation = readTypeAnnotation(reader);
 
-                            final int startCount = reader.readShort();
+                            final int startCount = readVarShort(reader);
                             final LabelNode[] start = new LabelNode[startCount];
                             for (int k = 0; k < startCount; k++) {
-                                start[k] = new SyntheticLabelNode(reader.readShort());
+                                start[k] = new SyntheticLabelNode(readVarShort(reader));
                             }
 
-                            final int endCount = reader.readShort();
+                            final int endCount = readVarShort(reader);
                             final LabelNode[] end = new LabelNode[endCount];
                             for (int k = 0; k < endCount; k++) {
-                                end[k] = new SyntheticLabelNode(reader.readShort());
+                                end[k] = new SyntheticLabelNode(readVarShort(reader));
                             }
 
-                            final int indexCount = reader.readShort();
+                            final int indexCount = readVarShort(reader);
                             final int[] index = new int[indexCount];
                             for (int k = 0; k < indexCount; k++) {
-                                index[k] = reader.readShort();
+                                index[k] = readVarShort(reader);
                             }
 
                             annotations.add(new LocalVariableAnnotationNode(
@@ -499,11 +917,11 @@ public class DiffReader {
                     }
                     case "InvisibleInsnAnnotations":
                     case "VisibleInsnAnnotations": {
-                        final int nAnnotations = reader.readShort();
+                        final int nAnnotations = readVarShort(reader);
                         final int[] indices = new int[nAnnotations];
                         final List<TypeAnnotationNode> annotations = new ArrayList<>(nAnnotations);
                         for (int j = 0; j < nAnnotations; j++) {
-                            indices[j] = reader.readShort();
+                            indices[j] = readVarShort(reader);
                             annotations.add(readTypeAnnotation(reader));
                         }
                         visitor.visitInsnAnnotations(indices, annotations, !attrName.startsWith("In"));
@@ -514,7 +932,7 @@ public class DiffReader {
                             if (reader.readByte() != 0) {
                                 visitor.visitCustomAttribute(
                                     attrName.substring(6),
-                                    Arrays.copyOfRange(contents, reader.pointer(), reader.pointer() + attrLength - 1)
+                                    copyOfRange(reader.pointer(), reader.pointer() + attrLength - 1)
                                 );
                             } else {
                                 visitor.visitCustomAttribute(attrName.substring(6), null);
@@ -568,25 +986,25 @@ public class DiffReader {
                     case "VisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleAnnotations)
+                            Util.nullToEmpty(node.visibleAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleAnnotations)
+                            Util.nullToEmpty(node.invisibleAnnotations), varInts
                         ), false);
                         break;
                     case "VisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleTypeAnnotations)
+                            Util.nullToEmpty(node.visibleTypeAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleTypeAnnotations)
+                            Util.nullToEmpty(node.invisibleTypeAnnotations), varInts
                         ), false);
                         break;
                     default:
@@ -594,7 +1012,7 @@ public class DiffReader {
                             if (reader.readByte() != 0) {
                                 visitor.visitCustomAttribute(
                                     attrName.substring(6),
-                                    Arrays.copyOfRange(contents, reader.pointer(), reader.pointer() + attrLength - 1)
+                                    copyOfRange(reader.pointer(), reader.pointer() + attrLength - 1)
                                 );
                             } else {
                                 visitor.visitCustomAttribute(attrName.substring(6), null);
@@ -625,7 +1043,7 @@ public class DiffReader {
                     break;
                 case "Packages":
                     visitor.visitPackages(packagePatchReader.readPatch(
-                        reader, Util.nullToEmpty(node.packages)
+                        reader, Util.nullToEmpty(node.packages), varInts
                     ));
                     break;
                 case "Requires":
@@ -636,7 +1054,7 @@ public class DiffReader {
                             readShort(reader1.pointer() - 4),
                             readUtf8(reader1.pointer() - 2)
                         );
-                    }).readPatch(reader, Util.nullToEmpty(node.requires)));
+                    }).readPatch(reader, Util.nullToEmpty(node.requires), varInts));
                     break;
                 case "Exports":
                     visitor.visitExports(new PatchReader<>(reader1 -> {
@@ -649,7 +1067,7 @@ public class DiffReader {
                             reader1.skip(2);
                         }
                         return new ModuleExportNode(exports, exportsFlags, exportsTo);
-                    }).readPatch(reader, Util.nullToEmpty(node.exports)));
+                    }).readPatch(reader, Util.nullToEmpty(node.exports), varInts));
                     break;
                 case "Opens":
                     visitor.visitOpens(new PatchReader<>(reader1 -> {
@@ -662,10 +1080,10 @@ public class DiffReader {
                             reader1.skip(2);
                         }
                         return new ModuleOpenNode(opens, opensFlags, opensTo);
-                    }).readPatch(reader, Util.nullToEmpty(node.opens)));
+                    }).readPatch(reader, Util.nullToEmpty(node.opens), varInts));
                     break;
                 case "Uses":
-                    visitor.visitUses(classPatchReader.readPatch(reader, Util.nullToEmpty(node.uses)));
+                    visitor.visitUses(classPatchReader.readPatch(reader, Util.nullToEmpty(node.uses), varInts));
                     break;
                 case "Provides":
                     visitor.visitProvides(new PatchReader<>(reader1 -> {
@@ -677,7 +1095,7 @@ public class DiffReader {
                             reader1.skip(2);
                         }
                         return new ModuleProvideNode(provides, providesWith);
-                    }).readPatch(reader, Util.nullToEmpty(node.provides)));
+                    }).readPatch(reader, Util.nullToEmpty(node.provides), varInts));
                     break;
             }
             reader.pointer(endPos);
@@ -723,25 +1141,25 @@ public class DiffReader {
                     case "VisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleAnnotations)
+                            Util.nullToEmpty(node.visibleAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleAnnotations":
                         visitor.visitAnnotations(annotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleAnnotations)
+                            Util.nullToEmpty(node.invisibleAnnotations), varInts
                         ), false);
                         break;
                     case "VisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.visibleTypeAnnotations)
+                            Util.nullToEmpty(node.visibleTypeAnnotations), varInts
                         ), true);
                         break;
                     case "InvisibleTypeAnnotations":
                         visitor.visitTypeAnnotations(typeAnnotationPatchReader.readPatch(
                             reader,
-                            Util.nullToEmpty(node.invisibleTypeAnnotations)
+                            Util.nullToEmpty(node.invisibleTypeAnnotations), varInts
                         ), false);
                         break;
                     default:
@@ -749,7 +1167,7 @@ public class DiffReader {
                             if (reader.readByte() != 0) {
                                 visitor.visitCustomAttribute(
                                     attrName.substring(6),
-                                    Arrays.copyOfRange(contents, reader.pointer(), reader.pointer() + attrLength - 1)
+                                    copyOfRange(reader.pointer(), reader.pointer() + attrLength - 1)
                                 );
                             } else {
                                 visitor.visitCustomAttribute(attrName.substring(6), null);
@@ -767,15 +1185,19 @@ public class DiffReader {
     }
 
     private int readInt(int offset) {
-        return ((contents[offset] & 0xff) << 24)
-            | ((contents[offset + 1] & 0xff) << 16)
-            | ((contents[offset + 2] & 0xff) << 8)
-            | (contents[offset + 3] & 0xff);
+        return contents.getInt(offset);
     }
 
     private int readShort(int offset) {
-        return ((contents[offset] & 0xff) << 8)
-            | (contents[offset + 1] & 0xff);
+        return contents.getShort(offset) & 0xffff;
+    }
+
+    private byte[] copyOfRange(int from, int to) {
+        final byte[] result = new byte[to - from];
+        final ByteBuffer source = contents.duplicate();
+        source.position(from);
+        source.get(result);
+        return result;
     }
 
     private String readClass(int offset) {
@@ -803,35 +1225,47 @@ public class DiffReader {
     }
 
     private String readUtf(int constantIndex) {
-        final String result = constantStringCache[constantIndex];
+        String result = constantStringCache.get(constantIndex);
         if (result != null) {
             return result;
         }
         final int offset = constantOffsets[constantIndex];
-        return constantStringCache[constantIndex] = readUtf(offset + 2, readShort(offset));
+        result = readUtf(offset + 2, readShort(offset));
+        constantStringCache.lazySet(constantIndex, result);
+        return result;
     }
 
     private String readUtf(int utfOffset, int utfLength) {
-        final char[] charBuffer = this.charBuffer;
+        if (stringCache != null) {
+            final String cached = stringCache.get(contents, utfOffset, utfLength);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final char[] charBuffer = new char[utfLength];
         int currentOffset = utfOffset;
         final int endOffset = currentOffset + utfLength;
         int strLength = 0;
-        final byte[] input = contents;
+        final ByteBuffer input = contents;
         while (currentOffset < endOffset) {
-            final int currentByte = input[currentOffset++];
+            final int currentByte = input.get(currentOffset++);
             if ((currentByte & 0x80) == 0) {
                 charBuffer[strLength++] = (char)(currentByte & 0x7f);
             } else if ((currentByte & 0xE0) == 0xC0) {
-                charBuffer[strLength++] = (char)(((currentByte & 0x1f) << 6) + (input[currentOffset++] & 0x3f));
+                charBuffer[strLength++] = (char)(((currentByte & 0x1f) << 6) + (input.get(currentOffset++) & 0x3f));
             } else {
                 charBuffer[strLength++] =
                     (char)(((currentByte & 0xf) << 12)
-                        + ((input[currentOffset++] & 0x3f) << 6)
-                        + (input[currentOffset++] & 0x3f)
+                        + ((input.get(currentOffset++) & 0x3f) << 6)
+                        + (input.get(currentOffset++) & 0x3f)
                     );
             }
         }
-        return new String(charBuffer, 0, strLength);
+        final String result = new String(charBuffer, 0, strLength);
+        if (stringCache != null) {
+            stringCache.put(contents, utfOffset, utfLength, result);
+        }
+        return result;
     }
 
     private int readElementValues(AnnotationVisitor annotationVisitor, int currentOffset, boolean named) {
@@ -852,7 +1286,7 @@ public class DiffReader {
     }
 
     private int readElementValue(AnnotationVisitor annotationVisitor, int currentOffset, String elementName) {
-        switch (contents[currentOffset++] & 0xff) {
+        switch (contents.get(currentOffset++) & 0xff) {
             case 'B':
                 annotationVisitor.visit(elementName, (byte)readInt(constantOffsets[readShort(currentOffset)]));
                 currentOffset += 2;
@@ -901,7 +1335,7 @@ public class DiffReader {
                 if (numValues == 0) {
                     return readElementValues(annotationVisitor.visitArray(elementName), currentOffset - 2, false);
                 }
-                switch (contents[currentOffset] & 0xff) {
+                switch (contents.get(currentOffset) & 0xff) {
                     case 'B': {
                         final byte[] values = new byte[numValues];
                         for (int i = 0; i < numValues; i++) {
@@ -988,7 +1422,7 @@ public class DiffReader {
 
     private Object readConst(int constantPoolEntryIndex) {
         final int cpInfoOffset = constantOffsets[constantPoolEntryIndex];
-        switch (contents[cpInfoOffset - 1]) {
+        switch (contents.get(cpInfoOffset - 1)) {
             case Symbol.CONSTANT_INTEGER_TAG:
                 return readInt(cpInfoOffset);
             case Symbol.CONSTANT_FLOAT_TAG:
@@ -1004,13 +1438,13 @@ public class DiffReader {
             case Symbol.CONSTANT_METHOD_TYPE_TAG:
                 return Type.getMethodType(readUtf8(cpInfoOffset));
             case Symbol.CONSTANT_METHOD_HANDLE_TAG: {
-                final int referenceKind = contents[cpInfoOffset] & 0xff;
+                final int referenceKind = contents.get(cpInfoOffset) & 0xff;
                 final int referenceCpInfoOffset = constantOffsets[readShort(cpInfoOffset + 1)];
                 final int nameAndTypeCpInfoOffset = constantOffsets[readShort(referenceCpInfoOffset + 2)];
                 final String owner = readClass(referenceCpInfoOffset);
                 final String name = readUtf8(nameAndTypeCpInfoOffset);
                 final String descriptor = readUtf8(nameAndTypeCpInfoOffset + 2);
-                final boolean isInterface = contents[referenceCpInfoOffset - 1] == Symbol.CONSTANT_INTERFACE_METHODREF_TAG;
+                final boolean isInterface = contents.get(referenceCpInfoOffset - 1) == Symbol.CONSTANT_INTERFACE_METHODREF_TAG;
                 return new Handle(referenceKind, owner, name, descriptor, isInterface);
             }
             case Symbol.CONSTANT_DYNAMIC_TAG:
@@ -1021,54 +1455,61 @@ public class DiffReader {
     }
 
     private long readLong(int offset) {
-        return ((readInt(offset) & 0xffffffffL) << 32) | (readInt(offset + 4) & 0xffffffffL);
+        return contents.getLong(offset);
     }
 
     private int getFirstAttributeOffset() {
-        final int deltaCount = readShort(startPos + 14);
-        int offset = startPos + 16;
-        for (int i = 0; i < deltaCount; i++) {
-            switch (DeltaType.values()[contents[offset++]]) {
-                case CHANGE:
-                    offset += 6 + 2 * readShort(offset + 4);
-                    break;
-                case DELETE:
-                    offset += 4;
-                    break;
-                case INSERT:
-                    offset += 4 + 2 * readShort(offset + 2);
-                    break;
-                case EQUAL:
-                    break;
-                default:
-                    throw new IllegalArgumentException();
-            }
-        }
-        return offset + 2;
+        final ByteReader reader = new ByteReader(contents, startPos + 14);
+        classPatchReader.skipPatch(reader, varInts);
+        return reader.pointer() + 2;
     }
 
-    private int[] readBsmAttribute() {
+    private int readVarShort(ByteReader reader) {
+        return varInts ? reader.readVarInt() : reader.readShort();
+    }
+
+    private int readLabel(ByteReader reader) {
+        return varInts ? reader.readVarInt() : reader.readInt();
+    }
+
+    private int findAttribute(String name) {
         int currentAttributeOffset = getFirstAttributeOffset();
         for (int i = readShort(currentAttributeOffset - 2); i > 0; i--) {
             final String attrName = readUtf8(currentAttributeOffset);
             final int attrLength = readInt(currentAttributeOffset + 2);
             currentAttributeOffset += 6;
-            if ("BootstrapMethods".equals(attrName)) {
-                final int[] result = new int[readShort(currentAttributeOffset)];
-                int currentBsmOffset = currentAttributeOffset + 2;
-                for (int j = 0; j < result.length; j++) {
-                    result[j] = currentBsmOffset;
-                    currentBsmOffset += 4 + 2 * readShort(currentBsmOffset + 2);
-                }
-                return result;
+            if (name.equals(attrName)) {
+                return currentAttributeOffset;
             }
             currentAttributeOffset += attrLength;
         }
-        throw new IllegalArgumentException();
+        return -1;
+    }
+
+    private int getMembersOffset() {
+        int currentAttributeOffset = getFirstAttributeOffset();
+        for (int i = readShort(currentAttributeOffset - 2); i > 0; i--) {
+            currentAttributeOffset += 6 + readInt(currentAttributeOffset + 2);
+        }
+        return currentAttributeOffset;
+    }
+
+    private int[] readBsmAttribute() {
+        final int bsmAttributeOffset = findAttribute("BootstrapMethods");
+        if (bsmAttributeOffset == -1) {
+            throw new IllegalArgumentException();
+        }
+        final int[] result = new int[readShort(bsmAttributeOffset)];
+        int currentBsmOffset = bsmAttributeOffset + 2;
+        for (int j = 0; j < result.length; j++) {
+            result[j] = currentBsmOffset;
+            currentBsmOffset += 4 + 2 * readShort(currentBsmOffset + 2);
+        }
+        return result;
     }
 
     private ConstantDynamic readConstantDynamic(int constantPoolEntryIndex) {
-        final ConstantDynamic result = condyCache[constantPoolEntryIndex];
+        final ConstantDynamic result = condyCache.get(constantPoolEntryIndex);
         if (result != null) {
             return result;
         }
@@ -1084,7 +1525,9 @@ public class DiffReader {
             bootstrapMethodArguments[i] = readConst(readShort(bootstrapMethodOffset));
             bootstrapMethodOffset += 2;
         }
-        return condyCache[constantPoolEntryIndex] = new ConstantDynamic(name, descriptor, handle, bootstrapMethodArguments);
+        final ConstantDynamic constantDynamic = new ConstantDynamic(name, descriptor, handle, bootstrapMethodArguments);
+        condyCache.lazySet(constantPoolEntryIndex, constantDynamic);
+        return constantDynamic;
     }
 
     private int readTypeAnnotationTarget(int typeAnnotationOffset, Context context) {
@@ -1134,9 +1577,9 @@ public class DiffReader {
         }
         context.currentTypeAnnotationTarget = targetType;
         // Parse and store the target_path structure.
-        int pathLength = contents[currentOffset] & 0xff;
+        int pathLength = contents.get(currentOffset) & 0xff;
         context.currentTypeAnnotationTargetPath =
-            pathLength == 0 ? null : ReflectUtils.newTypePath(contents, currentOffset);
+            pathLength == 0 ? null : ReflectUtils.newTypePath(copyOfRange(currentOffset, currentOffset + 1 + 2 * pathLength), 0);
         // Return the start offset of the rest of the type_annotation structure.
         return currentOffset + 1 + 2 * pathLength;
     }
@@ -1327,7 +1770,7 @@ public class DiffReader {
             case Opcodes.JSR:
             case Opcodes.IFNULL:
             case Opcodes.IFNONNULL:
-                return new JumpInsnNode(opcode, new SyntheticLabelNode(reader.readShort()));
+                return new JumpInsnNode(opcode, new SyntheticLabelNode(readVarShort(reader)));
             case DiffConstants.GOTO_W:
             case DiffConstants.JSR_W:
                 return new JumpInsnNode(
@@ -1342,23 +1785,23 @@ public class DiffReader {
                 return new VarInsnNode(opcode, reader.readShort());
             }
             case Opcodes.TABLESWITCH: {
-                final LabelNode defaultLabel = new SyntheticLabelNode(reader.readInt());
+                final LabelNode defaultLabel = new SyntheticLabelNode(readLabel(reader));
                 final int low = reader.readInt();
                 final int high = reader.readInt();
                 final LabelNode[] table = new LabelNode[high - low + 1];
                 for (int i = 0; i < table.length; i++) {
-                    table[i] = new SyntheticLabelNode(reader.readInt());
+                    table[i] = new SyntheticLabelNode(readLabel(reader));
                 }
                 return new TableSwitchInsnNode(low, high, defaultLabel, table);
             }
             case Opcodes.LOOKUPSWITCH: {
-                final LabelNode defaultLabel = new SyntheticLabelNode(reader.readInt());
+                final LabelNode defaultLabel = new SyntheticLabelNode(readLabel(reader));
                 final int numPairs = reader.readInt();
                 final int[] keys = new int[numPairs];
                 final LabelNode[] values = new LabelNode[numPairs];
                 for (int i = 0; i < numPairs; i++) {
                     keys[i] = reader.readInt();
-                    values[i] = new SyntheticLabelNode(reader.readInt());
+                    values[i] = new SyntheticLabelNode(readLabel(reader));
                 }
                 return new LookupSwitchInsnNode(defaultLabel, keys, values);
             }
@@ -1405,7 +1848,7 @@ public class DiffReader {
                 }
                 return new MethodInsnNode(
                     opcode, owner, name, descriptor,
-                    contents[cpInfoOffset - 1] == Symbol.CONSTANT_INTERFACE_METHODREF_TAG
+                    contents.get(cpInfoOffset - 1) == Symbol.CONSTANT_INTERFACE_METHODREF_TAG
                 );
             }
             case Opcodes.INVOKEDYNAMIC: {
@@ -1445,22 +1888,22 @@ public class DiffReader {
                         switch (frameType) {
                             case (byte)Opcodes.F_NEW:
                             case Opcodes.F_FULL:
-                                numLocal = reader.readShort();
-                                numStack = reader.readShort();
+                                numLocal = readVarShort(reader);
+                                numStack = readVarShort(reader);
                                 return new FrameNode(
                                     frameType,
                                     numLocal, readFrameObjects(numLocal, reader),
                                     numStack, readFrameObjects(numStack, reader)
                                 );
                             case Opcodes.F_APPEND:
-                                numLocal = reader.readShort();
+                                numLocal = readVarShort(reader);
                                 return new FrameNode(
                                     Opcodes.F_APPEND,
                                     numLocal, readFrameObjects(numLocal, reader),
                                     0, null
                                 );
                             case Opcodes.F_CHOP:
-                                numLocal = reader.readShort();
+                                numLocal = readVarShort(reader);
                                 return new FrameNode(
                                     Opcodes.F_CHOP,
                                     numLocal, null,
@@ -1483,7 +1926,7 @@ public class DiffReader {
                         }
                     }
                     case AbstractInsnNode.LINE:
-                        return new LineNumberNode(reader.readShort(), new SyntheticLabelNode(reader.readShort()));
+                        return new LineNumberNode(readVarShort(reader), new SyntheticLabelNode(readVarShort(reader)));
                     default:
                         throw new IllegalArgumentException("Unknown special insn type " + specialType);
                 }
@@ -1493,6 +1936,17 @@ public class DiffReader {
         }
     }
 
+    private static AbstractInsnNode copyInsn(AbstractInsnNode insn) {
+        if (insn instanceof LabelNode) {
+            return new LabelNode();
+        }
+        // Insns referring to labels are never copied, so the label map is unused
+        final AbstractInsnNode result = insn.clone(Collections.emptyMap());
+        result.visibleTypeAnnotations = null;
+        result.invisibleTypeAnnotations = null;
+        return result;
+    }
+
     private Object[] readFrameObjects(int count, ByteReader reader) {
         final Object[] result = new Object[count];
         for (int i = 0; i < count; i++) {
@@ -1516,12 +1970,17 @@ public class DiffReader {
                 reader.skip(2);
                 return readClass(reader.pointer() - 2);
             case Frame.ITEM_UNINITIALIZED:
-                return new SyntheticLabelNode(reader.readShort());
+                return new SyntheticLabelNode(readVarShort(reader));
             default:
                 throw new IllegalArgumentException("Unknown frame object type tag " + tag);
         }
     }
 
+    private MemberName readMemberName(ByteReader reader) {
+        final int nameAndTypeOffset = constantOffsets[reader.readShort()];
+        return new MemberName(readUtf8(nameAndTypeOffset), readUtf8(nameAndTypeOffset + 2));
+    }
+
     private TypeAnnotationNode readTypeAnnotation(ByteReader reader) {
         final Context context = this.context.get();
         reader.pointer(readTypeAnnotationTarget(reader.pointer(), context));
@@ -24,6 +24,28 @@ public abstract class DiffVisitor implements AnnotatedElementVisitor, CustomAttr
         return delegate;
     }
 
+    /**
+     * Visits the hashes of the base and target classes, as computed by
+     * {@link io.github.prcraftmc.classdiff.util.Hashing#hashClass}. If present, this is called before {@link #visit}.
+     */
+    public void visitClassHashes(long baseHash, long targetHash) {
+        if (delegate != null) {
+            delegate.visitClassHashes(baseHash, targetHash);
+        }
+    }
+
+    /**
+     * Visits a complete diff from the target class back to the base class, which makes this diff invertible without
+     * the base class. If present, this is called before {@link #visit}.
+     *
+     * @see DiffReader#invert()
+     */
+    public void visitReverseDiff(byte[] reverseDiff) {
+        if (delegate != null) {
+            delegate.visitReverseDiff(reverseDiff);
+        }
+    }
+
     public void visit(
         int diffVersion,
         int classVersion,
@@ -7,10 +7,22 @@ import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.function.Supplier;
 
 public class DiffWriter extends DiffVisitor {
+    /**
+     * The largest buffer, in bytes, that {@link #reset()} keeps for reuse. Larger ones are left to be collected, so
+     * that one huge class doesn't pin its buffers for the life of the writer.
+     */
+    public static final int MAX_RETAINED_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_VECTORS = 256;
+
     private final SymbolTable symbolTable = new SymbolTable();
     private final PatchWriter<String> classPatchWriter = new PatchWriter<>((vec, value) ->
         vec.putShort(symbolTable.addConstantClass(value).index)
@@ -29,7 +41,17 @@ public class DiffWriter extends DiffVisitor {
         vec.putShort(symbolTable.addConstantPackage(value).index)
     );
 
+    private boolean hasClassHashes;
+    private long baseHash;
+    private long targetHash;
+
+    private byte[] reverseDiff;
+
+    private boolean tableOfContents;
+    private boolean checksums;
+
     private int diffVersion;
+    private boolean varInts;
     private int classVersion;
     private int access;
     private int name;
@@ -71,6 +93,8 @@ public class DiffWriter extends DiffVisitor {
 
     private final Map<Integer, byte @Nullable []> customAttributes = new LinkedHashMap<>();
 
+    private final ArrayDeque<ByteVector> vectorPool = new ArrayDeque<>();
+
     public DiffWriter() {
     }
 
@@ -78,6 +102,113 @@ public class DiffWriter extends DiffVisitor {
         super(delegate);
     }
 
+    /**
+     * Whether to write a table of contents with the offset of every field and method record, so that they can be
+     * read individually with {@link DiffReader#acceptField} and {@link DiffReader#acceptMethod}. This is off by
+     * default, as it costs four bytes per member.
+     */
+    public void setTableOfContents(boolean tableOfContents) {
+        this.tableOfContents = tableOfContents;
+    }
+
+    /**
+     * Whether to write a CRC-32C of the constant pool, the header, each attribute, and the members, so that
+     * {@link DiffReader} can reject a corrupt diff with a {@link CorruptDiffException} before reading any of it. This
+     * is off by default.
+     * <p>
+     * A checksummed diff starts with {@link DiffConstants#CHECKSUMMED_MAGIC} instead of {@link DiffConstants#MAGIC},
+     * and ends with a footer of the checksums, their count, the end of the constant pool, and the length of the diff.
+     * Both are at fixed offsets, so the reader knows to verify a diff, and can verify its constant pool, before
+     * parsing anything.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Clears everything visited so far, so that this writer can write another diff. Settings such as
+     * {@link #setTableOfContents} are kept, as are the constant pool, symbol table, and section buffers, so a worker
+     * can write any number of diffs with one writer.
+     */
+    public void reset() {
+        hasClassHashes = false;
+        baseHash = 0;
+        targetHash = 0;
+        reverseDiff = null;
+
+        diffVersion = 0;
+        varInts = false;
+        classVersion = 0;
+        access = 0;
+        name = 0;
+        signature = 0;
+        superName = 0;
+        interfaces = recycle(interfaces);
+        source = 0;
+        debug = 0;
+        innerClasses = recycle(innerClasses);
+        outerClass = 0;
+        outerMethod = 0;
+        outerMethodDesc = 0;
+        nestHost = 0;
+        nestMembers = recycle(nestMembers);
+        permittedSubclasses = recycle(permittedSubclasses);
+        visibleAnnotations = recycle(visibleAnnotations);
+        invisibleAnnotations = recycle(invisibleAnnotations);
+        visibleTypeAnnotations = recycle(visibleTypeAnnotations);
+        invisibleTypeAnnotations = recycle(invisibleTypeAnnotations);
+        recordComponentsPatch = recycle(recordComponentsPatch);
+        recycleAll(recordComponents);
+        module = recycle(module);
+        fieldsPatch = recycle(fieldsPatch);
+        recycleAll(fields);
+        methodsPatch = recycle(methodsPatch);
+        recycleAll(methods);
+        customAttributes.clear();
+
+        symbolTable.reset();
+    }
+
+    private ByteVector newVector() {
+        final ByteVector vector = vectorPool.poll();
+        return vector != null ? vector : new ByteVector();
+    }
+
+    private ByteVector recycle(@Nullable ByteVector vector) {
+        if (
+            vector != null &&
+                vectorPool.size() < MAX_POOLED_VECTORS &&
+                ReflectUtils.getByteVectorData(vector).length <= MAX_RETAINED_SIZE
+        ) {
+            ReflectUtils.setByteVectorLength(vector, 0);
+            vectorPool.push(vector);
+        }
+        return null;
+    }
+
+    private void recycleAll(List<ByteVector> vectors) {
+        for (final ByteVector vector : vectors) {
+            recycle(vector);
+        }
+        vectors.clear();
+    }
+
+    @Override
+    public void visitClassHashes(long baseHash, long targetHash) {
+        super.visitClassHashes(baseHash, targetHash);
+
+        hasClassHashes = true;
+        this.baseHash = baseHash;
+        this.targetHash = targetHash;
+    }
+
+    @Override
+    public void visitReverseDiff(byte[] reverseDiff) {
+        super.visitReverseDiff(reverseDiff);
+
+        this.reverseDiff = reverseDiff;
+    }
+
     @Override
     public void visit(
         int diffVersion,
@@ -91,6 +222,8 @@ public class DiffWriter extends DiffVisitor {
         super.visit(diffVersion, classVersion, access, name, signature, superName, interfaces);
 
         this.diffVersion = diffVersion;
+        this.varInts = diffVersion >= DiffConstants.V2;
+        symbolTable.addPresetUtf8s(PresetConstants.forVersion(diffVersion));
         this.classVersion = classVersion;
         this.access = access;
         this.name = name != null ? symbolTable.addConstantClass(name).index : 0;
@@ -98,7 +231,7 @@ public class DiffWriter extends DiffVisitor {
         this.superName = superName != null ? symbolTable.addConstantClass(superName).index : 0;
 
         if (interfaces != null) {
-            classPatchWriter.write(this.interfaces = new ByteVector(), interfaces);
+            classPatchWriter.write(this.interfaces = newVector(), interfaces, varInts);
         } else {
             this.interfaces = null;
         }
@@ -121,7 +254,7 @@ public class DiffWriter extends DiffVisitor {
                 .putShort(value.outerName != null ? symbolTable.addConstantClass(value.outerName).index : 0)
                 .putShort(value.innerName != null ? symbolTable.addConstantUtf8(value.innerName) : 0)
                 .putShort(value.access)
-        ).write(innerClasses = new ByteVector(), patch);
+        ).write(innerClasses = newVector(), patch, varInts);
     }
 
     @Override
@@ -148,54 +281,54 @@ public class DiffWriter extends DiffVisitor {
     public void visitNestMembers(Patch<String> patch) {
         super.visitNestMembers(patch);
 
-        classPatchWriter.write(nestMembers = new ByteVector(), patch);
+        classPatchWriter.write(nestMembers = newVector(), patch, varInts);
     }
 
     @Override
     public void visitPermittedSubclasses(Patch<String> patch) {
         super.visitPermittedSubclasses(patch);
 
-        classPatchWriter.write(permittedSubclasses = new ByteVector(), patch);
+        classPatchWriter.write(permittedSubclasses = newVector(), patch, varInts);
     }
 
     @Override
     public void visitAnnotations(Patch<AnnotationNode> patch, boolean visible) {
         super.visitAnnotations(patch, visible);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         if (visible) {
             visibleAnnotations = vector;
         } else {
             invisibleAnnotations = vector;
         }
-        annotationPatchWriter.write(vector, patch);
+        annotationPatchWriter.write(vector, patch, varInts);
     }
 
     @Override
     public void visitTypeAnnotations(Patch<TypeAnnotationNode> patch, boolean visible) {
         super.visitTypeAnnotations(patch, visible);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         if (visible) {
             visibleTypeAnnotations = vector;
         } else {
             invisibleTypeAnnotations = vector;
         }
-        typeAnnotationPatchWriter.write(vector, patch);
+        typeAnnotationPatchWriter.write(vector, patch, varInts);
     }
 
     @Override
     public void visitRecordComponents(Patch<MemberName> patch) {
         super.visitRecordComponents(patch);
 
-        memberNamePatchWriter.write(recordComponentsPatch = new ByteVector(), patch);
+        memberNamePatchWriter.write(recordComponentsPatch = newVector(), patch, varInts);
     }
 
     @Override
     public RecordComponentDiffVisitor visitRecordComponent(String name, String descriptor, @Nullable String signature) {
         final RecordComponentDiffVisitor delegate = super.visitRecordComponent(name, descriptor, signature);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         recordComponents.add(vector);
 
         vector.putShort(symbolTable.addConstantUtf8(name));
@@ -213,7 +346,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "Annotations");
-                annotationPatchWriter.write(vector, patch);
+                annotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -222,7 +355,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitTypeAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "TypeAnnotations");
-                typeAnnotationPatchWriter.write(vector, patch);
+                typeAnnotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -273,7 +406,7 @@ public class DiffWriter extends DiffVisitor {
     public ModuleDiffVisitor visitModule(@Nullable String name, int access, @Nullable String version) {
         final ModuleDiffVisitor delegate = super.visitModule(name, access, version);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         module = vector;
 
         vector.putShort(name != null ? symbolTable.addConstantModule(name).index : 0);
@@ -299,7 +432,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitPackages(patch);
 
                 beginAttr("Packages");
-                packagePatchWriter.write(vector, patch);
+                packagePatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -312,7 +445,7 @@ public class DiffWriter extends DiffVisitor {
                     vec.putShort(symbolTable.addConstantModule(value.module).index);
                     vec.putShort(value.access);
                     vec.putShort(value.version != null ? symbolTable.addConstantUtf8(value.version) : 0);
-                }).write(vector, patch);
+                }).write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -332,7 +465,7 @@ public class DiffWriter extends DiffVisitor {
                     } else {
                         vec.putShort(0);
                     }
-                }).write(vector, patch);
+                }).write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -352,7 +485,7 @@ public class DiffWriter extends DiffVisitor {
                     } else {
                         vec.putShort(0);
                     }
-                }).write(vector, patch);
+                }).write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -361,7 +494,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitUses(patch);
 
                 beginAttr("Uses");
-                classPatchWriter.write(vector, patch);
+                classPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -380,7 +513,7 @@ public class DiffWriter extends DiffVisitor {
                     } else {
                         vec.putShort(0);
                     }
-                }).write(vector, patch);
+                }).write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -423,7 +556,7 @@ public class DiffWriter extends DiffVisitor {
     public void visitFields(Patch<MemberName> patch) {
         super.visitFields(patch);
 
-        memberNamePatchWriter.write(fieldsPatch = new ByteVector(), patch);
+        memberNamePatchWriter.write(fieldsPatch = newVector(), patch, varInts);
     }
 
     @Override
@@ -436,7 +569,7 @@ public class DiffWriter extends DiffVisitor {
     ) {
         final FieldDiffVisitor delegate = super.visitField(access, name, descriptor, signature, value);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         fields.add(vector);
 
         vector.putInt(access);
@@ -456,7 +589,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "Annotations");
-                annotationPatchWriter.write(vector, patch);
+                annotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -465,7 +598,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitTypeAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "TypeAnnotations");
-                typeAnnotationPatchWriter.write(vector, patch);
+                typeAnnotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -516,7 +649,7 @@ public class DiffWriter extends DiffVisitor {
     public void visitMethods(Patch<MemberName> patch) {
         super.visitMethods(patch);
 
-        memberNamePatchWriter.write(methodsPatch = new ByteVector(), patch);
+        memberNamePatchWriter.write(methodsPatch = newVector(), patch, varInts);
     }
 
     @Override
@@ -529,14 +662,14 @@ public class DiffWriter extends DiffVisitor {
     ) {
         final MethodDiffVisitor delegate = super.visitMethod(access, name, descriptor, signature, exceptions);
 
-        final ByteVector vector = new ByteVector();
+        final ByteVector vector = newVector();
         methods.add(vector);
 
         vector.putInt(access);
         vector.putShort(symbolTable.addConstantUtf8(name));
         vector.putShort(symbolTable.addConstantUtf8(descriptor));
         vector.putShort(signature != null ? symbolTable.addConstantUtf8(signature) : 0);
-        classPatchWriter.write(vector, exceptions);
+        classPatchWriter.write(vector, exceptions, varInts);
 
         vector.putShort(0);
         return new MethodDiffVisitor(delegate) {
@@ -551,7 +684,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "Annotations");
-                annotationPatchWriter.write(vector, patch);
+                annotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -560,7 +693,7 @@ public class DiffWriter extends DiffVisitor {
                 super.visitTypeAnnotations(patch, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "TypeAnnotations");
-                typeAnnotationPatchWriter.write(vector, patch);
+                typeAnnotationPatchWriter.write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -586,7 +719,7 @@ public class DiffWriter extends DiffVisitor {
                 beginAttr((visible ? "Visible" : "Invisible") + "ParameterAnnotations");
                 vector.putByte(annotableCount);
                 for (final Patch<AnnotationNode> patch : patches) {
-                    annotationPatchWriter.write(vector, patch);
+                    annotationPatchWriter.write(vector, patch, varInts);
                 }
                 endAttr();
             }
@@ -598,7 +731,7 @@ public class DiffWriter extends DiffVisitor {
                 beginAttr("MethodParameters");
                 new PatchWriter<ParameterNode>((vec, value) ->
                     vec.putShort(symbolTable.addConstantUtf8(value.name)).putInt(value.access)
-                ).write(vector, parameters);
+                ).write(vector, parameters, varInts);
                 endAttr();
             }
 
@@ -621,9 +754,10 @@ public class DiffWriter extends DiffVisitor {
             public void visitMaxs(int maxStack, int maxLocals) {
                 super.visitMaxs(maxStack, maxLocals);
 
-                vector.putShort(symbolTable.addConstantUtf8("Maxs")).putInt(4);
-                vector.putShort(maxStack).putShort(maxLocals);
-                attributeCount++;
+                beginAttr("Maxs");
+                putVarShort(vector, maxStack);
+                putVarShort(vector, maxLocals);
+                endAttr();
             }
 
             @Override
@@ -632,10 +766,19 @@ public class DiffWriter extends DiffVisitor {
 
                 beginAttr("Insns");
                 labelMap = patchedLabelMap.get();
-                vector.putShort(unpatchedInsnCount);
-                new PatchWriter<AbstractInsnNode>(
-                    (vec, value) -> writeInsn(vec, value, labelMap)
-                ).write(vector, patch);
+                putVarShort(vector, unpatchedInsnCount);
+                final InsnCopies copies = varInts ? InsnCopies.find(patch) : null;
+                final int[] line = {0};
+                new PatchWriter<AbstractInsnNode>((vec, value) -> {
+                    final int index = line[0]++;
+                    if (copies == null || !copies.isCopied(index)) {
+                        writeInsn(vec, value, labelMap);
+                    } else if (copies.getLength(index) > 0) {
+                        vec.putByte(255).putByte(DiffConstants.INSN_COPY);
+                        Util.putVarInt(vec, copies.getSource(index));
+                        Util.putVarInt(vec, copies.getLength(index));
+                    }
+                }).write(vector, patch, varInts);
                 endAttr();
             }
 
@@ -655,20 +798,20 @@ public class DiffWriter extends DiffVisitor {
                 super.visitLocalVariables(newLocals, useMap);
 
                 if (useMap == null) {
-                    useMap = labelMap != null ? labelMap : new LabelMap();
+                    useMap = labelMap != null ? labelMap : LabelMap.EMPTY;
                 }
 
-                vector.putShort(symbolTable.addConstantUtf8("LocalVariables")).putInt(2 + 12 * newLocals.size());
-                vector.putShort(newLocals.size());
+                beginAttr("LocalVariables");
+                putVarShort(vector, newLocals.size());
                 for (final LocalVariableNode variable : newLocals) {
                     vector.putShort(symbolTable.addConstantUtf8(variable.name));
                     vector.putShort(symbolTable.addConstantUtf8(variable.desc));
                     vector.putShort(variable.signature != null ? symbolTable.addConstantUtf8(variable.signature) : 0);
-                    vector.putShort(useMap.getId(variable.start));
-                    vector.putShort(useMap.getId(variable.end));
-                    vector.putShort(variable.index);
+                    putVarShort(vector, useMap.getId(variable.start));
+                    putVarShort(vector, useMap.getId(variable.end));
+                    putVarShort(vector, variable.index);
                 }
-                attributeCount++;
+                endAttr();
             }
 
             @Override
@@ -687,33 +830,33 @@ public class DiffWriter extends DiffVisitor {
                 super.visitTryCatchBlocks(newBlocks, useMap);
 
                 if (useMap == null) {
-                    useMap = labelMap != null ? labelMap : new LabelMap();
+                    useMap = labelMap != null ? labelMap : LabelMap.EMPTY;
                 }
 
                 beginAttr("TryCatchBlocks");
-                vector.putShort(newBlocks.size());
+                putVarShort(vector, newBlocks.size());
                 for (final TryCatchBlockNode block : newBlocks) {
-                    vector.putShort(useMap.getId(block.start));
-                    vector.putShort(useMap.getId(block.end));
-                    vector.putShort(useMap.getId(block.handler));
+                    putVarShort(vector, useMap.getId(block.start));
+                    putVarShort(vector, useMap.getId(block.end));
+                    putVarShort(vector, useMap.getId(block.handler));
                     vector.putShort(block.type != null ? symbolTable.addConstantClass(block.type).index : 0);
 
                     if (block.invisibleTypeAnnotations != null) {
-                        vector.putShort(block.invisibleTypeAnnotations.size());
+                        putVarShort(vector, block.invisibleTypeAnnotations.size());
                         for (final TypeAnnotationNode annotation : block.invisibleTypeAnnotations) {
                             writeTypeAnnotation(vector, annotation, false);
                         }
                     } else {
-                        vector.putShort(0);
+                        putVarShort(vector, 0);
                     }
 
                     if (block.visibleTypeAnnotations != null) {
-                        vector.putShort(block.visibleTypeAnnotations.size());
+                        putVarShort(vector, block.visibleTypeAnnotations.size());
                         for (final TypeAnnotationNode annotation : block.visibleTypeAnnotations) {
                             writeTypeAnnotation(vector, annotation, false);
                         }
                     } else {
-                        vector.putShort(0);
+                        putVarShort(vector, 0);
                     }
                 }
                 endAttr();
@@ -736,27 +879,27 @@ public class DiffWriter extends DiffVisitor {
                 super.visitLocalVariableAnnotations(annotations, visible, useMap);
 
                 if (useMap == null) {
-                    useMap = labelMap != null ? labelMap : new LabelMap();
+                    useMap = labelMap != null ? labelMap : LabelMap.EMPTY;
                 }
 
                 beginAttr((visible ? "Visible" : "Invisible") + "LocalVariableAnnotations");
-                vector.putShort(annotations.size());
+                putVarShort(vector, annotations.size());
                 for (final LocalVariableAnnotationNode annotation : annotations) {
                     writeTypeAnnotation(vector, annotation, true);
 
-                    vector.putShort(annotation.start.size());
+                    putVarShort(vector, annotation.start.size());
                     for (final LabelNode start : annotation.start) {
-                        vector.putShort(useMap.getId(start));
+                        putVarShort(vector, useMap.getId(start));
                     }
 
-                    vector.putShort(annotation.end.size());
+                    putVarShort(vector, annotation.end.size());
                     for (final LabelNode end : annotation.end) {
-                        vector.putShort(useMap.getId(end));
+                        putVarShort(vector, useMap.getId(end));
                     }
 
-                    vector.putShort(annotation.index.size());
+                    putVarShort(vector, annotation.index.size());
                     for (final int index : annotation.index) {
-                        vector.putShort(index);
+                        putVarShort(vector, index);
                     }
                 }
                 endAttr();
@@ -767,9 +910,9 @@ public class DiffWriter extends DiffVisitor {
                 super.visitInsnAnnotations(indices, annotations, visible);
 
                 beginAttr((visible ? "Visible" : "Invisible") + "InsnAnnotations");
-                vector.putShort(indices.length);
+                putVarShort(vector, indices.length);
                 for (int i = 0; i < indices.length; i++) {
-                    vector.putShort(indices[i]);
+                    putVarShort(vector, indices[i]);
                     writeTypeAnnotation(vector, annotations.get(i), false);
                 }
                 endAttr();
@@ -803,16 +946,94 @@ public class DiffWriter extends DiffVisitor {
         };
     }
 
+    /**
+     * Returns the exact number of bytes {@link #toByteArray()} and {@code writeTo} will produce.
+     */
+    public int computeSize() {
+        final DiffOutput.Counting output = new DiffOutput.Counting();
+        try {
+            write(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.size;
+    }
+
     public byte[] toByteArray() {
-        final ByteVector result = new ByteVector();
+        final DiffOutput.Array output = new DiffOutput.Array(computeSize());
+        try {
+            write(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.result;
+    }
+
+    /**
+     * Returns the diff in the {@link DiffCompression compressed container}, optionally with a preset dictionary.
+     */
+    public byte[] toCompressedByteArray(@Nullable PatchDictionary dictionary) {
+        return DiffCompression.compress(toByteArray(), dictionary);
+    }
+
+    /**
+     * Writes the diff to {@code output} without building it in memory first. {@code output} is not closed.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        final DiffOutput.Buffered diffOutput = new DiffOutput.Buffered(output::write);
+        write(diffOutput);
+        diffOutput.flush();
+    }
+
+    /**
+     * Writes the diff to {@code output} without building it in memory first. {@code output} is not closed.
+     */
+    public void writeTo(WritableByteChannel output) throws IOException {
+        final DiffOutput.Buffered diffOutput = new DiffOutput.Buffered((data, offset, length) -> {
+            final ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        });
+        write(diffOutput);
+        diffOutput.flush();
+    }
+
+    private void write(DiffOutput result) throws IOException {
+        if (checksums) {
+            final DiffOutput.Checksumming checksumming = new DiffOutput.Checksumming();
+            write(checksumming, null);
+            write(result, checksumming);
+        } else {
+            write(result, null);
+        }
+    }
 
-        result.putInt(DiffConstants.MAGIC);
+    /**
+     * @param checksummed The result of writing the diff to a {@link DiffOutput.Checksumming} if checksums are on,
+     * or {@code null} if they're off or that's being done now
+     */
+    private void write(DiffOutput result, DiffOutput.@Nullable Checksumming checksummed) throws IOException {
+        result.putInt(checksums ? DiffConstants.CHECKSUMMED_MAGIC : DiffConstants.MAGIC);
+        result.beginSection(true);
         result.putShort(diffVersion);
 
         int attributeCount = customAttributes.size();
         if (symbolTable.computeBootstrapMethodsSize() > 0) {
             attributeCount++;
         }
+        if (hasClassHashes) {
+            symbolTable.addConstantUtf8("ClassHashes");
+            attributeCount++;
+        }
+        if (reverseDiff != null) {
+            symbolTable.addConstantUtf8("Reverse");
+            attributeCount++;
+        }
+        if (tableOfContents) {
+            symbolTable.addConstantUtf8("Contents");
+            attributeCount++;
+        }
         if (source != 0 || debug != 0) {
             symbolTable.addConstantUtf8("Source");
             attributeCount++;
@@ -862,8 +1083,9 @@ public class DiffWriter extends DiffVisitor {
             attributeCount++;
         }
 
-        symbolTable.putConstantPool(result);
+        result.putShort(symbolTable.getConstantPoolCount()).putVector(symbolTable.getConstantPool());
 
+        result.beginSection(true);
         result.putInt(classVersion);
         result.putInt(access);
         result.putShort(name);
@@ -871,80 +1093,129 @@ public class DiffWriter extends DiffVisitor {
         result.putShort(superName);
 
         if (interfaces == null) {
-            result.putShort(0);
+            putVarShort(result, 0);
         } else {
-            result.putByteArray(ReflectUtils.getByteVectorData(interfaces), 0, interfaces.size());
+            result.putVector(interfaces);
         }
 
         result.putShort(attributeCount);
-        symbolTable.putBootstrapMethods(result);
+        if (symbolTable.getBootstrapMethods() != null) {
+            result.beginSection(true);
+            result.putShort(symbolTable.addConstantUtf8("BootstrapMethods"))
+                .putInt(symbolTable.getBootstrapMethods().size() + 2)
+                .putShort(symbolTable.getBootstrapMethodCount())
+                .putVector(symbolTable.getBootstrapMethods());
+        }
+        if (hasClassHashes) {
+            result.beginSection(true);
+            result.putShort(symbolTable.addConstantUtf8("ClassHashes")).putInt(16);
+            result.putLong(baseHash).putLong(targetHash);
+        }
+        if (reverseDiff != null) {
+            result.beginSection(true);
+            result.putShort(symbolTable.addConstantUtf8("Reverse")).putInt(reverseDiff.length);
+            result.putByteArray(reverseDiff, 0, reverseDiff.length);
+        }
+        if (tableOfContents) {
+            result.beginSection(true);
+            result.putShort(symbolTable.addConstantUtf8("Contents")).putInt(12 + 4 * (fields.size() + methods.size()));
+            // Offsets are relative to the fields patch, so they don't depend on the size of anything before it
+            int offset = fieldsPatch != null ? fieldsPatch.size() : getVarShortSize(0);
+            offset += getVarShortSize(fields.size());
+            result.putInt(fields.size());
+            for (final ByteVector field : fields) {
+                result.putInt(offset);
+                offset += field.size();
+            }
+            result.putInt(offset);
+            offset += methodsPatch != null ? methodsPatch.size() : getVarShortSize(0);
+            offset += getVarShortSize(methods.size());
+            result.putInt(methods.size());
+            for (final ByteVector method : methods) {
+                result.putInt(offset);
+                offset += method.size();
+            }
+        }
         if (source != 0 || debug != 0) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("Source")).putInt(4);
             result.putShort(source).putShort(debug);
         }
         if (innerClasses != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("InnerClasses")).putInt(innerClasses.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(innerClasses), 0, innerClasses.size());
+            result.putVector(innerClasses);
         }
         if (outerClass != 0 || outerMethod != 0 || outerMethodDesc != 0) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("OuterClass")).putInt(6);
             result.putShort(outerClass).putShort(outerMethod).putShort(outerMethodDesc);
         }
         if (nestHost != 0) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("NestHost")).putInt(2);
             result.putShort(nestHost);
         }
         if (nestMembers != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("NestMembers")).putInt(nestMembers.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(nestMembers), 0, nestMembers.size());
+            result.putVector(nestMembers);
         }
         if (permittedSubclasses != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("PermittedSubclasses")).putInt(permittedSubclasses.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(permittedSubclasses), 0, permittedSubclasses.size());
+            result.putVector(permittedSubclasses);
         }
         if (visibleAnnotations != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("VisibleAnnotations")).putInt(visibleAnnotations.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(visibleAnnotations), 0, visibleAnnotations.size());
+            result.putVector(visibleAnnotations);
         }
         if (invisibleAnnotations != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("InvisibleAnnotations")).putInt(invisibleAnnotations.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(invisibleAnnotations), 0, invisibleAnnotations.size());
+            result.putVector(invisibleAnnotations);
         }
         if (visibleTypeAnnotations != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("VisibleTypeAnnotations")).putInt(visibleTypeAnnotations.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(visibleTypeAnnotations), 0, visibleTypeAnnotations.size());
+            result.putVector(visibleTypeAnnotations);
         }
         if (invisibleTypeAnnotations != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("InvisibleTypeAnnotations")).putInt(invisibleTypeAnnotations.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(invisibleTypeAnnotations), 0, invisibleTypeAnnotations.size());
+            result.putVector(invisibleTypeAnnotations);
         }
         if (recordComponentsPatch != null || !recordComponents.isEmpty()) {
+            result.beginSection(true);
             int size = 0;
             if (recordComponentsPatch != null) {
                 size += recordComponentsPatch.size();
             } else {
-                size += 2;
+                size += varInts ? 1 : 2;
             }
-            size += 2;
+            size += varInts ? Util.getVarIntSize(recordComponents.size()) : 2;
             for (final ByteVector component : recordComponents) {
                 size += component.size();
             }
             result.putShort(symbolTable.addConstantUtf8("RecordComponents")).putInt(size);
             if (recordComponentsPatch != null) {
-                result.putByteArray(ReflectUtils.getByteVectorData(recordComponentsPatch), 0, recordComponentsPatch.size());
+                result.putVector(recordComponentsPatch);
             } else {
-                result.putShort(0);
+                putVarShort(result, 0);
             }
-            result.putShort(recordComponents.size());
+            putVarShort(result, recordComponents.size());
             for (final ByteVector component : recordComponents) {
-                result.putByteArray(ReflectUtils.getByteVectorData(component), 0, component.size());
+                result.putVector(component);
             }
         }
         if (module != null) {
+            result.beginSection(true);
             result.putShort(symbolTable.addConstantUtf8("Module")).putInt(module.size());
-            result.putByteArray(ReflectUtils.getByteVectorData(module), 0, module.size());
+            result.putVector(module);
         }
         for (final Map.Entry<Integer, byte @Nullable []> entry : customAttributes.entrySet()) {
+            result.beginSection(true);
             result.putShort(entry.getKey());
             final byte @Nullable [] value = entry.getValue();
             if (value == null) {
@@ -956,27 +1227,38 @@ public class DiffWriter extends DiffVisitor {
             }
         }
 
+        result.beginSection(true);
         if (fieldsPatch != null) {
-            result.putByteArray(ReflectUtils.getByteVectorData(fieldsPatch), 0, fieldsPatch.size());
+            result.putVector(fieldsPatch);
         } else {
-            result.putShort(0);
+            putVarShort(result, 0);
         }
-        result.putShort(fields.size());
+        putVarShort(result, fields.size());
         for (final ByteVector field : fields) {
-            result.putByteArray(ReflectUtils.getByteVectorData(field), 0, field.size());
+            result.putVector(field);
         }
 
         if (methodsPatch != null) {
-            result.putByteArray(ReflectUtils.getByteVectorData(methodsPatch), 0, methodsPatch.size());
+            result.putVector(methodsPatch);
         } else {
-            result.putShort(0);
+            putVarShort(result, 0);
         }
-        result.putShort(methods.size());
+        putVarShort(result, methods.size());
         for (final ByteVector method : methods) {
-            result.putByteArray(ReflectUtils.getByteVectorData(method), 0, method.size());
+            result.putVector(method);
         }
 
-        return Arrays.copyOf(ReflectUtils.getByteVectorData(result), result.size());
+        result.beginSection(false);
+        if (checksums) {
+            // The constant pool, the header, each attribute, and the members are each their own section
+            final int sectionCount = 3 + attributeCount;
+            for (int i = 0; i < sectionCount; i++) {
+                result.putInt(checksummed != null ? checksummed.checksums[i] : 0);
+            }
+            result.putShort(sectionCount);
+            result.putInt(8 + symbolTable.getConstantPool().size());
+            result.putInt(checksummed != null ? checksummed.size : 0);
+        }
     }
 
     private void writeInsn(ByteVector vector, AbstractInsnNode insn, LabelMap labelMap) {
@@ -1003,7 +1285,9 @@ public class DiffWriter extends DiffVisitor {
             case AbstractInsnNode.JUMP_INSN: {
                 final JumpInsnNode jumpInsn = (JumpInsnNode)insn;
                 final int target = labelMap.getId(jumpInsn.label);
-                if (target > 0xffff) {
+                if (varInts) {
+                    Util.putVarInt(vector.putByte(opcode), target);
+                } else if (target > 0xffff) {
                     vector.putByte(opcode - Opcodes.GOTO + DiffConstants.GOTO_W).putInt(target);
                 } else {
                     vector.putByte(opcode).putShort(target);
@@ -1013,23 +1297,23 @@ public class DiffWriter extends DiffVisitor {
             case AbstractInsnNode.TABLESWITCH_INSN: {
                 final TableSwitchInsnNode tableSwitchInsn = (TableSwitchInsnNode)insn;
                 vector.putByte(opcode);
-                vector.putInt(labelMap.getId(tableSwitchInsn.dflt));
+                putLabel(vector, labelMap.getId(tableSwitchInsn.dflt));
                 vector.putInt(tableSwitchInsn.min);
                 vector.putInt(tableSwitchInsn.max);
                 for (final LabelNode label : tableSwitchInsn.labels) {
-                    vector.putInt(labelMap.getId(label));
+                    putLabel(vector, labelMap.getId(label));
                 }
                 break;
             }
             case AbstractInsnNode.LOOKUPSWITCH_INSN: {
                 final LookupSwitchInsnNode lookupSwitchInsn = (LookupSwitchInsnNode)insn;
                 vector.putByte(opcode);
-                vector.putInt(labelMap.getId(lookupSwitchInsn.dflt));
+                putLabel(vector, labelMap.getId(lookupSwitchInsn.dflt));
                 final int numPairs = lookupSwitchInsn.keys.size();
                 vector.putInt(numPairs);
                 for (int i = 0; i < numPairs; i++) {
                     vector.putInt(lookupSwitchInsn.keys.get(i));
-                    vector.putInt(labelMap.getId(lookupSwitchInsn.labels.get(i)));
+                    putLabel(vector, labelMap.getId(lookupSwitchInsn.labels.get(i)));
                 }
                 break;
             }
@@ -1109,17 +1393,17 @@ public class DiffWriter extends DiffVisitor {
                         switch (frame.type) {
                             case Opcodes.F_NEW:
                             case Opcodes.F_FULL:
-                                vector.putShort(frame.local.size());
-                                vector.putShort(frame.stack.size());
+                                putVarShort(vector, frame.local.size());
+                                putVarShort(vector, frame.stack.size());
                                 writeFrameObjects(frame.local, vector, labelMap);
                                 writeFrameObjects(frame.stack, vector, labelMap);
                                 break;
                             case Opcodes.F_APPEND:
-                                vector.putShort(frame.local.size());
+                                putVarShort(vector, frame.local.size());
                                 writeFrameObjects(frame.local, vector, labelMap);
                                 break;
                             case Opcodes.F_CHOP:
-                                vector.putShort(frame.local.size());
+                                putVarShort(vector, frame.local.size());
                                 break;
                             case Opcodes.F_SAME:
                                 break;
@@ -1133,7 +1417,8 @@ public class DiffWriter extends DiffVisitor {
                     }
                     case AbstractInsnNode.LINE: {
                         final LineNumberNode lineNumber = (LineNumberNode)insn;
-                        vector.putShort(lineNumber.line).putShort(labelMap.getId(lineNumber.start));
+                        putVarShort(vector, lineNumber.line);
+                        putVarShort(vector, labelMap.getId(lineNumber.start));
                         break;
                     }
                 }
@@ -1144,6 +1429,34 @@ public class DiffWriter extends DiffVisitor {
         }
     }
 
+    private void putVarShort(ByteVector vector, int value) {
+        if (varInts) {
+            Util.putVarInt(vector, value);
+        } else {
+            vector.putShort(value);
+        }
+    }
+
+    private void putVarShort(DiffOutput output, int value) throws IOException {
+        if (varInts) {
+            output.putVarInt(value);
+        } else {
+            output.putShort(value);
+        }
+    }
+
+    private int getVarShortSize(int value) {
+        return varInts ? Util.getVarIntSize(value) : 2;
+    }
+
+    private void putLabel(ByteVector vector, int id) {
+        if (varInts) {
+            Util.putVarInt(vector, id);
+        } else {
+            vector.putInt(id);
+        }
+    }
+
     private void writeFrameObjects(List<Object> frameObjects, ByteVector vector, LabelMap labelMap) {
         for (final Object frameObject : frameObjects) {
             writeFrameObject(frameObject, vector, labelMap);
@@ -1156,7 +1469,7 @@ public class DiffWriter extends DiffVisitor {
         } else if (frameObject instanceof String) {
             vector.putByte(Frame.ITEM_OBJECT).putShort(symbolTable.addConstantClass((String)frameObject).index);
         } else if (frameObject instanceof LabelNode) {
-            vector.putByte(Frame.ITEM_UNINITIALIZED).putShort(labelMap.getId((LabelNode)frameObject));
+            putVarShort(vector.putByte(Frame.ITEM_UNINITIALIZED), labelMap.getId((LabelNode)frameObject));
         } else {
             throw new IllegalArgumentException("Unknown frame object type: " + frameObject.getClass());
         }
@@ -0,0 +1,237 @@
+package io.github.prcraftmc.classdiff.format;
+
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.patch.DeltaType;
+import com.github.difflib.patch.Patch;
+import io.github.prcraftmc.classdiff.util.Equalizers;
+import io.github.prcraftmc.classdiff.util.LabelMap;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Finds runs of inserted instructions that are the same as a deleted run of unpatched instructions, such as code that
+ * was moved within a method. These are written as a copy from the unpatched instructions instead of being encoded
+ * again. Only instructions that don't refer to labels can be copied, since label IDs change when code moves.
+ * <p>
+ * Like {@link io.github.prcraftmc.classdiff.util.ByteDelta}, the deleted instructions are indexed by the hash of each
+ * run of {@link #MIN_LENGTH} instructions, so finding the copies takes about linear time in the size of the patch.
+ */
+final class InsnCopies {
+    static final int MIN_LENGTH = 4;
+    /**
+     * How many unpatched runs starting with the same instructions are compared against each target run, which keeps
+     * methods with a lot of repetitive code, such as large static initializers, from taking quadratic time.
+     */
+    private static final int MAX_CANDIDATES = 32;
+
+    private final int[] sources;
+    private final int[] lengths;
+
+    private InsnCopies(int[] sources, int[] lengths) {
+        this.sources = sources;
+        this.lengths = lengths;
+    }
+
+    static InsnCopies find(Patch<AbstractInsnNode> patch) {
+        // The copyable unpatched instructions, in order, with their positions in the unpatched method
+        int sourceCount = 0;
+        int targetCount = 0;
+        for (final AbstractDelta<AbstractInsnNode> delta : patch.getDeltas()) {
+            if (delta.getType() == DeltaType.DELETE || delta.getType() == DeltaType.CHANGE) {
+                sourceCount += delta.getSource().size();
+            }
+            if (delta.getType() == DeltaType.INSERT || delta.getType() == DeltaType.CHANGE) {
+                targetCount += delta.getTarget().size();
+            }
+        }
+        final int[] sourcePositions = new int[sourceCount];
+        final AbstractInsnNode[] sourceInsns = new AbstractInsnNode[sourceCount];
+        sourceCount = 0;
+        for (final AbstractDelta<AbstractInsnNode> delta : patch.getDeltas()) {
+            if (delta.getType() == DeltaType.DELETE || delta.getType() == DeltaType.CHANGE) {
+                int position = delta.getSource().getPosition();
+                for (final AbstractInsnNode insn : delta.getSource().getLines()) {
+                    if (isCopyable(insn)) {
+                        sourcePositions[sourceCount] = position;
+                        sourceInsns[sourceCount++] = insn;
+                    }
+                    position++;
+                }
+            }
+        }
+
+        final int[] sources = new int[targetCount];
+        final int[] lengths = new int[targetCount];
+        if (sourceCount < MIN_LENGTH) {
+            return new InsnCopies(sources, lengths);
+        }
+
+        // Chains every run of MIN_LENGTH consecutive copyable instructions by the hash of the run, so that a target
+        // run is only compared against the sources that probably start the same way
+        final int[] sourceHashes = new int[sourceCount];
+        for (int i = 0; i < sourceCount; i++) {
+            sourceHashes[i] = hash(sourceInsns[i]);
+        }
+        final int tableSize = Integer.highestOneBit(Math.max(sourceCount, 8) * 2 - 1) << 1;
+        final int mask = tableSize - 1;
+        final int[] table = new int[tableSize];
+        final int[] next = new int[sourceCount];
+        for (int i = sourceCount - MIN_LENGTH; i >= 0; i--) {
+            if (sourcePositions[i + MIN_LENGTH - 1] - sourcePositions[i] == MIN_LENGTH - 1) {
+                final int slot = hashRun(sourceHashes, i) & mask;
+                next[i] = table[slot];
+                table[slot] = i + 1;
+            }
+        }
+
+        int line = 0;
+        for (final AbstractDelta<AbstractInsnNode> delta : patch.getDeltas()) {
+            if (delta.getType() != DeltaType.INSERT && delta.getType() != DeltaType.CHANGE) {
+                continue;
+            }
+            final List<AbstractInsnNode> target = delta.getTarget().getLines();
+            final int[] targetHashes = new int[target.size()];
+            for (int i = 0; i < targetHashes.length; i++) {
+                targetHashes[i] = hash(target.get(i));
+            }
+            for (int i = 0; i < target.size(); ) {
+                int bestSource = -1;
+                int bestLength = 0;
+                if (i + MIN_LENGTH <= target.size()) {
+                    int candidate = table[hashRun(targetHashes, i) & mask];
+                    for (int checked = 0; candidate != 0 && checked < MAX_CANDIDATES; checked++) {
+                        final int start = candidate - 1;
+                        int length = 0;
+                        while (
+                            i + length < target.size() && start + length < sourceCount &&
+                                sourcePositions[start + length] == sourcePositions[start] + length &&
+                                equal(sourceInsns[start + length], target.get(i + length))
+                        ) {
+                            length++;
+                        }
+                        if (length > bestLength) {
+                            bestSource = sourcePositions[start];
+                            bestLength = length;
+                        }
+                        candidate = next[start];
+                    }
+                }
+                if (bestLength >= MIN_LENGTH) {
+                    sources[line + i] = bestSource;
+                    lengths[line + i] = bestLength;
+                    for (int j = 1; j < bestLength; j++) {
+                        lengths[line + i + j] = -1;
+                    }
+                    i += bestLength;
+                } else {
+                    i++;
+                }
+            }
+            line += target.size();
+        }
+        return new InsnCopies(sources, lengths);
+    }
+
+    private static int hashRun(int[] hashes, int start) {
+        int hash = 0;
+        for (int i = start; i < start + MIN_LENGTH; i++) {
+            hash = hash * 0x01000193 ^ hashes[i];
+        }
+        return hash ^ (hash >>> 15);
+    }
+
+    /**
+     * Hashes the parts of {@code insn} that {@link #equal} compares, so that equal instructions have equal hashes.
+     * Labels all hash the same, since any label matches any other.
+     */
+    private static int hash(AbstractInsnNode insn) {
+        if (insn instanceof LabelNode) {
+            return -1;
+        }
+        final int hash = insn.getType() * 31 + insn.getOpcode();
+        switch (insn.getType()) {
+            case AbstractInsnNode.INT_INSN:
+                return hash * 31 + ((IntInsnNode)insn).operand;
+            case AbstractInsnNode.VAR_INSN:
+                return hash * 31 + ((VarInsnNode)insn).var;
+            case AbstractInsnNode.TYPE_INSN:
+                return hash * 31 + ((TypeInsnNode)insn).desc.hashCode();
+            case AbstractInsnNode.FIELD_INSN: {
+                final FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+                return Objects.hash(hash, fieldInsn.owner, fieldInsn.name, fieldInsn.desc);
+            }
+            case AbstractInsnNode.METHOD_INSN: {
+                final MethodInsnNode methodInsn = (MethodInsnNode)insn;
+                return Objects.hash(hash, methodInsn.owner, methodInsn.name, methodInsn.desc);
+            }
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+                final InvokeDynamicInsnNode indyInsn = (InvokeDynamicInsnNode)insn;
+                return Objects.hash(hash, indyInsn.name, indyInsn.desc);
+            }
+            case AbstractInsnNode.LDC_INSN:
+                return hash * 31 + ((LdcInsnNode)insn).cst.hashCode();
+            case AbstractInsnNode.IINC_INSN: {
+                final IincInsnNode iincInsn = (IincInsnNode)insn;
+                return (hash * 31 + iincInsn.var) * 31 + iincInsn.incr;
+            }
+            default:
+                return hash;
+        }
+    }
+
+    /**
+     * Returns whether the target line at {@code index}, counted across all deltas, is part of a copy.
+     */
+    boolean isCopied(int index) {
+        return lengths[index] != 0;
+    }
+
+    /**
+     * Returns the length of the copy starting at {@code index}, or -1 if the copy started on an earlier line.
+     */
+    int getLength(int index) {
+        return lengths[index];
+    }
+
+    int getSource(int index) {
+        return sources[index];
+    }
+
+    private static boolean equal(AbstractInsnNode source, AbstractInsnNode target) {
+        if (source == null || !isCopyable(target)) {
+            return false;
+        }
+        if (source instanceof LabelNode) {
+            return target instanceof LabelNode;
+        }
+        return !(target instanceof LabelNode) && Equalizers.insn(source, target, LabelMap.EMPTY, LabelMap.EMPTY);
+    }
+
+    static boolean isCopyable(AbstractInsnNode insn) {
+        switch (insn.getType()) {
+            case AbstractInsnNode.JUMP_INSN:
+            case AbstractInsnNode.TABLESWITCH_INSN:
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+            case AbstractInsnNode.LINE:
+                return false;
+            case AbstractInsnNode.FRAME: {
+                final FrameNode frame = (FrameNode)insn;
+                return noLabels(frame.local) && noLabels(frame.stack);
+            }
+            default:
+                return true;
+        }
+    }
+
+    private static boolean noLabels(List<Object> frameObjects) {
+        if (frameObjects != null) {
+            for (final Object frameObject : frameObjects) {
+                if (frameObject instanceof LabelNode) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
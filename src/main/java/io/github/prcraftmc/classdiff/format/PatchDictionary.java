@@ -0,0 +1,41 @@
+package io.github.prcraftmc.classdiff.format;
+
+import io.github.prcraftmc.classdiff.util.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * A preset dictionary for {@link DiffCompression compressed diffs}. Diffs compressed with a dictionary can only be
+ * read with the same dictionary, which is checked by its {@link #getId() ID}.
+ *
+ * @see DictionaryTrainer
+ */
+public final class PatchDictionary {
+    /**
+     * The largest useful dictionary size, as Deflate can't refer back further than this.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private final byte[] data;
+    private final long id;
+
+    public PatchDictionary(byte[] data) {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Empty dictionary");
+        }
+        this.data = data.length > MAX_SIZE ? Arrays.copyOfRange(data, data.length - MAX_SIZE, data.length) : data.clone();
+        id = Hashing.hash(this.data);
+    }
+
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    byte[] getDataUnsafe() {
+        return data;
+    }
+
+    public long getId() {
+        return id;
+    }
+}
@@ -0,0 +1,194 @@
+package io.github.prcraftmc.classdiff.format;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@code CONSTANT_Utf8} entries that a diff's constant pool implicitly starts with, so that they never have to be
+ * written out. These are the diff's own attribute names and common JDK names and descriptors. The lists are part of
+ * the format, and must never change once released. Changes need a new diff version.
+ */
+final class PresetConstants {
+    static final List<String> V3 = Collections.unmodifiableList(Arrays.asList(
+        // Diff attribute names
+        "BootstrapMethods",
+        "ClassHashes",
+        "Reverse",
+        "Contents",
+        "Source",
+        "InnerClasses",
+        "OuterClass",
+        "NestHost",
+        "NestMembers",
+        "PermittedSubclasses",
+        "VisibleAnnotations",
+        "InvisibleAnnotations",
+        "VisibleTypeAnnotations",
+        "InvisibleTypeAnnotations",
+        "RecordComponents",
+        "Module",
+        "MainClass",
+        "Packages",
+        "Requires",
+        "Exports",
+        "Opens",
+        "Uses",
+        "Provides",
+        "AnnotationDefault",
+        "VisibleParameterAnnotations",
+        "InvisibleParameterAnnotations",
+        "MethodParameters",
+        "Maxs",
+        "Insns",
+        "LocalVariables",
+        "TryCatchBlocks",
+        "VisibleLocalVariableAnnotations",
+        "InvisibleLocalVariableAnnotations",
+        "VisibleInsnAnnotations",
+        "InvisibleInsnAnnotations",
+
+        // Classes
+        "java/lang/Object",
+        "java/lang/String",
+        "java/lang/StringBuilder",
+        "java/lang/Class",
+        "java/lang/Integer",
+        "java/lang/Long",
+        "java/lang/Boolean",
+        "java/lang/Enum",
+        "java/lang/Record",
+        "java/lang/Throwable",
+        "java/lang/Exception",
+        "java/lang/RuntimeException",
+        "java/lang/IllegalArgumentException",
+        "java/lang/IllegalStateException",
+        "java/lang/NullPointerException",
+        "java/lang/UnsupportedOperationException",
+        "java/lang/System",
+        "java/lang/Math",
+        "java/lang/Iterable",
+        "java/lang/Runnable",
+        "java/lang/Comparable",
+        "java/lang/AutoCloseable",
+        "java/lang/invoke/LambdaMetafactory",
+        "java/lang/invoke/StringConcatFactory",
+        "java/lang/invoke/MethodHandles",
+        "java/lang/invoke/MethodHandles$Lookup",
+        "java/lang/invoke/MethodHandle",
+        "java/lang/invoke/MethodType",
+        "java/lang/invoke/CallSite",
+        "java/lang/runtime/ObjectMethods",
+        "java/util/Objects",
+        "java/util/Collection",
+        "java/util/List",
+        "java/util/Set",
+        "java/util/Map",
+        "java/util/ArrayList",
+        "java/util/HashMap",
+        "java/util/Iterator",
+        "java/util/Collections",
+        "java/util/Arrays",
+        "java/util/Optional",
+        "java/util/function/Function",
+        "java/util/function/Supplier",
+        "java/util/function/Consumer",
+        "java/util/function/Predicate",
+        "java/io/Serializable",
+        "java/io/PrintStream",
+        "java/io/IOException",
+
+        // Member names
+        "<init>",
+        "<clinit>",
+        "this",
+        "value",
+        "values",
+        "valueOf",
+        "ordinal",
+        "name",
+        "toString",
+        "hashCode",
+        "equals",
+        "getClass",
+        "length",
+        "size",
+        "get",
+        "set",
+        "add",
+        "put",
+        "append",
+        "iterator",
+        "hasNext",
+        "next",
+        "apply",
+        "accept",
+        "run",
+        "close",
+        "out",
+        "println",
+        "requireNonNull",
+        "metafactory",
+        "makeConcatWithConstants",
+        "lookup",
+        "Lookup",
+        "$VALUES",
+        "serialVersionUID",
+        "INSTANCE",
+
+        // Descriptors
+        "Z",
+        "B",
+        "C",
+        "S",
+        "I",
+        "J",
+        "F",
+        "D",
+        "Ljava/lang/Object;",
+        "Ljava/lang/String;",
+        "Ljava/lang/Class;",
+        "Ljava/util/List;",
+        "Ljava/util/Map;",
+        "Ljava/io/PrintStream;",
+        "[Ljava/lang/Object;",
+        "[Ljava/lang/String;",
+        "Ljava/lang/Deprecated;",
+        "Ljava/lang/FunctionalInterface;",
+        "()V",
+        "()Z",
+        "()I",
+        "()J",
+        "()Ljava/lang/Object;",
+        "()Ljava/lang/String;",
+        "()Ljava/lang/Class;",
+        "()Ljava/util/Iterator;",
+        "(I)V",
+        "(J)V",
+        "(Z)V",
+        "(I)Ljava/lang/Object;",
+        "(Ljava/lang/Object;)V",
+        "(Ljava/lang/Object;)Z",
+        "(Ljava/lang/Object;)Ljava/lang/Object;",
+        "(Ljava/lang/Object;)Ljava/lang/String;",
+        "(Ljava/lang/Object;Ljava/lang/Object;)Z",
+        "(Ljava/lang/String;)V",
+        "(Ljava/lang/String;I)V",
+        "(Ljava/lang/String;)Ljava/lang/StringBuilder;",
+        "(I)Ljava/lang/StringBuilder;",
+        "(Ljava/lang/Object;)Ljava/lang/StringBuilder;",
+        "([Ljava/lang/String;)V",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+            "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)" +
+            "Ljava/lang/invoke/CallSite;",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+            "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;"
+    ));
+
+    private PresetConstants() {
+    }
+
+    static List<String> forVersion(int diffVersion) {
+        return diffVersion >= DiffConstants.V3 ? V3 : Collections.emptyList();
+    }
+}
@@ -3,15 +3,39 @@ package io.github.prcraftmc.classdiff.format;
 import io.github.prcraftmc.classdiff.util.ReflectUtils;
 import org.objectweb.asm.*;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class SymbolTable {
     private Entry[] entries = new Entry[256];
     private int entryCount = 0;
     private int constantPoolCount = 1;
-    private final ByteVector constantPool = new ByteVector();
+    private ByteVector constantPool = new ByteVector();
 
     private int bootstrapMethodCount;
     private ByteVector bootstrapMethods;
 
+    /**
+     * Removes every constant, so that this table can be reused for another diff. The hash table and constant pool
+     * buffer are kept unless they've grown past {@link DiffWriter#MAX_RETAINED_SIZE}.
+     */
+    public void reset() {
+        if (entries.length * 4 > DiffWriter.MAX_RETAINED_SIZE) {
+            entries = new Entry[256];
+        } else {
+            Arrays.fill(entries, null);
+        }
+        entryCount = 0;
+        constantPoolCount = 1;
+        if (ReflectUtils.getByteVectorData(constantPool).length > DiffWriter.MAX_RETAINED_SIZE) {
+            constantPool = new ByteVector();
+        } else {
+            ReflectUtils.setByteVectorLength(constantPool, 0);
+        }
+        bootstrapMethodCount = 0;
+        bootstrapMethods = null;
+    }
+
     public int getConstantPoolCount() {
         return constantPoolCount;
     }
@@ -58,6 +82,19 @@ public class SymbolTable {
         return put(new Entry(constantPoolCount++, Symbol.CONSTANT_UTF8_TAG, value, hashCode)).index;
     }
 
+    /**
+     * Adds {@code CONSTANT_Utf8} entries that are implied by the diff version, and so aren't written out. This must be
+     * called before anything else is added.
+     */
+    void addPresetUtf8s(List<String> values) {
+        if (constantPoolCount != 1) {
+            throw new IllegalStateException("Preset constants must be added before any other constants");
+        }
+        for (final String value : values) {
+            put(new Entry(constantPoolCount++, Symbol.CONSTANT_UTF8_TAG, value, hash(Symbol.CONSTANT_UTF8_TAG, value)));
+        }
+    }
+
     private void put12(int byteValue, int shortValue) {
         constantPool.putByte(byteValue).putShort(shortValue);
     }
@@ -89,6 +126,18 @@ public class SymbolTable {
         return entries[index] = entry;
     }
 
+    ByteVector getConstantPool() {
+        return constantPool;
+    }
+
+    int getBootstrapMethodCount() {
+        return bootstrapMethodCount;
+    }
+
+    ByteVector getBootstrapMethods() {
+        return bootstrapMethods;
+    }
+
     public void putConstantPool(ByteVector output) {
         output.putShort(constantPoolCount).putByteArray(ReflectUtils.getByteVectorData(constantPool), 0, constantPool.size());
     }
@@ -102,16 +151,6 @@ public class SymbolTable {
         }
     }
 
-    void putBootstrapMethods(final ByteVector output) {
-        if (bootstrapMethods != null) {
-            output
-                .putShort(addConstantUtf8("BootstrapMethods"))
-                .putInt(bootstrapMethods.size() + 2)
-                .putShort(bootstrapMethodCount)
-                .putByteArray(ReflectUtils.getByteVectorData(bootstrapMethods), 0, bootstrapMethods.size());
-        }
-    }
-
     public Symbol addConstantInteger(int value) {
         return addConstantIntegerOrFloat(Symbol.CONSTANT_INTEGER_TAG, value);
     }
@@ -0,0 +1,306 @@
+package io.github.prcraftmc.classdiff.util;
+
+import java.util.Arrays;
+
+/**
+ * Computes and applies binary deltas in the GDIFF format, as used for custom attribute patches. An instance keeps its
+ * hash table and output buffer between calls, so a differ can reuse one for every attribute it diffs. Instances are not
+ * thread-safe.
+ */
+public final class ByteDelta {
+    private static final int MAGIC = 0xD1FFD1FF;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 5;
+
+    private static final int EOF = 0;
+    private static final int DATA_MAX = 246;
+    private static final int DATA_USHORT = 247;
+    private static final int DATA_INT = 248;
+    private static final int COPY_USHORT_UBYTE = 249;
+    private static final int COPY_USHORT_USHORT = 250;
+    private static final int COPY_USHORT_INT = 251;
+    private static final int COPY_INT_UBYTE = 252;
+    private static final int COPY_INT_USHORT = 253;
+    private static final int COPY_INT_INT = 254;
+    private static final int COPY_LONG_INT = 255;
+
+    /**
+     * Sources up to this size have every position indexed. Larger ones only have every block indexed.
+     */
+    private static final int INDEX_ALL_LIMIT = 1 << 16;
+
+    private int[] table = new int[0];
+    private byte[] buffer = new byte[256];
+    private int size;
+
+    /**
+     * Returns a delta that turns {@code source} into {@code target}. If no delta is smaller than {@code target}
+     * itself, the delta just contains {@code target}.
+     */
+    public byte[] compute(byte[] source, byte[] target) {
+        size = 0;
+        putHeader();
+        final int blockSize = getBlockSize(source.length);
+        if (source.length >= blockSize && target.length >= blockSize) {
+            final int mask = index(source, blockSize);
+            int literalStart = 0;
+            int i = 0;
+            final int last = target.length - blockSize;
+            while (i <= last) {
+                final int candidate = table[hash(target, i, blockSize) & mask] - 1;
+                if (candidate < 0 || !regionMatches(source, candidate, target, i, blockSize)) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int sourceStart = candidate;
+                while (start > literalStart && sourceStart > 0 && source[sourceStart - 1] == target[start - 1]) {
+                    start--;
+                    sourceStart--;
+                }
+                int end = i + blockSize;
+                int sourceEnd = candidate + blockSize;
+                while (end < target.length && sourceEnd < source.length && source[sourceEnd] == target[end]) {
+                    end++;
+                    sourceEnd++;
+                }
+                putData(target, literalStart, start - literalStart);
+                putCopy(sourceStart, end - start);
+                literalStart = i = end;
+            }
+            putData(target, literalStart, target.length - literalStart);
+        } else {
+            putData(target, 0, target.length);
+        }
+        putByte(EOF);
+
+        if (size > getLiteralSize(target.length)) {
+            size = 0;
+            putHeader();
+            putData(target, 0, target.length);
+            putByte(EOF);
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Applies a delta made by {@link #compute} or any other GDIFF encoder to {@code source}.
+     *
+     * @throws IllegalArgumentException If {@code delta} isn't a valid GDIFF delta for {@code source}
+     */
+    public static byte[] apply(byte[] source, byte[] delta) {
+        if (delta.length < HEADER_SIZE + 1 || readInt(delta, 0) != MAGIC || delta[4] != VERSION) {
+            throw new IllegalArgumentException("Attribute patch is not a GDIFF delta");
+        }
+        byte[] result = new byte[Math.max(16, source.length)];
+        int resultSize = 0;
+        int ptr = HEADER_SIZE;
+        try {
+            while (true) {
+                final int command = delta[ptr++] & 0xff;
+                if (command == EOF) {
+                    break;
+                }
+                final byte[] from;
+                final long offset;
+                final int length;
+                if (command <= DATA_INT) {
+                    if (command <= DATA_MAX) {
+                        length = command;
+                    } else if (command == DATA_USHORT) {
+                        length = readShort(delta, ptr);
+                        ptr += 2;
+                    } else {
+                        length = readInt(delta, ptr);
+                        ptr += 4;
+                    }
+                    from = delta;
+                    offset = ptr;
+                    ptr += length;
+                } else {
+                    switch (command) {
+                        case COPY_USHORT_UBYTE:
+                            offset = readShort(delta, ptr);
+                            length = delta[ptr + 2] & 0xff;
+                            ptr += 3;
+                            break;
+                        case COPY_USHORT_USHORT:
+                            offset = readShort(delta, ptr);
+                            length = readShort(delta, ptr + 2);
+                            ptr += 4;
+                            break;
+                        case COPY_USHORT_INT:
+                            offset = readShort(delta, ptr);
+                            length = readInt(delta, ptr + 2);
+                            ptr += 6;
+                            break;
+                        case COPY_INT_UBYTE:
+                            offset = readInt(delta, ptr) & 0xffffffffL;
+                            length = delta[ptr + 4] & 0xff;
+                            ptr += 5;
+                            break;
+                        case COPY_INT_USHORT:
+                            offset = readInt(delta, ptr) & 0xffffffffL;
+                            length = readShort(delta, ptr + 4);
+                            ptr += 6;
+                            break;
+                        case COPY_INT_INT:
+                            offset = readInt(delta, ptr) & 0xffffffffL;
+                            length = readInt(delta, ptr + 4);
+                            ptr += 8;
+                            break;
+                        default:
+                            offset = ((long)readInt(delta, ptr) << 32) | (readInt(delta, ptr + 4) & 0xffffffffL);
+                            length = readInt(delta, ptr + 8);
+                            ptr += 12;
+                            break;
+                    }
+                    from = source;
+                }
+                if (length < 0 || offset < 0 || offset + length > from.length) {
+                    throw new IllegalArgumentException("Attribute patch refers outside of its data");
+                }
+                if (resultSize + length > result.length) {
+                    result = Arrays.copyOf(result, Math.max(resultSize + length, result.length * 2));
+                }
+                System.arraycopy(from, (int)offset, result, resultSize, length);
+                resultSize += length;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Attribute patch ended early", e);
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * Small attributes are mostly short runs of constant pool indices, so they use short blocks. Large ones use longer
+     * blocks to keep the table small and avoid spurious matches.
+     */
+    private static int getBlockSize(int sourceLength) {
+        if (sourceLength < 1024) {
+            return 4;
+        }
+        if (sourceLength < INDEX_ALL_LIMIT) {
+            return 8;
+        }
+        return 16;
+    }
+
+    /**
+     * Fills the table with the first source position of each block hash, plus one so that 0 is empty.
+     */
+    private int index(byte[] source, int blockSize) {
+        final int step = source.length <= INDEX_ALL_LIMIT ? 1 : blockSize;
+        final int positions = (source.length - blockSize) / step + 1;
+        final int tableSize = Integer.highestOneBit(Math.max(positions, 8) * 2 - 1) << 1;
+        if (table.length < tableSize) {
+            table = new int[tableSize];
+        } else {
+            Arrays.fill(table, 0, tableSize, 0);
+        }
+        final int mask = tableSize - 1;
+        for (int i = (positions - 1) * step; i >= 0; i -= step) {
+            table[hash(source, i, blockSize) & mask] = i + 1;
+        }
+        return mask;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = hash * 0x01000193 ^ data[i];
+        }
+        return hash ^ (hash >>> 15);
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (aOffset + length > a.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getLiteralSize(int length) {
+        final int commandSize = length == 0 ? 0 : length <= DATA_MAX ? 1 : length <= 0xffff ? 3 : 5;
+        return HEADER_SIZE + commandSize + length + 1;
+    }
+
+    private void putHeader() {
+        putInt(MAGIC);
+        putByte(VERSION);
+    }
+
+    private void putData(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (length <= DATA_MAX) {
+            putByte(length);
+        } else if (length <= 0xffff) {
+            putByte(DATA_USHORT);
+            putShort(length);
+        } else {
+            putByte(DATA_INT);
+            putInt(length);
+        }
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, size, length);
+        size += length;
+    }
+
+    private void putCopy(int offset, int length) {
+        final int lengthSize = length <= 0xff ? 0 : length <= 0xffff ? 1 : 2;
+        if (offset <= 0xffff) {
+            putByte(COPY_USHORT_UBYTE + lengthSize);
+            putShort(offset);
+        } else {
+            putByte(COPY_INT_UBYTE + lengthSize);
+            putInt(offset);
+        }
+        if (lengthSize == 0) {
+            putByte(length);
+        } else if (lengthSize == 1) {
+            putShort(length);
+        } else {
+            putInt(length);
+        }
+    }
+
+    private void putByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte)value;
+    }
+
+    private void putShort(int value) {
+        ensureCapacity(2);
+        buffer[size++] = (byte)(value >>> 8);
+        buffer[size++] = (byte)value;
+    }
+
+    private void putInt(int value) {
+        ensureCapacity(4);
+        buffer[size++] = (byte)(value >>> 24);
+        buffer[size++] = (byte)(value >>> 16);
+        buffer[size++] = (byte)(value >>> 8);
+        buffer[size++] = (byte)value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return data[offset] << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+}
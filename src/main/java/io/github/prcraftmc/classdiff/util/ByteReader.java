@@ -1,20 +1,32 @@
 package io.github.prcraftmc.classdiff.util;
 
+import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.ByteVector;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The inverse of {@link ByteVector}
  */
 public class ByteReader {
-    private final byte[] data;
+    private final ByteBuffer data;
     private int ptr;
 
     public ByteReader(byte[] data) {
-        this.data = data;
+        this(data, 0);
     }
 
     public ByteReader(byte[] data, int ptr) {
-        this.data = data;
+        this(ByteBuffer.wrap(data), ptr);
+    }
+
+    /**
+     * Reads {@code data} by absolute index, starting at {@code ptr}. The buffer's position and limit are ignored and
+     * not modified.
+     */
+    public ByteReader(ByteBuffer data, int ptr) {
+        this.data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
         this.ptr = ptr;
     }
 
@@ -31,55 +43,91 @@ public class ByteReader {
     }
 
     public int readByte() {
-        return data[ptr++] & 0xff;
+        return data.get(ptr++) & 0xff;
     }
 
     public int readShort() {
-        return ((data[ptr++] & 0xff) << 8) | (data[ptr++] & 0xff);
+        final int offset = ptr;
+        ptr += 2;
+        return data.getShort(offset) & 0xffff;
     }
 
     public int readInt() {
         final int offset = ptr;
         ptr += 4;
-        return ((data[offset] & 0xff) << 24)
-            | ((data[offset + 1] & 0xff) << 16)
-            | ((data[offset + 2] & 0xff) << 8)
-            | (data[offset + 3] & 0xff);
+        return data.getInt(offset);
     }
 
     public long readLong() {
-        return ((readInt() & 0xffffffffL) << 32) | (readInt() & 0xffffffffL);
+        final int offset = ptr;
+        ptr += 8;
+        return data.getLong(offset);
+    }
+
+    /**
+     * Reads an unsigned LEB128 value, as written by {@link Util#putVarInt}.
+     */
+    public int readVarInt() {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data.get(ptr++);
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
     }
 
     public String readUtf8() {
+        return readUtf8(null);
+    }
+
+    /**
+     * @param cache A cache to look the string up in before decoding it
+     */
+    public String readUtf8(@Nullable Utf8Cache cache) {
         final int length = readShort();
+        if (cache != null) {
+            final String cached = cache.get(data, ptr, length);
+            if (cached != null) {
+                ptr += length;
+                return cached;
+            }
+        }
         final char[] result = new char[length];
 
         int offset = ptr;
         final int endOffset = offset + length;
         int strLength = 0;
-        final byte[] input = data;
+        final ByteBuffer input = data;
         while (offset < endOffset) {
-            final int currentByte = input[offset++];
+            final int currentByte = input.get(offset++);
             if ((currentByte & 0x80) == 0) {
                 result[strLength++] = (char)(currentByte & 0x7f);
             } else if ((currentByte & 0xE0) == 0xC0) {
-                result[strLength++] = (char)(((currentByte & 0x1f) << 6) + (input[offset++] & 0x3f));
+                result[strLength++] = (char)(((currentByte & 0x1f) << 6) + (input.get(offset++) & 0x3f));
             } else {
                 result[strLength++] =
                     (char)(((currentByte & 0xf) << 12)
-                        + ((input[offset++] & 0x3f) << 6)
-                        + (input[offset++] & 0x3f)
+                        + ((input.get(offset++) & 0x3f) << 6)
+                        + (input.get(offset++) & 0x3f)
                     );
             }
         }
+        final String value = new String(result, 0, strLength);
+        if (cache != null) {
+            cache.put(data, ptr, length, value);
+        }
         ptr = offset;
 
-        return new String(result);
+        return value;
     }
 
     public byte[] readByteArray(byte[] byteArray, int offset, int length) {
-        System.arraycopy(data, ptr, byteArray, offset, length);
+        final ByteBuffer source = data.duplicate();
+        source.position(ptr);
+        source.get(byteArray, offset, length);
         ptr += length;
         return byteArray;
     }
@@ -0,0 +1,179 @@
+package io.github.prcraftmc.classdiff.util;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of parsed classes, keyed by the {@link Hashing#hash XXH64} of their class file and the
+ * {@link ClassReader#accept(org.objectweb.asm.ClassVisitor, int) parsing options}. This saves re-parsing a class that's
+ * diffed against many others, such as one base release diffed against several builds. Once the estimated size of the
+ * cached classes passes the limit, the least recently used classes are evicted.
+ * <p>
+ * One cache can be shared by any number of threads, and so can the classes it returns. Cached classes must be treated
+ * as read-only: they can be diffed and visited with {@code accept}, but not patched or otherwise modified. Use
+ * {@link #parse} for a class that will be modified.
+ */
+public final class ClassNodeCache {
+    private final long maxSize;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    public ClassNodeCache() {
+        this(64L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxSize The maximum total {@link #estimateSize estimated size} of the cached classes, in bytes
+     */
+    public ClassNodeCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the class parsed from {@code classFile} with {@code parsingOptions}, parsing and caching it if it isn't
+     * cached yet. The result must not be modified.
+     */
+    public ClassNode get(byte[] classFile, int parsingOptions) {
+        final Key key = new Key(Hashing.hash(classFile), classFile.length, parsingOptions);
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry.node;
+            }
+        }
+
+        // Parse outside the lock, so that threads missing on different classes don't wait for each other. Two threads
+        // missing on the same class both parse it, and the first to finish wins.
+        final ClassNode node = new SharedClassNode();
+        new ClassReader(classFile).accept(node, parsingOptions);
+        for (final MethodNode method : node.methods) {
+            if (method.instructions.size() > 0) {
+                // Builds the instruction array and indices now, rather than lazily from whichever threads read them
+                method.instructions.get(0);
+            }
+        }
+        final long nodeSize = estimateSize(node);
+        if (nodeSize > maxSize) {
+            return node;
+        }
+
+        synchronized (this) {
+            final Entry existing = entries.get(key);
+            if (existing != null) {
+                return existing.node;
+            }
+            entries.put(key, new Entry(node, nodeSize));
+            size += nodeSize;
+            final Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize) {
+                size -= it.next().size;
+                it.remove();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Parses {@code classFile} without caching it, for classes that will be modified.
+     */
+    public static ClassNode parse(byte[] classFile, int parsingOptions) {
+        final ClassNode node = new ClassNode();
+        new ClassReader(classFile).accept(node, parsingOptions);
+        return node;
+    }
+
+    /**
+     * Returns a rough estimate of the memory used by {@code node}, in bytes.
+     */
+    public static long estimateSize(ClassNode node) {
+        long result = 256 + 8L * node.interfaces.size();
+        for (final FieldNode field : node.fields) {
+            result += 96 + 2L * (field.name.length() + field.desc.length());
+        }
+        for (final MethodNode method : node.methods) {
+            result += 192 + 2L * (method.name.length() + method.desc.length());
+            result += 48L * method.instructions.size();
+            result += 48L * method.tryCatchBlocks.size();
+            if (method.localVariables != null) {
+                result += 64L * method.localVariables.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total estimated size of the cached classes, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private static final class Key {
+        final long hash;
+        final int length;
+        final int parsingOptions;
+
+        Key(long hash, int length, int parsingOptions) {
+            this.hash = hash;
+            this.length = length;
+            this.parsingOptions = parsingOptions;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key)o;
+            return hash == key.hash && length == key.length && parsingOptions == key.parsingOptions;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + parsingOptions;
+        }
+    }
+
+    private static final class Entry {
+        final ClassNode node;
+        final long size;
+
+        Entry(ClassNode node, long size) {
+            this.node = node;
+            this.size = size;
+        }
+    }
+
+    private static final class SharedClassNode extends ClassNode {
+        SharedClassNode() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+            int access, String name, String descriptor, String signature, String[] exceptions
+        ) {
+            final MethodNode method = new SharedMethodNode(access, name, descriptor, signature, exceptions);
+            methods.add(method);
+            return method;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.github.prcraftmc.classdiff.util;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli). This uses the hardware-accelerated {@code java.util.zip.CRC32C} on Java 9 and later, and a
+ * table-driven implementation with the same results on Java 8.
+ */
+public final class Crc32c {
+    private static final Supplier<Checksum> FACTORY = findFactory();
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    public static Checksum create() {
+        return FACTORY.get();
+    }
+
+    /**
+     * Computes the checksum of the bytes between {@code from} and {@code to} in {@code data}, using {@code buffer} to
+     * copy them out if {@code data} isn't backed by an array.
+     */
+    public static int compute(Checksum checksum, ByteBuffer data, int from, int to, byte[] buffer) {
+        checksum.reset();
+        if (data.hasArray()) {
+            checksum.update(data.array(), data.arrayOffset() + from, to - from);
+        } else {
+            final ByteBuffer source = data.duplicate();
+            source.position(from);
+            for (int remaining = to - from; remaining > 0; ) {
+                final int length = Math.min(remaining, buffer.length);
+                source.get(buffer, 0, length);
+                checksum.update(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+        return (int)checksum.getValue();
+    }
+
+    private static Supplier<Checksum> findFactory() {
+        try {
+            final Constructor<?> constructor = Class.forName("java.util.zip.CRC32C").getConstructor();
+            constructor.newInstance();
+            return () -> {
+                try {
+                    return (Checksum)constructor.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (ReflectiveOperationException e) {
+            return Software::new;
+        }
+    }
+
+    private static final class Software implements Checksum {
+        private int crc = ~0;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int crc = this.crc;
+            for (int i = off, end = off + len; i < end; i++) {
+                crc = (crc >>> 8) ^ TABLE[(crc ^ b[i]) & 0xff];
+            }
+            this.crc = crc;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            crc = ~0;
+        }
+    }
+}
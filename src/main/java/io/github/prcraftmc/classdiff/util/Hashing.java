@@ -0,0 +1,127 @@
+package io.github.prcraftmc.classdiff.util;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Fast non-cryptographic hashing (XXH64) for patch headers and caches.
+ */
+public class Hashing {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    public static long hash(byte[] data) {
+        return hash(data, 0, data.length);
+    }
+
+    public static long hash(byte[] data, int offset, int length) {
+        final int end = offset + length;
+        int ptr = offset;
+        long hash;
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            final int limit = end - 32;
+            do {
+                v1 = round(v1, readLong(data, ptr));
+                v2 = round(v2, readLong(data, ptr + 8));
+                v3 = round(v3, readLong(data, ptr + 16));
+                v4 = round(v4, readLong(data, ptr + 24));
+                ptr += 32;
+            } while (ptr <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += length;
+
+        while (ptr + 8 <= end) {
+            hash ^= round(0, readLong(data, ptr));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            ptr += 8;
+        }
+        if (ptr + 4 <= end) {
+            hash ^= (readInt(data, ptr) & 0xffffffffL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            ptr += 4;
+        }
+        while (ptr < end) {
+            hash ^= (data[ptr++] & 0xff) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * Hashes a normalized serialization of {@code node}. Debug information (source file, line numbers, local
+     * variables, and method parameters) and stack map frames are left out, so the result is the same no matter which
+     * {@link ClassReader} flags were used to read the class.
+     */
+    public static long hashClass(ClassNode node) {
+        final ClassWriter writer = new ClassWriter(0);
+        node.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public void visitSource(String source, String debug) {
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitParameter(String name, int access) {
+                    }
+
+                    @Override
+                    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+                    }
+
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                    }
+
+                    @Override
+                    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+                    }
+                };
+            }
+        });
+        return hash(writer.toByteArray());
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readInt(data, offset) & 0xffffffffL) | ((long)readInt(data, offset + 4) << 32);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff)
+            | ((data[offset + 1] & 0xff) << 8)
+            | ((data[offset + 2] & 0xff) << 16)
+            | ((data[offset + 3] & 0xff) << 24);
+    }
+}
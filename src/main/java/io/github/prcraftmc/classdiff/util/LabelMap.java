@@ -1,34 +1,90 @@
 package io.github.prcraftmc.classdiff.util;
 
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.stream.StreamSupport;
 
+/**
+ * Numbers the labels of a method in the order they appear. Ids are looked up in an open-addressing table keyed by
+ * {@link System#identityHashCode identity}, so lookups don't allocate, and the {@link LabelNode}s themselves are never
+ * modified, so methods can be shared between threads.
+ */
 public class LabelMap implements Iterable<LabelNode> {
     public static final LabelMap EMPTY = new LabelMap();
 
     private final LabelNode[] byId;
-    private final Map<LabelNode, Integer> toId;
+    private final LabelNode[] keys;
+    private final int[] ids;
+    private final int mask;
 
     public LabelMap(LabelNode... labels) {
         byId = labels;
-        toId = new HashMap<>(labels.length);
-        for (final LabelNode label : labels) {
-            toId.put(label, toId.size());
+        if (labels.length == 0) {
+            keys = labels;
+            ids = new int[0];
+            mask = 0;
+            return;
+        }
+        // At most half full, so probe sequences stay short
+        final int capacity = Integer.highestOneBit(labels.length * 2 - 1) << 1;
+        keys = new LabelNode[capacity];
+        ids = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < labels.length; id++) {
+            final LabelNode label = labels[id];
+            int slot = hash(label) & mask;
+            while (keys[slot] != null && keys[slot] != label) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == null) {
+                keys[slot] = label;
+                ids[slot] = id;
+            }
         }
     }
 
     public LabelMap(Iterable<AbstractInsnNode> insns) {
-        this(StreamSupport.stream(insns.spliterator(), false)
-            .filter(i -> i instanceof LabelNode)
-            .map(i -> (LabelNode)i)
-            .toArray(LabelNode[]::new)
-        );
+        this(collectLabels(insns));
+    }
+
+    private static LabelNode[] collectLabels(Iterable<AbstractInsnNode> insns) {
+        if (insns instanceof InsnList) {
+            final InsnList list = (InsnList)insns;
+            int count = 0;
+            for (AbstractInsnNode insn = list.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LabelNode) {
+                    count++;
+                }
+            }
+            final LabelNode[] result = new LabelNode[count];
+            int index = 0;
+            for (AbstractInsnNode insn = list.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LabelNode) {
+                    result[index++] = (LabelNode)insn;
+                }
+            }
+            return result;
+        }
+        LabelNode[] result = new LabelNode[16];
+        int count = 0;
+        for (final AbstractInsnNode insn : insns) {
+            if (insn instanceof LabelNode) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = (LabelNode)insn;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static int hash(LabelNode label) {
+        final int hash = System.identityHashCode(label);
+        return hash ^ (hash >>> 16);
     }
 
     public int size() {
@@ -39,11 +95,24 @@ public class LabelMap implements Iterable<LabelNode> {
         return byId[id];
     }
 
+    /**
+     * @throws IllegalArgumentException If {@code label} isn't in this map
+     */
     public int getId(LabelNode label) {
         if (label instanceof SyntheticLabelNode) {
             return ((SyntheticLabelNode)label).getId();
         }
-        return toId.get(label);
+        if (keys.length != 0) {
+            int slot = hash(label) & mask;
+            LabelNode key;
+            while ((key = keys[slot]) != null) {
+                if (key == label) {
+                    return ids[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        throw new IllegalArgumentException("Label is not in this method");
     }
 
     public LabelNode resolve(LabelNode label) {
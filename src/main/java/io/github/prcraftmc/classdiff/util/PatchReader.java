@@ -15,14 +15,21 @@ public class PatchReader<T> {
         this.reader = reader;
     }
 
-    private void read(int deltaCount, ByteReader input, Consumer<AbstractDelta<T>> output, List<T> originals) {
+    private void read(
+        int deltaCount,
+        ByteReader input,
+        Consumer<AbstractDelta<T>> output,
+        List<T> originals,
+        boolean varInts
+    ) {
         for (int i = 0; i < deltaCount; i++) {
             final DeltaType type = DeltaType.values()[input.readByte()];
             switch (type) {
                 case CHANGE: {
-                    final int position = input.readShort();
-                    final int sourceLength = input.readShort();
-                    final int targetLength = input.readShort();
+                    final int position = readLength(input, varInts);
+                    final int sourceLength = readLength(input, varInts);
+                    final int targetLength = readLength(input, varInts);
+                    checkBounds(position, sourceLength, originals);
                     final List<T> targetLines = new ArrayList<>(targetLength);
                     for (int j = 0; j < targetLength; j++) {
                         targetLines.add(reader.apply(input));
@@ -34,8 +41,9 @@ public class PatchReader<T> {
                     break;
                 }
                 case DELETE: {
-                    final int position = input.readShort();
-                    final int length = input.readShort();
+                    final int position = readLength(input, varInts);
+                    final int length = readLength(input, varInts);
+                    checkBounds(position, length, originals);
                     output.accept(new DeleteDelta<>(
                         new Chunk<>(position, originals.subList(position, position + length)),
                         new Chunk<>(0, Collections.emptyList())
@@ -43,8 +51,9 @@ public class PatchReader<T> {
                     break;
                 }
                 case INSERT: {
-                    final int position = input.readShort();
-                    final int targetLength = input.readShort();
+                    final int position = readLength(input, varInts);
+                    final int targetLength = readLength(input, varInts);
+                    checkBounds(position, 0, originals);
                     final List<T> targetLines = new ArrayList<>(targetLength);
                     for (int j = 0; j < targetLength; j++) {
                         targetLines.add(reader.apply(input));
@@ -64,17 +73,75 @@ public class PatchReader<T> {
         }
     }
 
+    private static void checkBounds(int position, int length, List<?> originals) {
+        if (position + length > originals.size()) {
+            throw new IllegalArgumentException(
+                "Patch delta at " + position + " with length " + length + " is out of bounds for list of size " +
+                    originals.size() + ".\nDouble check you are patching the same file the diff is for."
+            );
+        }
+    }
+
+    private static int readLength(ByteReader input, boolean varInts) {
+        return varInts ? input.readVarInt() : input.readShort();
+    }
+
     public List<AbstractDelta<T>> readDeltaList(ByteReader input, List<T> originals) {
-        final int deltaCount = input.readShort();
+        return readDeltaList(input, originals, false);
+    }
+
+    /**
+     * @param varInts Whether counts, positions, and lengths are {@link ByteReader#readVarInt varints}, as in
+     * {@link io.github.prcraftmc.classdiff.format.DiffConstants#V2}
+     */
+    public List<AbstractDelta<T>> readDeltaList(ByteReader input, List<T> originals, boolean varInts) {
+        final int deltaCount = readLength(input, varInts);
         final List<AbstractDelta<T>> result = new ArrayList<>(deltaCount);
-        read(deltaCount, input, result::add, originals);
+        read(deltaCount, input, result::add, originals, varInts);
         return result;
     }
 
     public Patch<T> readPatch(ByteReader input, List<T> originals) {
-        final int deltaCount = input.readShort();
+        return readPatch(input, originals, false);
+    }
+
+    public Patch<T> readPatch(ByteReader input, List<T> originals, boolean varInts) {
+        final int deltaCount = readLength(input, varInts);
         final Patch<T> result = new Patch<>(deltaCount);
-        read(deltaCount, input, result::addDelta, originals);
+        read(deltaCount, input, result::addDelta, originals, varInts);
         return result;
     }
+
+    /**
+     * Moves {@code input} past a patch without checking it against a list.
+     */
+    public void skipPatch(ByteReader input, boolean varInts) {
+        for (int i = 0, deltaCount = readLength(input, varInts); i < deltaCount; i++) {
+            switch (DeltaType.values()[input.readByte()]) {
+                case CHANGE:
+                    readLength(input, varInts);
+                    readLength(input, varInts);
+                    skipLines(input, readLength(input, varInts));
+                    break;
+                case DELETE:
+                    readLength(input, varInts);
+                    readLength(input, varInts);
+                    break;
+                case INSERT:
+                    readLength(input, varInts);
+                    skipLines(input, readLength(input, varInts));
+                    break;
+                case EQUAL:
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    private void skipLines(ByteReader input, int count) {
+        for (int i = 0; i < count; i++) {
+            reader.apply(input);
+        }
+    }
 }
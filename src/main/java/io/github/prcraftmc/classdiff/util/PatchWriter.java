@@ -15,25 +15,33 @@ public class PatchWriter<T> {
     }
 
     public void write(ByteVector vector, List<AbstractDelta<T>> patch) {
-        vector.putShort(patch.size());
+        write(vector, patch, false);
+    }
+
+    /**
+     * @param varInts Whether to write counts, positions, and lengths as {@link Util#putVarInt varints}, as in
+     * {@link io.github.prcraftmc.classdiff.format.DiffConstants#V2}
+     */
+    public void write(ByteVector vector, List<AbstractDelta<T>> patch, boolean varInts) {
+        putLength(vector, patch.size(), varInts);
         for (final AbstractDelta<T> delta : patch) {
             vector.putByte(delta.getType().ordinal());
             switch (delta.getType()) {
                 case CHANGE:
-                    vector.putShort(delta.getSource().getPosition());
-                    vector.putShort(delta.getSource().size());
-                    vector.putShort(delta.getTarget().size());
+                    putLength(vector, delta.getSource().getPosition(), varInts);
+                    putLength(vector, delta.getSource().size(), varInts);
+                    putLength(vector, delta.getTarget().size(), varInts);
                     for (final T line : delta.getTarget().getLines()) {
                         writer.accept(vector, line);
                     }
                     break;
                 case DELETE:
-                    vector.putShort(delta.getSource().getPosition());
-                    vector.putShort(delta.getSource().size());
+                    putLength(vector, delta.getSource().getPosition(), varInts);
+                    putLength(vector, delta.getSource().size(), varInts);
                     break;
                 case INSERT:
-                    vector.putShort(delta.getSource().getPosition());
-                    vector.putShort(delta.getTarget().size());
+                    putLength(vector, delta.getSource().getPosition(), varInts);
+                    putLength(vector, delta.getTarget().size(), varInts);
                     for (final T line : delta.getTarget().getLines()) {
                         writer.accept(vector, line);
                     }
@@ -48,4 +56,16 @@ public class PatchWriter<T> {
     public void write(ByteVector vector, Patch<T> patch) {
         write(vector, patch.getDeltas());
     }
+
+    public void write(ByteVector vector, Patch<T> patch, boolean varInts) {
+        write(vector, patch.getDeltas(), varInts);
+    }
+
+    private static void putLength(ByteVector vector, int value, boolean varInts) {
+        if (varInts) {
+            Util.putVarInt(vector, value);
+        } else {
+            vector.putShort(value);
+        }
+    }
 }
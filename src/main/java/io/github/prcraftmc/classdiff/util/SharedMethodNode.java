@@ -0,0 +1,63 @@
+package io.github.prcraftmc.classdiff.util;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A {@link MethodNode} whose {@link #instructions} may be shared with other methods on other threads, such as the
+ * methods of a {@link ClassNodeCache cached class} or of a class made by
+ * {@link io.github.prcraftmc.classdiff.ClassPatcher#patchCopy}.
+ * <p>
+ * {@link MethodNode#accept(MethodVisitor)} resets and recreates the {@link org.objectweb.asm.Label}s of the
+ * instructions' {@link org.objectweb.asm.tree.LabelNode}s, so visits of methods sharing the same instructions take
+ * turns by locking them.
+ */
+public class SharedMethodNode extends MethodNode {
+    public SharedMethodNode(int access, String name, String descriptor, String signature, String[] exceptions) {
+        super(Opcodes.ASM9, access, name, descriptor, signature, exceptions);
+    }
+
+    /**
+     * Returns a new method that shares everything but itself with {@code method}.
+     */
+    public static SharedMethodNode copyOf(MethodNode method) {
+        final SharedMethodNode result = new SharedMethodNode(method.access, method.name, method.desc, null, null);
+        result.signature = method.signature;
+        result.exceptions = method.exceptions;
+        result.parameters = method.parameters;
+        result.visibleAnnotations = method.visibleAnnotations;
+        result.invisibleAnnotations = method.invisibleAnnotations;
+        result.visibleTypeAnnotations = method.visibleTypeAnnotations;
+        result.invisibleTypeAnnotations = method.invisibleTypeAnnotations;
+        result.attrs = method.attrs;
+        result.annotationDefault = method.annotationDefault;
+        result.visibleAnnotableParameterCount = method.visibleAnnotableParameterCount;
+        result.visibleParameterAnnotations = method.visibleParameterAnnotations;
+        result.invisibleAnnotableParameterCount = method.invisibleAnnotableParameterCount;
+        result.invisibleParameterAnnotations = method.invisibleParameterAnnotations;
+        result.instructions = method.instructions;
+        if (method.instructions.size() > 0) {
+            // Builds the instruction array and indices, which InsnList otherwise does lazily and without locking from
+            // whichever thread reads them first. Every copy builds them under the same lock, so each thread sees them
+            // complete.
+            synchronized (method.instructions) {
+                method.instructions.get(0);
+            }
+        }
+        result.tryCatchBlocks = method.tryCatchBlocks;
+        result.maxStack = method.maxStack;
+        result.maxLocals = method.maxLocals;
+        result.localVariables = method.localVariables;
+        result.visibleLocalVariableAnnotations = method.visibleLocalVariableAnnotations;
+        result.invisibleLocalVariableAnnotations = method.invisibleLocalVariableAnnotations;
+        return result;
+    }
+
+    @Override
+    public void accept(MethodVisitor methodVisitor) {
+        synchronized (instructions) {
+            super.accept(methodVisitor);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.prcraftmc.classdiff.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of decoded strings, keyed by their modified UTF-8 bytes. One cache can be shared by any number of
+ * {@link io.github.prcraftmc.classdiff.format.DiffReader}s on any number of threads. Readers sharing a cache also
+ * share string instances, so classes patched with them hold fewer copies of common names and descriptors.
+ * <p>
+ * Each string hashes to a single slot, and a new string replaces whatever was in its slot, so the cache never grows
+ * past its capacity and needs no locking.
+ */
+public final class Utf8Cache {
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    public Utf8Cache() {
+        this(4096);
+    }
+
+    /**
+     * @param capacity The number of slots, rounded up to a power of two
+     */
+    public Utf8Cache(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the string for the {@code length} bytes at {@code offset} in {@code data}, or {@code null} if it isn't
+     * cached.
+     */
+    public String get(ByteBuffer data, int offset, int length) {
+        final int hash = hash(data, offset, length);
+        final Entry entry = entries.get(hash & mask);
+        if (entry != null && entry.hash == hash && entry.matches(data, offset, length)) {
+            return entry.value;
+        }
+        return null;
+    }
+
+    /**
+     * Caches {@code value} as the string for the {@code length} bytes at {@code offset} in {@code data}.
+     */
+    public void put(ByteBuffer data, int offset, int length, String value) {
+        final int hash = hash(data, offset, length);
+        final byte[] utf8 = new byte[length];
+        for (int i = 0; i < length; i++) {
+            utf8[i] = data.get(offset + i);
+        }
+        entries.lazySet(hash & mask, new Entry(hash, utf8, value));
+    }
+
+    private static int hash(ByteBuffer data, int offset, int length) {
+        int hash = length;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + data.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry {
+        final int hash;
+        final byte[] utf8;
+        final String value;
+
+        Entry(int hash, byte[] utf8, String value) {
+            this.hash = hash;
+            this.utf8 = utf8;
+            this.value = value;
+        }
+
+        boolean matches(ByteBuffer data, int offset, int length) {
+            if (utf8.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (utf8[i] != data.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
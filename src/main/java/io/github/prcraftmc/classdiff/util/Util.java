@@ -4,6 +4,7 @@ import com.github.difflib.patch.AbstractDelta;
 import com.github.difflib.patch.Patch;
 import com.github.difflib.patch.PatchFailedException;
 import io.github.prcraftmc.classdiff.UncheckedPatchFailure;
+import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
@@ -71,6 +72,26 @@ public class Util {
         };
     }
 
+    /**
+     * Writes {@code value} as an unsigned LEB128 value, so values below 128 take a single byte.
+     */
+    public static ByteVector putVarInt(ByteVector vector, int value) {
+        while ((value & ~0x7f) != 0) {
+            vector.putByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        return vector.putByte(value);
+    }
+
+    public static int getVarIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
     public static boolean isNullOrEmpty(List<?> list) {
         return list == null || list.isEmpty();
     }
@@ -1,23 +1,90 @@
 package io.github.prcraftmc.classdif.test;
 
+import com.github.difflib.patch.Chunk;
+import com.github.difflib.patch.DeleteDelta;
+import com.github.difflib.patch.InsertDelta;
+import com.github.difflib.patch.Patch;
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
 import io.github.prcraftmc.classdiff.ClassDiffer;
 import io.github.prcraftmc.classdiff.ClassPatcher;
+import io.github.prcraftmc.classdiff.PatchComposer;
+import io.github.prcraftmc.classdiff.PatchValidator;
+import io.github.prcraftmc.classdiff.batch.BatchDiffer;
+import io.github.prcraftmc.classdiff.batch.BatchPatcher;
+import io.github.prcraftmc.classdiff.batch.DiffBundle;
+import io.github.prcraftmc.classdiff.batch.DiffCache;
+import io.github.prcraftmc.classdiff.batch.DiffPipeline;
+import io.github.prcraftmc.classdiff.format.CorruptDiffException;
+import io.github.prcraftmc.classdiff.format.DictionaryTrainer;
+import io.github.prcraftmc.classdiff.format.DiffCompression;
+import io.github.prcraftmc.classdiff.format.DiffConstants;
 import io.github.prcraftmc.classdiff.format.DiffReader;
+import io.github.prcraftmc.classdiff.format.DiffVisitor;
 import io.github.prcraftmc.classdiff.format.DiffWriter;
+import io.github.prcraftmc.classdiff.format.FieldDiffVisitor;
+import io.github.prcraftmc.classdiff.format.MethodDiffVisitor;
+import io.github.prcraftmc.classdiff.format.PatchDictionary;
+import io.github.prcraftmc.classdiff.util.ByteDelta;
+import io.github.prcraftmc.classdiff.util.ClassNodeCache;
+import io.github.prcraftmc.classdiff.util.Crc32c;
+import io.github.prcraftmc.classdiff.util.Hashing;
+import io.github.prcraftmc.classdiff.util.LabelMap;
+import io.github.prcraftmc.classdiff.util.MemberName;
+import io.github.prcraftmc.classdiff.util.ReflectUtils;
+import io.github.prcraftmc.classdiff.util.SyntheticLabelNode;
+import io.github.prcraftmc.classdiff.util.Utf8Cache;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeAnnotationNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.util.TraceClassVisitor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Checksum;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class ClassTest {
     private void test(String file1, String file2) throws IOException {
@@ -44,6 +111,12 @@ public class ClassTest {
         );
     }
 
+    private ClassNode readClass(String file) throws IOException {
+        final ClassNode node = new ClassNode();
+        new ClassReader(ClassTest.class.getResourceAsStream(file)).accept(node, 0);
+        return node;
+    }
+
     private String toString(ClassNode node) {
         final StringWriter result = new StringWriter();
         node.accept(new TraceClassVisitor(new PrintWriter(result)));
@@ -103,4 +176,976 @@ public class ClassTest {
     public void test10() throws IOException {
         test("/java/lang/Object.class", "/java/lang/Record.class");
     }
+
+    @Test
+    public void classHashes() throws IOException {
+        final ClassNode helloNode = readClass("test1/Hello.class");
+        final ClassNode worldNode = readClass("test1/World.class");
+
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(helloNode, worldNode, writer, ClassDiffer.CLASS_HASHES);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+
+        assertTrue(reader.hasClassHashes());
+        assertEquals(Hashing.hashClass(helloNode), reader.getBaseHash());
+        assertEquals(Hashing.hashClass(worldNode), reader.getTargetHash());
+
+        final ClassNode debuglessNode = new ClassNode();
+        new ClassReader(ClassTest.class.getResourceAsStream("test1/Hello.class"))
+            .accept(debuglessNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        assertEquals(reader.getBaseHash(), Hashing.hashClass(debuglessNode));
+
+        ClassPatcher.patch(helloNode, reader);
+        assertEquals(toString(worldNode), toString(helloNode));
+        assertEquals(reader.getTargetHash(), Hashing.hashClass(helloNode));
+    }
+
+    @Test
+    public void classHashesMismatch() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), readClass("test1/World.class"), writer, ClassDiffer.CLASS_HASHES);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+
+        final ClassNode wrongNode = readClass("test2/Hello.class");
+        final String before = toString(wrongNode);
+        assertThrows(IllegalArgumentException.class, () -> ClassPatcher.patch(wrongNode, reader));
+        assertEquals(before, toString(wrongNode));
+    }
+
+    @Test
+    public void noClassHashes() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), readClass("test1/World.class"), writer);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+
+        assertFalse(reader.hasClassHashes());
+        assertThrows(IllegalStateException.class, reader::getBaseHash);
+    }
+
+    @Test
+    public void validate() throws IOException {
+        final ClassNode helloNode = readClass("/java/lang/String.class");
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(helloNode, readClass("/java/lang/Class.class"), writer);
+        final byte[] patch = writer.toByteArray();
+
+        final String before = toString(helloNode);
+        assertEquals(Collections.emptyList(), PatchValidator.validate(helloNode, new DiffReader(patch)));
+        assertEquals(before, toString(helloNode));
+
+        assertFalse(PatchValidator.validate(readClass("test1/Hello.class"), new DiffReader(patch)).isEmpty());
+    }
+
+    @Test
+    public void validateHashMismatch() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), readClass("test1/World.class"), writer, ClassDiffer.CLASS_HASHES);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+
+        final ClassNode wrongNode = readClass("test1/Hello.class");
+        wrongNode.access ^= Opcodes.ACC_FINAL;
+        final List<String> problems = PatchValidator.validate(wrongNode, reader);
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).startsWith("Class hash mismatch"), problems.get(0));
+        final IllegalArgumentException e = assertThrows(
+            IllegalArgumentException.class, () -> ClassPatcher.patch(wrongNode, reader)
+        );
+        assertTrue(e.getMessage().startsWith(problems.get(0)), e.getMessage());
+    }
+
+    @Test
+    public void validateInsnCount() throws IOException {
+        final ClassNode modified = readClass("/java/lang/String.class");
+        modified.methods.get(2).instructions.insert(new InsnNode(Opcodes.NOP));
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/String.class"), modified, writer);
+
+        final ClassNode wrongBase = readClass("/java/lang/String.class");
+        wrongBase.methods.get(2).instructions.insert(new InsnNode(Opcodes.ICONST_0));
+        final List<String> problems = PatchValidator.validate(wrongBase, new DiffReader(writer.toByteArray()));
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).startsWith("Instruction size for " + wrongBase.methods.get(2).name), problems.get(0));
+    }
+
+    @Test
+    public void validateIndices() throws IOException {
+        final ClassNode node = readClass("test1/Hello.class");
+        final MethodNode method = node.methods.get(0);
+        final int insnCount = method.instructions.size();
+
+        final PatchValidator memberValidator = new PatchValidator(node);
+        final Patch<MemberName> memberPatch = new Patch<>();
+        memberPatch.addDelta(new DeleteDelta<>(
+            new Chunk<>(node.methods.size(), Collections.singletonList(new MemberName("missing", "()V"))),
+            new Chunk<>(node.methods.size(), Collections.emptyList())
+        ));
+        memberValidator.visitMethods(memberPatch);
+        assertEquals(1, memberValidator.getProblems().size());
+        assertTrue(memberValidator.getProblems().get(0).contains("out of bounds"), memberValidator.getProblems().get(0));
+
+        final PatchValidator insnValidator = new PatchValidator(node);
+        final MethodDiffVisitor insnVisitor = insnValidator.visitMethod(
+            method.access, method.name, method.desc, method.signature, new Patch<>()
+        );
+        final Patch<AbstractInsnNode> insnPatch = new Patch<>();
+        insnPatch.addDelta(new InsertDelta<>(
+            new Chunk<>(insnCount + 1, Collections.emptyList()),
+            new Chunk<>(insnCount + 1, Collections.singletonList(new InsnNode(Opcodes.NOP)))
+        ));
+        insnVisitor.visitInsns(insnCount, insnPatch, () -> LabelMap.EMPTY);
+        insnVisitor.visitInsnAnnotations(
+            new int[] {insnCount}, Collections.singletonList(new TypeAnnotationNode(0, null, "LA;")), true
+        );
+        assertEquals(2, insnValidator.getProblems().size());
+        assertTrue(insnValidator.getProblems().get(0).contains("out of bounds"), insnValidator.getProblems().get(0));
+        assertTrue(
+            insnValidator.getProblems().get(1).contains("refers to instruction " + insnCount),
+            insnValidator.getProblems().get(1)
+        );
+    }
+
+    @Test
+    public void validateLabels() throws IOException {
+        final ClassNode node = readClass("test1/Hello.class");
+        final MethodNode method = node.methods.get(0);
+        final PatchValidator validator = new PatchValidator(node);
+        final MethodDiffVisitor visitor = validator.visitMethod(
+            method.access, method.name, method.desc, method.signature, new Patch<>()
+        );
+        final Patch<AbstractInsnNode> patch = new Patch<>();
+        patch.addDelta(new InsertDelta<>(
+            new Chunk<>(0, Collections.emptyList()),
+            new Chunk<>(0, Collections.singletonList(new JumpInsnNode(Opcodes.GOTO, new SyntheticLabelNode(100))))
+        ));
+        visitor.visitInsns(method.instructions.size(), patch, () -> LabelMap.EMPTY);
+        visitor.visitTryCatchBlocks(Collections.singletonList(new TryCatchBlockNode(
+            new SyntheticLabelNode(0), new SyntheticLabelNode(101), new SyntheticLabelNode(0), null
+        )), null);
+
+        assertEquals(2, validator.getProblems().size());
+        assertTrue(validator.getProblems().get(0).startsWith("Label 100 in"), validator.getProblems().get(0));
+        assertTrue(validator.getProblems().get(1).startsWith("Label 101 in"), validator.getProblems().get(1));
+    }
+
+    private void compose(String file1, String file2, String file3) throws IOException {
+        final DiffWriter first = new DiffWriter();
+        ClassDiffer.diff(readClass(file1), readClass(file2), first, ClassDiffer.CLASS_HASHES);
+        final DiffWriter second = new DiffWriter();
+        ClassDiffer.diff(readClass(file2), readClass(file3), second, ClassDiffer.CLASS_HASHES);
+
+        final ClassNode baseNode = readClass(file1);
+        final String before = toString(baseNode);
+        final DiffWriter composed = new DiffWriter();
+        PatchComposer.compose(
+            baseNode, new DiffReader(first.toByteArray()), new DiffReader(second.toByteArray()), composed
+        );
+        assertEquals(before, toString(baseNode));
+
+        ClassPatcher.patch(baseNode, new DiffReader(composed.toByteArray()));
+        assertEquals(toString(readClass(file3)), toString(baseNode));
+    }
+
+    @Test
+    public void compose() throws IOException {
+        compose("test1/Hello.class", "test1/World.class", "test1/Hello.class");
+        compose("test2/Hello.class", "test2/World.class", "test1/World.class");
+        compose("/java/lang/String.class", "/java/lang/Integer.class", "/java/lang/Float.class");
+        compose("/java/lang/Object.class", "/java/lang/Record.class", "/java/lang/Class.class");
+        compose("/java/lang/Integer.class", "/java/lang/Float.class", "/java/lang/Integer.class");
+    }
+
+    @Test
+    public void composeMismatch() throws IOException {
+        final DiffWriter first = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), readClass("test1/World.class"), first, ClassDiffer.CLASS_HASHES);
+        final DiffWriter second = new DiffWriter();
+        ClassDiffer.diff(readClass("test2/Hello.class"), readClass("test2/World.class"), second, ClassDiffer.CLASS_HASHES);
+
+        assertThrows(IllegalArgumentException.class, () -> PatchComposer.compose(
+            readClass("test1/Hello.class"),
+            new DiffReader(first.toByteArray()),
+            new DiffReader(second.toByteArray()),
+            new DiffWriter()
+        ));
+    }
+
+    @Test
+    public void invert() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(
+            readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer,
+            ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE
+        );
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+        assertTrue(reader.isReversible());
+
+        final DiffReader inverse = new DiffReader(reader.invert());
+        assertTrue(inverse.isReversible());
+        assertEquals(reader.getTargetHash(), inverse.getBaseHash());
+        assertEquals(reader.getBaseHash(), inverse.getTargetHash());
+
+        final ClassNode node = readClass("/java/lang/String.class");
+        ClassPatcher.patch(node, reader);
+        ClassPatcher.patch(node, inverse);
+        assertEquals(toString(readClass("/java/lang/String.class")), toString(node));
+
+        ClassPatcher.patch(node, new DiffReader(inverse.invert()));
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+
+        final DiffWriter plainWriter = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), readClass("test1/World.class"), plainWriter);
+        final DiffReader plainReader = new DiffReader(plainWriter.toByteArray());
+        assertFalse(plainReader.isReversible());
+        assertThrows(IllegalStateException.class, plainReader::invert);
+    }
+
+    @Test
+    public void patchChain() throws IOException {
+        final String[] files = {
+            "/java/lang/String.class", "/java/lang/Integer.class", "/java/lang/Float.class", "/java/lang/Class.class"
+        };
+        final List<DiffReader> patches = new ArrayList<>();
+        for (int i = 1; i < files.length; i++) {
+            final DiffWriter writer = new DiffWriter();
+            ClassDiffer.diff(readClass(files[i - 1]), readClass(files[i]), writer, i != 2 ? ClassDiffer.CLASS_HASHES : 0);
+            patches.add(new DiffReader(writer.toByteArray()));
+        }
+
+        final ClassNode node = readClass(files[0]);
+        ClassPatcher.patch(node, patches);
+        assertEquals(toString(readClass(files[files.length - 1])), toString(node));
+
+        assertThrows(IllegalArgumentException.class, () -> ClassPatcher.patch(
+            readClass(files[0]), Arrays.asList(patches.get(0), patches.get(2))
+        ));
+    }
+
+    @Test
+    public void writeTo() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(
+            readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer,
+            ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE
+        );
+        final byte[] expected = writer.toByteArray();
+        assertEquals(expected.length, writer.computeSize());
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writer.writeTo(stream);
+        assertArrayEquals(expected, stream.toByteArray());
+
+        final ByteArrayOutputStream channelStream = new ByteArrayOutputStream();
+        writer.writeTo(Channels.newChannel(channelStream));
+        assertArrayEquals(expected, channelStream.toByteArray());
+    }
+
+    @Test
+    public void byteBuffer() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer);
+        final byte[] patch = writer.toByteArray();
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(patch.length + 10);
+        direct.position(7);
+        direct.put(patch);
+
+        final ClassNode node = readClass("/java/lang/String.class");
+        ClassPatcher.patch(node, new DiffReader(direct, 7, patch.length));
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+    }
+
+    @Test
+    public void compactFormat() throws IOException {
+        final DiffWriter v1Writer = new DiffWriter();
+        ClassDiffer.diff(
+            readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"),
+            withDiffVersion(v1Writer, DiffConstants.V1)
+        );
+        final DiffWriter v2Writer = new DiffWriter();
+        ClassDiffer.diff(
+            readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"),
+            withDiffVersion(v2Writer, DiffConstants.V2)
+        );
+
+        final byte[] v1 = v1Writer.toByteArray();
+        final byte[] v2 = v2Writer.toByteArray();
+        assertTrue(v2.length < v1.length, "V2 diff (" + v2.length + " bytes) not smaller than V1 (" + v1.length + ")");
+
+        for (final byte[] patch : Arrays.asList(v1, v2)) {
+            final ClassNode node = readClass("/java/lang/String.class");
+            ClassPatcher.patch(node, new DiffReader(patch));
+            assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+        }
+    }
+
+    @Test
+    public void compression() throws IOException {
+        final String[] classes = {"Integer", "Long", "Short", "Byte", "Float", "Double", "Character", "Boolean"};
+        final DictionaryTrainer trainer = new DictionaryTrainer();
+        for (int i = 1; i < classes.length - 1; i++) {
+            final DiffWriter writer = new DiffWriter();
+            ClassDiffer.diff(
+                readClass("/java/lang/" + classes[i - 1] + ".class"), readClass("/java/lang/" + classes[i] + ".class"), writer
+            );
+            trainer.addDiff(writer.toByteArray());
+        }
+        final PatchDictionary dictionary = trainer.train();
+
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/Character.class"), readClass("/java/lang/Boolean.class"), writer);
+        final byte[] plain = DiffCompression.compress(writer.toByteArray());
+        final byte[] trained = writer.toCompressedByteArray(dictionary);
+        assertTrue(trained.length < plain.length, "Dictionary (" + trained.length + " bytes) didn't beat plain (" + plain.length + ")");
+
+        for (final DiffReader reader : Arrays.asList(new DiffReader(plain), new DiffReader(trained, dictionary))) {
+            final ClassNode node = readClass("/java/lang/Character.class");
+            ClassPatcher.patch(node, reader);
+            assertEquals(toString(readClass("/java/lang/Boolean.class")), toString(node));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new DiffReader(trained));
+        assertThrows(IllegalArgumentException.class, () -> new DiffReader(trained, new PatchDictionary(new byte[] {1})));
+    }
+
+    @Test
+    public void tableOfContents() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        writer.setTableOfContents(true);
+        ClassDiffer.diff(readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+        assertTrue(reader.hasTableOfContents());
+
+        final List<String> expected = new ArrayList<>();
+        final List<String> actual = new ArrayList<>();
+        reader.accept(new MemberCollector(expected), readClass("/java/lang/String.class"));
+        final MemberCollector collector = new MemberCollector(actual);
+        for (int i = reader.getMethodCount() - 1; i >= 0; i--) {
+            reader.acceptMethod(i, collector, readClass("/java/lang/String.class"));
+        }
+        for (int i = reader.getFieldCount() - 1; i >= 0; i--) {
+            reader.acceptField(i, collector, readClass("/java/lang/String.class"));
+        }
+        Collections.reverse(actual);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+
+        final ClassNode node = readClass("/java/lang/String.class");
+        ClassPatcher.patch(node, reader);
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+
+        final DiffWriter plainWriter = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), plainWriter);
+        assertThrows(IllegalStateException.class, () -> new DiffReader(plainWriter.toByteArray()).getMethodCount());
+    }
+
+    @Test
+    public void checksums() throws IOException {
+        final Checksum crc = Crc32c.create();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        final DiffWriter writer = new DiffWriter();
+        writer.setChecksums(true);
+        ClassDiffer.diff(
+            readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer,
+            ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE
+        );
+        final byte[] diff = writer.toByteArray();
+        final ClassNode node = readClass("/java/lang/String.class");
+        ClassPatcher.patch(node, new DiffReader(diff));
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        writer.writeTo(streamed);
+        assertArrayEquals(diff, streamed.toByteArray());
+
+        for (final int position : new int[] {20, diff.length / 2, diff.length - 1}) {
+            final byte[] corrupt = diff.clone();
+            corrupt[position] ^= 0x10;
+            assertThrows(CorruptDiffException.class, () -> new DiffReader(corrupt));
+        }
+        assertThrows(CorruptDiffException.class, () -> new DiffReader(Arrays.copyOf(diff, diff.length - 1)));
+
+        final DiffReader reader = new DiffReader(diff);
+        assertTrue(reader.hasChecksums());
+        final DiffReader inverse = new DiffReader(reader.invert());
+        assertTrue(inverse.hasChecksums());
+        final byte[] reinverted = inverse.invert();
+        assertTrue(new DiffReader(reinverted).hasChecksums());
+        ClassPatcher.patch(node, inverse);
+        assertEquals(toString(readClass("/java/lang/String.class")), toString(node));
+        ClassPatcher.patch(node, new DiffReader(reinverted));
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+    }
+
+    @Test
+    public void checksumsCorruption() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        writer.setChecksums(true);
+        writer.setTableOfContents(true);
+        ClassDiffer.diff(
+            readClass("test1/Hello.class"), readClass("test1/World.class"), writer,
+            ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE
+        );
+        final byte[] diff = writer.toByteArray();
+        for (int position = 0; position < diff.length; position++) {
+            for (final int flip : new int[] {0x01, 0x10, 0x80, 0xff}) {
+                final byte[] corrupt = diff.clone();
+                corrupt[position] ^= flip;
+                // A damaged magic isn't recognized as a diff at all, and everything after it fails the checksums
+                final Class<? extends IllegalArgumentException> expected =
+                    position < 4 ? IllegalArgumentException.class : CorruptDiffException.class;
+                assertThrows(expected, () -> new DiffReader(corrupt), "Byte " + position + " ^ " + flip);
+            }
+        }
+    }
+
+    @Test
+    public void attributeDelta() throws IOException {
+        final Random random = new Random(42);
+        final byte[] source = new byte[20000];
+        random.nextBytes(source);
+        final byte[] target = new byte[source.length + 100];
+        System.arraycopy(source, 5000, target, 0, 10000);
+        final byte[] inserted = new byte[100];
+        random.nextBytes(inserted);
+        System.arraycopy(inserted, 0, target, 10000, 100);
+        System.arraycopy(source, 0, target, 10100, 5000);
+        System.arraycopy(source, 15000, target, 15100, 5000);
+
+        final ByteDelta delta = new ByteDelta();
+        final byte[] patch = delta.compute(source, target);
+        assertTrue(patch.length < 200);
+        assertArrayEquals(target, ByteDelta.apply(source, patch));
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertArrayEquals(target, ByteDelta.apply(source, new Delta().compute(source, target)));
+
+        final byte[] unrelated = new byte[3000];
+        random.nextBytes(unrelated);
+        final byte[] rawPatch = delta.compute(source, unrelated);
+        assertEquals(unrelated.length + 9, rawPatch.length);
+        assertArrayEquals(unrelated, ByteDelta.apply(source, rawPatch));
+
+        final ClassNode original = readClass("/java/lang/String.class");
+        final ClassNode modified = readClass("/java/lang/String.class");
+        original.attrs = new ArrayList<>();
+        modified.attrs = new ArrayList<>();
+        final Attribute originalAttr = ReflectUtils.newAttribute("Blob");
+        ReflectUtils.setAttributeContent(originalAttr, source);
+        original.attrs.add(originalAttr);
+        final Attribute modifiedAttr = ReflectUtils.newAttribute("Blob");
+        ReflectUtils.setAttributeContent(modifiedAttr, target);
+        modified.attrs.add(modifiedAttr);
+
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(original, modified, writer);
+        assertTrue(writer.toByteArray().length < 300);
+        ClassPatcher.patch(original, new DiffReader(writer.toByteArray()));
+        assertArrayEquals(target, ReflectUtils.getAttributeContent(original.attrs.get(0)));
+    }
+
+    @Test
+    public void concurrentReader() throws Exception {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer);
+        final DiffReader reader = new DiffReader(writer.toByteArray());
+        final String expected = toString(readClass("/java/lang/Class.class"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(() -> {
+                    final ClassNode node = readClass("/java/lang/String.class");
+                    ClassPatcher.patch(node, reader);
+                    return toString(node);
+                }));
+            }
+            for (final Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reusedWriter() throws IOException {
+        final String[][] pairs = {
+            {"/java/lang/String.class", "/java/lang/Class.class"},
+            {"/java/lang/Object.class", "/java/lang/Integer.class"},
+            {"/java/lang/Class.class", "/java/lang/String.class"},
+            {"/java/util/ArrayList.class", "/java/util/HashMap.class"},
+        };
+        final DiffWriter writer = new DiffWriter();
+        writer.setChecksums(true);
+        final ClassDiffer differ = new ClassDiffer(writer, ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE);
+        for (final String[] pair : pairs) {
+            writer.reset();
+            differ.accept(readClass(pair[0]), readClass(pair[1]));
+
+            final DiffWriter freshWriter = new DiffWriter();
+            freshWriter.setChecksums(true);
+            ClassDiffer.diff(
+                readClass(pair[0]), readClass(pair[1]), freshWriter, ClassDiffer.CLASS_HASHES | ClassDiffer.REVERSIBLE
+            );
+            assertArrayEquals(freshWriter.toByteArray(), writer.toByteArray());
+        }
+    }
+
+    @Test
+    public void batch(@TempDir Path dir) throws IOException {
+        final Path originalJar = dir.resolve("original.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(originalJar))) {
+            for (final String[] entry : new String[][] {
+                {"a/A.class", "/java/lang/String.class"},
+                {"b/B.class", "/java/lang/Object.class"},
+                {"c/C.class", "/java/lang/Integer.class"},
+            }) {
+                zip.putNextEntry(new ZipEntry(entry[0]));
+                zip.write(readBytes(entry[1]));
+                zip.closeEntry();
+            }
+        }
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(modified.resolve("a"));
+        Files.createDirectories(modified.resolve("b"));
+        Files.createDirectories(modified.resolve("d"));
+        Files.write(modified.resolve("a/A.class"), readBytes("/java/lang/Class.class"));
+        Files.write(modified.resolve("b/B.class"), readBytes("/java/lang/Object.class"));
+        Files.write(modified.resolve("d/D.class"), readBytes("/java/lang/Long.class"));
+
+        final Path diffs = dir.resolve("diffs");
+        final BatchDiffer.Result result = new BatchDiffer(ClassDiffer.CLASS_HASHES, 2)
+            .diff(originalJar, modified, diffs);
+        assertEquals(Collections.singletonList("a/A.class"), result.getChanged());
+        assertEquals(Collections.singletonList("d/D.class"), result.getAdded());
+        assertEquals(Collections.singletonList("c/C.class"), result.getRemoved());
+        assertTrue(Files.isRegularFile(diffs.resolve("a/A.cdiff")));
+
+        final Path patched = dir.resolve("patched");
+        assertEquals(Collections.singletonList("a/A.class"), new BatchPatcher(2).patch(originalJar, diffs, patched));
+        final ClassNode patchedNode = new ClassNode();
+        new ClassReader(Files.readAllBytes(patched.resolve("a/A.class"))).accept(patchedNode, 0);
+        assertEquals(toString(readClass("/java/lang/Class.class")), toString(patchedNode));
+        assertArrayEquals(readBytes("/java/lang/Object.class"), Files.readAllBytes(patched.resolve("b/B.class")));
+        assertArrayEquals(readBytes("/java/lang/Integer.class"), Files.readAllBytes(patched.resolve("c/C.class")));
+
+        final Path cachePatched = dir.resolve("cache-patched");
+        new BatchPatcher(2).setClassCache(new ClassNodeCache()).patch(originalJar, diffs, cachePatched);
+        assertArrayEquals(
+            Files.readAllBytes(patched.resolve("a/A.class")), Files.readAllBytes(cachePatched.resolve("a/A.class"))
+        );
+    }
+
+    @Test
+    public void diffPipeline(@TempDir Path dir) throws IOException {
+        final String[] classes = {
+            "/java/lang/String.class", "/java/lang/Object.class", "/java/lang/Integer.class",
+            "/java/lang/Class.class", "/java/lang/Long.class", "/java/lang/Thread.class",
+        };
+        final Path original = dir.resolve("original");
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(original);
+        Files.createDirectories(modified);
+        for (int i = 0; i < 24; i++) {
+            Files.write(original.resolve("C" + i + ".class"), readBytes(classes[i % classes.length]));
+            if (i % 8 != 7) {
+                Files.write(modified.resolve("C" + i + ".class"), readBytes(classes[(i + i / 6) % classes.length]));
+            }
+        }
+        Files.write(modified.resolve("Added.class"), readBytes("/java/lang/Short.class"));
+
+        final Path bundlePath = dir.resolve("diffs.cbundle");
+        final BatchDiffer.Result result = new DiffPipeline(ClassDiffer.CLASS_HASHES)
+            .setReadThreads(2)
+            .setParseThreads(2)
+            .setDiffThreads(3)
+            .setEncodeThreads(2)
+            .setQueueCapacity(2)
+            .run(original, modified, bundlePath);
+        assertEquals(Collections.singletonList("Added.class"), result.getAdded());
+        assertEquals(Arrays.asList("C15.class", "C23.class", "C7.class"), result.getRemoved());
+
+        try (DiffBundle bundle = DiffBundle.open(bundlePath)) {
+            assertEquals(result.getChanged().size() + 4, bundle.getNames().size());
+            assertEquals(DiffBundle.Kind.ADDED, bundle.getEntry("Added.class").getKind());
+            assertArrayEquals(readBytes("/java/lang/Short.class"), bundle.read("Added.class"));
+            assertEquals(DiffBundle.Kind.REMOVED, bundle.getEntry("C7.class").getKind());
+            assertNull(bundle.getEntry("C0.class"));
+            for (int i = 0; i < 24; i++) {
+                final String name = "C" + i + ".class";
+                final byte[] target = readBytes(classes[(i + i / 6) % classes.length]);
+                final DiffBundle.Entry entry = bundle.getEntry(name);
+                if (i % 8 == 7 || Arrays.equals(readBytes(classes[i % classes.length]), target)) {
+                    assertFalse(result.getChanged().contains(name));
+                    continue;
+                }
+                assertEquals(DiffBundle.Kind.CHANGED, entry.getKind());
+                final ClassNode node = new ClassNode();
+                new ClassReader(readBytes(classes[i % classes.length])).accept(node, 0);
+                ClassPatcher.patch(node, new DiffReader(bundle.read(name)));
+                final ClassNode expected = new ClassNode();
+                new ClassReader(target).accept(expected, 0);
+                assertEquals(toString(expected), toString(node));
+            }
+        }
+    }
+
+    @Test
+    public void diffPipelineFailure(@TempDir Path dir) throws IOException {
+        final String[] classes = {
+            "/java/lang/String.class", "/java/lang/Object.class", "/java/lang/Integer.class",
+            "/java/lang/Class.class", "/java/lang/Long.class", "/java/lang/Thread.class",
+        };
+        final Path original = dir.resolve("original");
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(original);
+        Files.createDirectories(modified);
+        for (int i = 0; i < 240; i++) {
+            Files.write(original.resolve("C" + i + ".class"), readBytes(classes[i % classes.length]));
+            Files.write(modified.resolve("C" + i + ".class"), readBytes(classes[(i + 1) % classes.length]));
+        }
+        // Truncated only slightly, so that it's read partway through the run, while diffs are waiting to be encoded
+        final byte[] truncated = readBytes("/java/lang/Integer.class");
+        Files.write(modified.resolve("C1.class"), Arrays.copyOf(truncated, truncated.length - 16));
+
+        // A failed run must leave the bundle from an earlier run as it was
+        final Path bundle = dir.resolve("diffs.cbundle");
+        final byte[] previous = {1, 2, 3, 4};
+        Files.write(bundle, previous);
+
+        final DiffPipeline pipeline = new DiffPipeline()
+            .setDiffThreads(8)
+            .setEncodeThreads(1);
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> assertThrows(
+            RuntimeException.class, () -> pipeline.run(original, modified, bundle)
+        ));
+        assertArrayEquals(previous, Files.readAllBytes(bundle));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(
+                new HashSet<>(Arrays.asList(original, modified, bundle)), files.collect(Collectors.toSet())
+            );
+        }
+    }
+
+    @Test
+    public void classNodeCache() throws Exception {
+        final byte[] string = readBytes("/java/lang/String.class");
+        final byte[] object = readBytes("/java/lang/Object.class");
+        final ClassNodeCache cache = new ClassNodeCache();
+        final ClassNode cached = cache.get(string, 0);
+        assertSame(cached, cache.get(string.clone(), 0));
+        assertNotSame(cached, cache.get(string, ClassReader.SKIP_DEBUG));
+        assertEquals(2, cache.getCount());
+        assertEquals(toString(ClassNodeCache.parse(string, 0)), toString(cached));
+
+        final ClassNodeCache small = new ClassNodeCache(
+            ClassNodeCache.estimateSize(cached) + ClassNodeCache.estimateSize(ClassNodeCache.parse(object, 0)) - 1
+        );
+        final ClassNode smallString = small.get(string, 0);
+        small.get(object, 0);
+        assertEquals(1, small.getCount());
+        assertNotSame(smallString, small.get(string, 0));
+
+        final DiffWriter expected = new DiffWriter();
+        new ClassDiffer(expected, ClassDiffer.CLASS_HASHES)
+            .accept(ClassNodeCache.parse(string, 0), readClass("/java/lang/Class.class"));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    // Only the cached class is shared, since hashing a plain ClassNode resets its labels
+                    final ClassNode modified = readClass("/java/lang/Class.class");
+                    final DiffWriter writer = new DiffWriter();
+                    new ClassDiffer(writer, ClassDiffer.CLASS_HASHES).accept(cache.get(string, 0), modified);
+                    return writer.toByteArray();
+                }));
+            }
+            for (final Future<byte[]> result : results) {
+                assertArrayEquals(expected.toByteArray(), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void patchCopy() throws Exception {
+        final ClassNode base = readClass("/java/lang/String.class");
+        final ClassNode modified = readClass("/java/lang/String.class");
+        modified.methods.get(1).access ^= Opcodes.ACC_SYNCHRONIZED;
+        modified.methods.get(2).instructions.insert(new InsnNode(Opcodes.NOP));
+        modified.fields.add(new FieldNode(Opcodes.ACC_PRIVATE, "added", "I", null, null));
+        final DiffWriter writer = new DiffWriter();
+        new ClassDiffer(writer, ClassDiffer.CLASS_HASHES).accept(base, modified);
+        final DiffReader diff = new DiffReader(writer.toByteArray());
+
+        final String baseString = toString(base);
+        final String expected = toString(modified);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<ClassNode>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> ClassPatcher.patchCopy(base, diff)));
+            }
+            for (final Future<ClassNode> result : results) {
+                final ClassNode patched = result.get();
+                assertEquals(expected, toString(patched));
+                assertSame(base.methods.get(3).instructions, patched.methods.get(3).instructions);
+                assertNotSame(base.methods.get(2).instructions, patched.methods.get(2).instructions);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(baseString, toString(base));
+    }
+
+    @Test
+    public void diffCache(@TempDir Path dir) throws IOException {
+        final Path original = dir.resolve("original");
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(original);
+        Files.createDirectories(modified);
+        Files.write(original.resolve("A.class"), readBytes("/java/lang/String.class"));
+        Files.write(modified.resolve("A.class"), readBytes("/java/lang/Class.class"));
+        Files.write(original.resolve("B.class"), readBytes("/java/lang/Object.class"));
+        Files.write(modified.resolve("B.class"), readBytes("/java/lang/Object.class"));
+
+        final Path cacheDir = dir.resolve("cache");
+        final DiffCache cache = new DiffCache(cacheDir);
+        new BatchDiffer(0, 2).setDiffCache(cache).diff(original, modified, dir.resolve("diffs1"));
+        final List<Path> cached;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            cached = files.collect(Collectors.toList());
+        }
+        assertEquals(1, cached.size());
+        assertArrayEquals(Files.readAllBytes(dir.resolve("diffs1/A.cdiff")), Files.readAllBytes(cached.get(0)));
+
+        // Replace the cached diff, to check that it's used instead of diffing again
+        final byte[] marker = "cached".getBytes(StandardCharsets.UTF_8);
+        Files.write(cached.get(0), marker);
+        new BatchDiffer(0, 2).setDiffCache(cache).diff(original, modified, dir.resolve("diffs2"));
+        assertArrayEquals(marker, Files.readAllBytes(dir.resolve("diffs2/A.cdiff")));
+        final Path bundlePath = dir.resolve("diffs.cbundle");
+        new DiffPipeline().setDiffCache(cache).run(original, modified, bundlePath);
+        try (DiffBundle bundle = DiffBundle.open(bundlePath)) {
+            assertArrayEquals(marker, bundle.read("A.class"));
+        }
+        assertNotNull(cache.get(readBytes("/java/lang/String.class"), readBytes("/java/lang/Class.class"), 0));
+        assertNull(cache.get(readBytes("/java/lang/String.class"), readBytes("/java/lang/Class.class"), 1));
+
+        new DiffCache(cacheDir, 1, Long.MAX_VALUE).prune();
+        assertFalse(Files.exists(cached.get(0)));
+
+        // Only the cache's own files are pruned, however old the rest are
+        final FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 40L * 24 * 60 * 60 * 1000);
+        final Path notes = Files.write(cacheDir.resolve("notes.txt"), marker);
+        final Path subdirectory = Files.createDirectories(cacheDir.resolve("old.cdiff"));
+        Files.write(subdirectory.resolve("A.cdiff"), marker);
+        final Path temp = Files.write(cacheDir.resolve("diff123.tmp"), marker);
+        for (final Path path : new Path[] {notes, subdirectory, temp}) {
+            Files.setLastModifiedTime(path, old);
+        }
+        cache.prune();
+        assertTrue(Files.exists(notes));
+        assertTrue(Files.exists(subdirectory.resolve("A.cdiff")));
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    public void bundleUpdate(@TempDir Path dir) throws IOException {
+        final Path original = dir.resolve("original");
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(original);
+        Files.createDirectories(modified);
+        Files.write(original.resolve("A.class"), readBytes("/java/lang/String.class"));
+        Files.write(original.resolve("B.class"), readBytes("/java/lang/Object.class"));
+        Files.write(original.resolve("E.class"), readBytes("/java/lang/Thread.class"));
+        Files.write(modified.resolve("A.class"), readBytes("/java/lang/Class.class"));
+        Files.write(modified.resolve("B.class"), readBytes("/java/lang/Integer.class"));
+        Files.write(modified.resolve("C.class"), readBytes("/java/lang/Long.class"));
+
+        // Entries that are reused have to be copied as they are, so give one contents that a diff would never have
+        final Path previous = dir.resolve("previous.cbundle");
+        final byte[] marker = "previous".getBytes(StandardCharsets.UTF_8);
+        final byte[] classFile = readBytes("/java/lang/Class.class");
+        try (DiffBundle.Writer writer = new DiffBundle.Writer(previous)) {
+            writer.add(DiffBundle.Kind.CHANGED, "A.class", marker, Hashing.hash(classFile), classFile.length);
+            writer.add(DiffBundle.Kind.CHANGED, "B.class", marker, Hashing.hash(marker), marker.length);
+            writer.add(DiffBundle.Kind.ADDED, "C.class", readBytes("/java/lang/Long.class"));
+        }
+
+        final Path bundlePath = dir.resolve("updated.cbundle");
+        final BatchDiffer.Result result = new DiffPipeline().update(original, modified, previous, bundlePath);
+        assertEquals(Arrays.asList("A.class", "B.class"), result.getChanged());
+        assertEquals(Collections.singletonList("C.class"), result.getAdded());
+        assertEquals(Collections.singletonList("E.class"), result.getRemoved());
+        try (DiffBundle bundle = DiffBundle.open(bundlePath)) {
+            assertArrayEquals(marker, bundle.read("A.class"));
+            assertArrayEquals(readBytes("/java/lang/Long.class"), bundle.read("C.class"));
+            assertTrue(bundle.getEntry("B.class").producesTarget(readBytes("/java/lang/Integer.class")));
+            final ClassNode node = readClass("/java/lang/Object.class");
+            ClassPatcher.patch(node, new DiffReader(bundle.read("B.class")));
+            assertEquals(toString(readClass("/java/lang/Integer.class")), toString(node));
+        }
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> new DiffPipeline().update(original, modified, bundlePath, bundlePath)
+        );
+    }
+
+    @Test
+    public void labelMap() {
+        final InsnList insns = new InsnList();
+        final LabelNode[] labels = new LabelNode[100];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new LabelNode();
+            insns.add(labels[i]);
+            insns.add(new InsnNode(Opcodes.NOP));
+        }
+        final LabelMap map = new LabelMap(insns);
+        final LabelMap listMap = new LabelMap(Arrays.asList(insns.toArray()));
+        assertEquals(labels.length, map.size());
+        assertEquals(labels.length, listMap.size());
+        for (int i = 0; i < labels.length; i++) {
+            assertEquals(i, map.getId(labels[i]));
+            assertEquals(i, listMap.getId(labels[i]));
+            assertSame(labels[i], map.byId(i));
+            assertSame(labels[i], map.resolve(new SyntheticLabelNode(i)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> map.getId(new LabelNode()));
+        assertThrows(IllegalArgumentException.class, () -> LabelMap.EMPTY.getId(new LabelNode()));
+    }
+
+    /**
+     * Returns a visitor that passes everything on to {@code delegate}, but writes the diff as {@code diffVersion}
+     * rather than the latest version.
+     */
+    private static DiffVisitor withDiffVersion(DiffVisitor delegate, int diffVersion) {
+        return new DiffVisitor(delegate) {
+            @Override
+            public void visit(
+                int ignoredVersion,
+                int classVersion,
+                int access,
+                String name,
+                String signature,
+                String superName,
+                Patch<String> interfaces
+            ) {
+                super.visit(diffVersion, classVersion, access, name, signature, superName, interfaces);
+            }
+        };
+    }
+
+    private static byte[] readBytes(String resource) throws IOException {
+        try (InputStream input = ClassTest.class.getResourceAsStream(resource)) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static class MemberCollector extends DiffVisitor {
+        private final List<String> members;
+
+        MemberCollector(List<String> members) {
+            this.members = members;
+        }
+
+        @Override
+        public FieldDiffVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            members.add(name + ":" + descriptor);
+            return null;
+        }
+
+        @Override
+        public MethodDiffVisitor visitMethod(int access, String name, String descriptor, String signature, Patch<String> exceptions) {
+            members.add(name + descriptor);
+            return null;
+        }
+    }
+
+    private ClassNode movedBlocksClass(boolean swapped) {
+        final ClassNode node = new ClassNode();
+        node.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "Moved", null, "java/lang/Object", null);
+        final MethodNode method = new MethodNode(Opcodes.ACC_PUBLIC, "run", "()V", null, null);
+        final InsnList[] blocks = new InsnList[3];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new InsnList();
+        }
+        for (int j = 0; j < 8; j++) {
+            blocks[0].add(new FieldInsnNode(Opcodes.GETSTATIC, "Moved", "count" + j, "I"));
+            blocks[0].add(new InsnNode(Opcodes.ICONST_1));
+            blocks[0].add(new InsnNode(Opcodes.IADD));
+            blocks[0].add(new FieldInsnNode(Opcodes.PUTSTATIC, "Moved", "count" + j, "I"));
+            blocks[1].add(new LdcInsnNode("constant " + j));
+            blocks[1].add(new InsnNode(Opcodes.POP));
+            blocks[2].add(new VarInsnNode(Opcodes.ALOAD, 0));
+            blocks[2].add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "Moved", "log" + j, "()V"));
+        }
+        method.instructions.add(blocks[swapped ? 2 : 0]);
+        method.instructions.add(blocks[1]);
+        method.instructions.add(blocks[swapped ? 0 : 2]);
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        method.maxStack = 2;
+        method.maxLocals = 1;
+        node.methods.add(method);
+        return node;
+    }
+
+    @Test
+    public void insnCopies() {
+        final DiffWriter v1Writer = new DiffWriter();
+        ClassDiffer.diff(movedBlocksClass(false), movedBlocksClass(true), withDiffVersion(v1Writer, DiffConstants.V1));
+        final DiffWriter v2Writer = new DiffWriter();
+        ClassDiffer.diff(movedBlocksClass(false), movedBlocksClass(true), withDiffVersion(v2Writer, DiffConstants.V2));
+        final byte[] v1 = v1Writer.toByteArray();
+        final byte[] v2 = v2Writer.toByteArray();
+        // The moved blocks are copied rather than encoded again
+        assertTrue(v2.length * 2 < v1.length, "V2 diff (" + v2.length + " bytes) not less than half of V1 (" + v1.length + ")");
+
+        final ClassNode node = movedBlocksClass(false);
+        ClassPatcher.patch(node, new DiffReader(v2));
+        assertEquals(toString(movedBlocksClass(true)), toString(node));
+    }
+
+    @Test
+    public void presetConstants() throws IOException {
+        final ClassNode modified = readClass("test1/Hello.class");
+        modified.fields.add(new FieldNode(
+            Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "serialVersionUID", "J", null, 1L
+        ));
+
+        final DiffWriter v2Writer = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), modified, withDiffVersion(v2Writer, DiffConstants.V2));
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("test1/Hello.class"), modified, writer);
+        final byte[] v2 = v2Writer.toByteArray();
+        final byte[] v3 = writer.toByteArray();
+        assertTrue(v3.length < v2.length, "V3 diff (" + v3.length + " bytes) not smaller than V2 (" + v2.length + ")");
+
+        for (final byte[] patch : Arrays.asList(v2, v3)) {
+            final ClassNode node = readClass("test1/Hello.class");
+            ClassPatcher.patch(node, new DiffReader(patch));
+            assertEquals(toString(modified), toString(node));
+        }
+    }
+
+    @Test
+    public void stringCache() throws IOException {
+        final DiffWriter writer = new DiffWriter();
+        ClassDiffer.diff(readClass("/java/lang/String.class"), readClass("/java/lang/Class.class"), writer);
+        final byte[] patch = writer.toByteArray();
+
+        final Utf8Cache cache = new Utf8Cache();
+        final List<ClassNode> patched = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final ClassNode node = readClass("/java/lang/String.class");
+            ClassPatcher.patch(node, new DiffReader(ByteBuffer.wrap(patch), null, cache));
+            assertEquals(toString(readClass("/java/lang/Class.class")), toString(node));
+            patched.add(node);
+        }
+        assertSame(patched.get(0).name, patched.get(1).name);
+        assertSame(patched.get(0).signature, patched.get(1).signature);
+    }
 }
@@ -0,0 +1,108 @@
+package io.github.prcraftmc.classdiff.batch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CostSchedulingTest {
+    @Test
+    public void countMethods() throws IOException {
+        final String[] classes = {
+            "/java/lang/Object.class", "/java/lang/String.class", "/java/lang/Character.class",
+            "/java/lang/Thread.class", "/java/util/HashMap.class", "/java/util/concurrent/ConcurrentHashMap.class",
+            "/java/lang/Runnable.class", "/java/lang/annotation/Retention.class", "/java/lang/Thread$State.class",
+        };
+        for (final String name : classes) {
+            final byte[] bytes = readBytes(name);
+            final ClassNode node = new ClassNode();
+            new ClassReader(bytes).accept(node, ClassReader.SKIP_CODE);
+            assertEquals(node.methods.size(), CostEstimator.countMethods(bytes), name);
+        }
+
+        assertEquals(0, CostEstimator.countMethods(new byte[] {(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe}));
+        final byte[] string = readBytes("/java/lang/String.class");
+        assertEquals(0, CostEstimator.countMethods(Arrays.copyOf(string, string.length / 2)));
+    }
+
+    @Test
+    public void sortBySize(@TempDir Path dir) throws IOException {
+        final Path original = dir.resolve("original");
+        final Path modified = dir.resolve("modified");
+        Files.createDirectories(original);
+        Files.createDirectories(modified);
+        Files.write(original.resolve("A.class"), new byte[10]);
+        Files.write(modified.resolve("A.class"), new byte[10]);
+        Files.write(original.resolve("B.class"), new byte[40]);
+        Files.write(modified.resolve("B.class"), new byte[5]);
+        // Only in modified, so only its own size counts
+        Files.write(modified.resolve("C.class"), new byte[30]);
+        Files.write(original.resolve("D.class"), new byte[1]);
+        Files.write(modified.resolve("D.class"), new byte[1]);
+
+        try (
+            FileTree originalTree = FileTree.open(original, ".class");
+            FileTree modifiedTree = FileTree.open(modified, ".class")
+        ) {
+            assertEquals(
+                Arrays.asList("B.class", "C.class", "A.class", "D.class"),
+                CostEstimator.sortBySize(modifiedTree.getNames(), originalTree, modifiedTree)
+            );
+        }
+    }
+
+    @Test
+    public void costOrderedExecutor() throws InterruptedException {
+        final BatchExecutors.CostOrderedExecutor executor = BatchExecutors.newCostOrderedExecutor(1);
+        try {
+            // Keep the only thread busy until every task is queued, so that they all compete on cost
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.withCost(0).execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            final long[] costs = {3, 1, 5, 2, 5, 4};
+            final List<String> order = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch done = new CountDownLatch(costs.length);
+            for (int i = 0; i < costs.length; i++) {
+                final String task = costs[i] + "#" + i;
+                executor.withCost(costs[i]).execute(() -> {
+                    order.add(task);
+                    done.countDown();
+                });
+            }
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            // Largest first, and equal costs in the order they were queued
+            assertEquals(Arrays.asList("5#2", "5#4", "4#5", "3#0", "2#3", "1#1"), order);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] readBytes(String resource) throws IOException {
+        try (InputStream input = CostSchedulingTest.class.getResourceAsStream(resource)) {
+            return input.readAllBytes();
+        }
+    }
+}